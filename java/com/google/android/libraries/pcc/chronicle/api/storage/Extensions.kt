@@ -34,6 +34,7 @@ fun EntityMetadata(
   associatedPackageNames: List<String>,
   created: Instant,
   updated: Instant = created,
+  locusId: String = "",
 ): EntityMetadata {
   return EntityMetadata.newBuilder()
     .apply {
@@ -41,6 +42,7 @@ fun EntityMetadata(
       this.created = created.toProtoTimestamp()
       this.updated = updated.toProtoTimestamp()
       addAllAssociatedPackageNames(associatedPackageNames)
+      this.locusId = locusId
     }
     .build()
 }
@@ -54,7 +56,8 @@ fun EntityMetadata(
   associatedPackageName: String,
   created: Instant,
   updated: Instant = created,
-): EntityMetadata = EntityMetadata(id, listOf(associatedPackageName), created, updated)
+  locusId: String = "",
+): EntityMetadata = EntityMetadata(id, listOf(associatedPackageName), created, updated, locusId)
 
 /**
  * Creates a copy of the receiving [EntityMetadata], using the provided [updated] value. If
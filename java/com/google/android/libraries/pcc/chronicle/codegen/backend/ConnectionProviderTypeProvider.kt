@@ -30,11 +30,18 @@ import com.squareup.kotlinpoet.TypeSpec
  * and [com.google.android.libraries.pcc.chronicle.api.WriteConnection] and a corresponding
  * ConnectionProvider for each given `ReadConnection`, `WriteConnection` and `DataClass`.
  *
+ * Read connections in [observerConnections] observe the cache's changes through a
+ * `DataCacheObserver` instead of reading it through a `DataCacheReader`.
+ *
  * For example:
  * ```
  * class ${ReadConnection}Impl(cache: TypedDataCacheReader<${DataClass}>) :
  *   ${ReadConnection}, DataCacheReader<${DataClass}> by DataCacheReader.createDefault(cache)
  *
+ * class ${ObserverConnection}Impl(cache: TypedDataCacheReader<${DataClass}>) :
+ *   ${ObserverConnection},
+ *   DataCacheObserver<${DataClass}> by DataCacheObserver.createDefault(cache)
+ *
  * class ${WriteConnection}Impl(cache: TypedDataCacheWriter<${DataClass}>, timeSource: TimeSource) :
  *   ${WriteConnection},
  *   DataCacheWriter<${DataClass}> by DataCacheWriter.createDefault(cache, timeSource)
@@ -57,6 +64,7 @@ class ConnectionProviderTypeProvider(
   val dataClass: TypeName,
   val readerConnections: List<TypeName>,
   val writerConnections: List<TypeName>,
+  val observerConnections: List<TypeName> = emptyList(),
 ) : FileSpecContentsProvider {
   override fun provideContentsInto(builder: FileSpec.Builder) {
     val connectionMappings = mutableListOf<CodeBlock>()
@@ -67,6 +75,11 @@ class ConnectionProviderTypeProvider(
       val readerMap = buildReaderMapEntry(it, readerImpl)
       connectionMappings.add(readerMap)
     }
+    observerConnections.forEach {
+      val observerImpl = buildObserverConnectionImpl(it)
+      builder.addType(observerImpl)
+      connectionMappings.add(buildReaderMapEntry(it, observerImpl))
+    }
     writerConnections.forEach {
       val impl = buildWriterConnectionImpl(it)
       builder.addType(impl)
@@ -92,6 +105,20 @@ class ConnectionProviderTypeProvider(
       )
       .build()
 
+  private fun buildObserverConnectionImpl(observerConnection: TypeName) =
+    TypeSpec.classBuilder("${observerConnection.name}Impl")
+      .primaryConstructor(
+        FunSpec.constructorBuilder()
+          .addParameter("cache", TYPED_DATA_CACHE_READER.parameterizedBy(dataClass))
+          .build()
+      )
+      .addSuperinterface(observerConnection)
+      .addSuperinterface(
+        DATA_CACHE_OBSERVER.parameterizedBy(dataClass),
+        CodeBlock.of("%N.createDefault(cache)", DATA_CACHE_OBSERVER.simpleName),
+      )
+      .build()
+
   private fun buildWriterConnectionImpl(writerConnection: TypeName) =
     TypeSpec.classBuilder("${writerConnection.name}Impl")
       .primaryConstructor(
@@ -139,6 +166,7 @@ class ConnectionProviderTypeProvider(
     private val TYPED_DATA_CACHE_WRITER = ClassName(DATACACHE_PACKAGE_NAME, "TypedDataCacheWriter")
     private val DATA_CACHE_READER = ClassName(DATACACHE_PACKAGE_NAME, "DataCacheReader")
     private val DATA_CACHE_WRITER = ClassName(DATACACHE_PACKAGE_NAME, "DataCacheWriter")
+    private val DATA_CACHE_OBSERVER = ClassName(DATACACHE_PACKAGE_NAME, "DataCacheObserver")
     private val MANAGED_DATA_CACHE = ClassName(DATACACHE_PACKAGE_NAME, "ManagedDataCache")
     private val DEFAULT_MANAGED_DATA_CACHE_CONNECTION_PROVIDER =
       ClassName(DATACACHE_PACKAGE_NAME, "DefaultManagedDataCacheConnectionProvider")
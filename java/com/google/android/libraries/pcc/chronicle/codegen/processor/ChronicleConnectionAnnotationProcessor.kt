@@ -60,6 +60,13 @@ class ChronicleConnectionAnnotationProcessor : AnnotationProcessor() {
     processingEnv.elementUtils.getTypeElement(WRITE_CONNECTION_CLASS_PATH).asType()
   }
 
+  /** The erased `DataCacheObserver` type, or `null` if the datacache library isn't a dependency. */
+  private val dataCacheObserverTypeMirror: TypeMirror? by lazy {
+    processingEnv.elementUtils.getTypeElement(DATA_CACHE_OBSERVER_CLASS_PATH)?.let {
+      processingEnv.typeUtils.erasure(it.asType())
+    }
+  }
+
   override fun getSupportedAnnotationTypes() =
     setOf(ChronicleConnection::class.java.canonicalName!!)
 
@@ -143,6 +150,14 @@ class ChronicleConnectionAnnotationProcessor : AnnotationProcessor() {
   private fun isWriteConnection(typeMirror: TypeMirror): Boolean =
     processingEnv.typeUtils.isAssignable(typeMirror, writeConnectionTypeMirror)
 
+  private fun isDataCacheObserver(typeMirror: TypeMirror): Boolean {
+    val observerTypeMirror = dataCacheObserverTypeMirror ?: return false
+    return processingEnv.typeUtils.isAssignable(
+      processingEnv.typeUtils.erasure(typeMirror),
+      observerTypeMirror,
+    )
+  }
+
   // @CheckReturnValue
   private fun Element.validateAndExtractDataClass(): Element =
     // TODO: go/nullness-caller-updates-lsc - Avoid dereferencing possibly null value?
@@ -202,11 +217,14 @@ class ChronicleConnectionAnnotationProcessor : AnnotationProcessor() {
   ) {
     for ((dataClass, readers, writers) in dataClassToReadConnectionsToWriteConnections) {
       printNote(dataClass, "Generating ConnectionProvider for $dataClass")
+      // Readers extending DataCacheObserver are wired to the cache's change feed.
+      val (observers, plainReaders) = readers.partition { isDataCacheObserver(it) }
       val connectionProvider =
         ConnectionProviderTypeProvider(
           dataClass.asType().asTypeName(),
-          readers.map { it.asTypeName() },
+          plainReaders.map { it.asTypeName() },
           writers.map { it.asTypeName() },
+          observers.map { it.asTypeName() },
         )
       dataClass.generateConnectionProviderFile(connectionProvider).writeTo(processingEnv.filer)
     }
@@ -227,6 +245,8 @@ class ChronicleConnectionAnnotationProcessor : AnnotationProcessor() {
       "com.google.android.libraries.pcc.chronicle.api.ReadConnection"
     private const val WRITE_CONNECTION_CLASS_PATH =
       "com.google.android.libraries.pcc.chronicle.api.WriteConnection"
+    private const val DATA_CACHE_OBSERVER_CLASS_PATH =
+      "com.google.android.libraries.pcc.chronicle.storage.datacache.DataCacheObserver"
     private const val FILE_SUFFIX_FOR_CONNECTIONS = "_Generated_Connections"
     private const val FILE_SUFFIX_FOR_CONNECTION_PROVIDER = "_Generated_Connection_Provider"
   }
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.pcc.chronicle.storage.blobstore
+
+import java.io.ByteArrayOutputStream
+import java.util.zip.Deflater
+import java.util.zip.Inflater
+
+/**
+ * Transforms serialized entities before they are written to the persisted BlobStore, and back
+ * after they are read, e.g. to compress them.
+ *
+ * [decode] must accept blobs written before the codec was enabled, i.e. plain serialized protos.
+ */
+interface BlobCodec {
+  /** Returns the bytes to store for the serialized entity [bytes]. */
+  fun encode(bytes: ByteArray): ByteArray
+
+  /** Returns the serialized entity stored as [bytes]. */
+  fun decode(bytes: ByteArray): ByteArray
+}
+
+/**
+ * A [BlobCodec] compressing blobs with [Deflater].
+ *
+ * Encoded blobs start with a zero byte, which never starts a serialized proto since field numbers
+ * start at one, followed by a format byte. Blobs without that header, such as rows written before
+ * compression was enabled, are decoded as they are. Blobs which don't get smaller are also stored
+ * without compression, so small entities don't pay for the header and the inflation.
+ *
+ * @param level the [Deflater] compression level.
+ * @param dictionary an optional preset dictionary, e.g. the field values common to the entities of
+ *   a data type, which improves the compression of small blobs. Blobs must be decoded with the
+ *   dictionary they were encoded with.
+ */
+class DeflateBlobCodec(
+  private val level: Int = Deflater.DEFAULT_COMPRESSION,
+  private val dictionary: ByteArray? = null,
+) : BlobCodec {
+  override fun encode(bytes: ByteArray): ByteArray {
+    val deflater = Deflater(level)
+    try {
+      dictionary?.let { deflater.setDictionary(it) }
+      deflater.setInput(bytes)
+      deflater.finish()
+      val output = ByteArrayOutputStream(bytes.size / 2 + HEADER_SIZE)
+      output.write(HEADER_MARKER)
+      output.write(FORMAT_DEFLATE)
+      val buffer = ByteArray(BUFFER_SIZE)
+      while (!deflater.finished()) {
+        output.write(buffer, 0, deflater.deflate(buffer))
+        if (output.size() >= bytes.size) return bytes
+      }
+      return output.toByteArray()
+    } finally {
+      deflater.end()
+    }
+  }
+
+  override fun decode(bytes: ByteArray): ByteArray {
+    if (bytes.size < HEADER_SIZE || bytes[0] != HEADER_MARKER.toByte()) return bytes
+    check(bytes[1] == FORMAT_DEFLATE.toByte()) { "Unknown blob format: ${bytes[1]}" }
+
+    val inflater = Inflater()
+    try {
+      inflater.setInput(bytes, HEADER_SIZE, bytes.size - HEADER_SIZE)
+      val output = ByteArrayOutputStream(bytes.size * 4)
+      val buffer = ByteArray(BUFFER_SIZE)
+      while (!inflater.finished()) {
+        val count = inflater.inflate(buffer)
+        if (count == 0) {
+          if (inflater.needsDictionary()) {
+            inflater.setDictionary(
+              checkNotNull(dictionary) { "Blob was compressed with a preset dictionary." }
+            )
+            continue
+          }
+          check(!inflater.needsInput()) { "Compressed blob is truncated." }
+        }
+        output.write(buffer, 0, count)
+      }
+      return output.toByteArray()
+    } finally {
+      inflater.end()
+    }
+  }
+
+  private companion object {
+    const val HEADER_MARKER = 0
+    const val FORMAT_DEFLATE = 1
+    const val HEADER_SIZE = 2
+    const val BUFFER_SIZE = 4096
+  }
+}
@@ -18,6 +18,8 @@ package com.google.android.libraries.pcc.chronicle.storage.blobstore
 
 import com.google.android.libraries.pcc.chronicle.api.storage.EntityMetadata
 import com.google.android.libraries.pcc.chronicle.api.storage.WrappedEntity
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.flow
 
 /** Interface for developers to read/write to BlobStore. */
 interface BlobStore<T> {
@@ -54,9 +56,63 @@ interface BlobStore<T> {
   /** Retrieves all entities of type [T] from storage. */
   suspend fun getAllEntities(): List<WrappedEntity<T>>
 
+  /**
+   * Retrieves the entities of type [T] whose [EntityMetadata.getLocusId] is [locusId]. The default
+   * implementation filters the result of [getAllEntities].
+   */
+  suspend fun getEntitiesByLocusId(locusId: String): List<WrappedEntity<T>> =
+    getAllEntities().filter { it.metadata.locusId == locusId }
+
+  /**
+   * Retrieves all entities of type [T] from storage as a cold [Flow] of pages of at most [pageSize]
+   * entities.
+   *
+   * Implementations backed by persistent storage read and deserialize one page at a time, when the
+   * collector asks for it, so that memory use is bounded by [pageSize] rather than by the number of
+   * stored entities. Entities written or removed while the flow is collected may or may not be
+   * included. The default implementation pages the result of [getAllEntities].
+   */
+  fun getAllEntitiesPaged(pageSize: Int = DEFAULT_PAGE_SIZE): Flow<List<WrappedEntity<T>>> {
+    require(pageSize > 0) { "pageSize must be positive." }
+    return flow { getAllEntities().chunked(pageSize).forEach { emit(it) } }
+  }
+
+  /**
+   * Retrieves the keys of all entities of type [T] in storage, without reading the entities. The
+   * default implementation reads them with [getAllEntities].
+   */
+  suspend fun getAllKeys(): List<String> = getAllEntities().map { it.metadata.id }
+
+  /** Returns the number of entities of type [T] in storage. */
+  suspend fun countEntities(): Int = getAllKeys().size
+
+  /**
+   * Retrieves the [EntityMetadata] of the entity of type [T] with the given key, without reading
+   * the entity. The default implementation reads it with [getEntityByKey].
+   */
+  suspend fun getMetadataByKey(key: String): EntityMetadata? = getEntityByKey(key)?.metadata
+
+  /**
+   * Retrieves the [EntityMetadata] of all entities of type [T] in storage, without reading the
+   * entities. The default implementation reads them with [getAllEntities].
+   */
+  suspend fun getAllMetadata(): List<EntityMetadata> = getAllEntities().map { it.metadata }
+
+  /**
+   * Retrieves all entities of type [T] from storage, deserializing each one only when its
+   * [LazyWrappedEntity.entity] is first accessed. The default implementation wraps the result of
+   * [getAllEntities].
+   */
+  suspend fun getAllLazyEntities(): List<LazyWrappedEntity<T>> =
+    getAllEntities().map { LazyWrappedEntity(it.metadata) { it.entity } }
+
   /** Removes entity of type [T] from storage using the entity's key. */
   suspend fun removeEntityByKey(key: String)
 
   /** Removes all entities of type [T] from storage. */
   suspend fun removeAll()
+
+  companion object {
+    const val DEFAULT_PAGE_SIZE = 100
+  }
 }
@@ -22,9 +22,14 @@ import com.google.android.libraries.pcc.chronicle.storage.blobstore.db.BlobDatab
 import com.google.android.libraries.pcc.chronicle.storage.blobstore.inmemory.InMemoryBlobStore
 import com.google.android.libraries.pcc.chronicle.storage.blobstore.inmemory.InMemoryBlobStoreManagement
 import com.google.android.libraries.pcc.chronicle.storage.blobstore.inmemory.InMemoryStorage
+import com.google.android.libraries.pcc.chronicle.storage.blobstore.persisted.BlobSegmentStore
 import com.google.android.libraries.pcc.chronicle.storage.blobstore.persisted.PersistedBlobStore
 import com.google.android.libraries.pcc.chronicle.storage.blobstore.persisted.PersistedBlobStoreManagement
+import com.google.android.libraries.pcc.chronicle.storage.blobstore.tiered.TieredBlobStore
+import com.google.android.libraries.pcc.chronicle.storage.blobstore.tiered.TieredBlobStoreManagement
+import com.google.android.libraries.pcc.chronicle.storage.blobstore.tiered.TieredStorage
 import com.google.android.libraries.pcc.chronicle.util.TimeSource
+import java.io.File
 
 /**
  * Entry point to BlobStore. Data stewards will use this class to create their [BlobStores]
@@ -33,23 +38,34 @@ import com.google.android.libraries.pcc.chronicle.util.TimeSource
  * when packages are uninstalled.
  */
 class BlobStoreCore(context: Context, private val timeSource: TimeSource) : BlobStoreProvider {
-  private val db = Room.databaseBuilder(context, BlobDatabase::class.java, DB_NAME).build()
+  private val db =
+    Room.databaseBuilder(context, BlobDatabase::class.java, DB_NAME)
+      .addMigrations(*BlobDatabase.MIGRATIONS)
+      .addCallback(BlobDatabase.CALLBACK)
+      .build()
   private val dao = db.blobDao()
+  private val segmentStore = BlobSegmentStore(File(context.filesDir, SEGMENT_DIRECTORY_NAME))
 
   private val inMemoryStorage = InMemoryStorage()
+  private val tieredStorage = TieredStorage()
 
   private val manager =
     BlobStoreManager(
       timeSource = timeSource,
       managements =
-        setOf(PersistedBlobStoreManagement(dao), InMemoryBlobStoreManagement(inMemoryStorage)),
+        setOf(
+          PersistedBlobStoreManagement(dao, segmentStore),
+          // Invalidates the caches of the rows deleted by the persisted management above.
+          TieredBlobStoreManagement(dao, tieredStorage),
+          InMemoryBlobStoreManagement(inMemoryStorage),
+        ),
     )
 
   /** Provides a [BlobStore] based on the given [ManagementInfo]. */
   @Suppress("UNCHECKED_CAST")
   override fun <T : Any> provideBlobStore(managementInfo: ManagementInfo): BlobStore<T> {
-    if (managementInfo is PersistedManagementInfo<*>) {
-      require(managementInfo.quotaInfo.maxRowCount > managementInfo.quotaInfo.minRowsAfterTrim) {
+    managementInfo.persistedInfo?.let { info ->
+      require(info.quotaInfo.maxRowCount > info.quotaInfo.minRowsAfterTrim) {
         "maxRowCount must be greater than minRowsAfterTrim."
       }
     }
@@ -61,14 +77,20 @@ class BlobStoreCore(context: Context, private val timeSource: TimeSource) : Blob
     ) {
       return when (checkInfo) {
         is PersistedManagementInfo<*> ->
-          PersistedBlobStore(dao, checkInfo, timeSource) as BlobStore<T>
+          PersistedBlobStore(dao, checkInfo, timeSource, segmentStore) as BlobStore<T>
+        is TieredManagementInfo<*> ->
+          TieredBlobStore(
+            PersistedBlobStore(dao, checkInfo.persisted, timeSource, segmentStore) as BlobStore<T>,
+            tieredStorage.registerDataTypeCache(checkInfo),
+            timeSource,
+          )
         is InMemoryManagementInfo ->
           InMemoryBlobStore(inMemoryStorage.registerDataTypeStore(checkInfo), timeSource)
       }
     }
 
     throw IllegalArgumentException(
-      "Persisted and in memory blob stores for the same DTD is not allowed."
+      "Persisted, tiered and in memory blob stores for the same DTD are not allowed."
     )
   }
 
@@ -80,5 +102,6 @@ class BlobStoreCore(context: Context, private val timeSource: TimeSource) : Blob
 
   companion object {
     private const val DB_NAME = "ChronicleBlobStore"
+    private const val SEGMENT_DIRECTORY_NAME = "ChronicleBlobStoreSegments"
   }
 }
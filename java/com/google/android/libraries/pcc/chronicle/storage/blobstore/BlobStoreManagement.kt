@@ -30,6 +30,12 @@ interface BlobStoreManagement {
   /** Deletes all expired entities from storage. */
   suspend fun deleteExpiredEntities(currentTimeMillis: Long, managementInfos: Set<ManagementInfo>)
 
+  /**
+   * Returns the earliest time, in milliseconds since the epoch, at which an entity in storage
+   * expires according to the provided [managementInfos], or null if there are no such entities.
+   */
+  suspend fun nextExpiryMillis(managementInfos: Set<ManagementInfo>): Long?
+
   /**
    * Deletes a number of entities from storage of specified type based on the provided
    * [managementInfos].
@@ -64,6 +64,13 @@ class BlobStoreManager(val timeSource: TimeSource, val managements: Set<BlobStor
     }
   }
 
+  /**
+   * Returns the earliest time, in milliseconds since the epoch, at which a stored entity expires,
+   * or null if nothing is stored. [performMaintenance] has nothing to expire before then.
+   */
+  suspend fun nextExpiryMillis(): Long? =
+    managements.mapNotNull { it.nextExpiryMillis(managementInfos.value) }.minOrNull()
+
   /**
    * This function deletes all entities associated with the provided package [value] when it's
    * uninstalled from the device.
@@ -21,8 +21,9 @@ interface BlobStoreProvider {
   /**
    * Returns a [BlobStore] instance using the provided [ManagementInfo] to create it.
    *
-   * Pass a [PersistedManagementInfo] for a [BlobStore] that persists data to disk and an
-   * [InMemoryManagementInfo] for a [BlobStore] that keeps data in a cache.
+   * Pass a [PersistedManagementInfo] for a [BlobStore] that persists data to disk, a
+   * [TieredManagementInfo] for one that persists data to disk and caches the entities read most
+   * recently, and an [InMemoryManagementInfo] for a [BlobStore] that keeps data in a cache.
    */
   fun <T : Any> provideBlobStore(managementInfo: ManagementInfo): BlobStore<T>
 }
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.pcc.chronicle.storage.blobstore
+
+import com.google.android.libraries.pcc.chronicle.api.storage.EntityMetadata
+import com.google.android.libraries.pcc.chronicle.api.storage.WrappedEntity
+
+/**
+ * A variant of [WrappedEntity] whose [entity] is only deserialized the first time it is accessed,
+ * so that readers filtering on the [metadata] don't pay for the entities they skip.
+ *
+ * Accessing [entity] may throw if the stored entity can't be deserialized.
+ */
+class LazyWrappedEntity<T>(val metadata: EntityMetadata, deserialize: () -> T) {
+  val entity: T by lazy(deserialize)
+
+  /** Returns the [WrappedEntity], deserializing [entity] if it wasn't yet. */
+  fun toWrappedEntity(): WrappedEntity<T> = WrappedEntity(metadata, entity)
+}
@@ -26,14 +26,50 @@ sealed class ManagementInfo {
 /**
  * Represents the quota and ttl information for a specific data type for BlobStore to use to ensure
  * persisted data is deleted correctly.
+ *
+ * @param blobCodec an optional codec, e.g. [DeflateBlobCodec], applied to serialized entities
+ *   before they are stored and reversed before they are passed to [deserializer].
  */
 data class PersistedManagementInfo<T : MessageLite>(
   override val dtdName: String,
   override val ttlMillis: Long,
   val quotaInfo: QuotaInfo,
   val deserializer: (ByteArray) -> T,
+  val blobCodec: BlobCodec? = null,
 ) : ManagementInfo()
 
+/**
+ * Represents a persisted data type whose most recently read entities are also kept, deserialized,
+ * in memory, so that reads of hot keys skip both the database and the [deserializer]
+ * [PersistedManagementInfo.deserializer].
+ *
+ * @param persisted the management information of the persisted data.
+ * @param maxCachedItems the number of entities kept in memory, least recently used first out.
+ */
+data class TieredManagementInfo<T : MessageLite>(
+  val persisted: PersistedManagementInfo<T>,
+  val maxCachedItems: Int,
+) : ManagementInfo() {
+  override val dtdName: String
+    get() = persisted.dtdName
+
+  override val ttlMillis: Long
+    get() = persisted.ttlMillis
+
+  init {
+    require(maxCachedItems > 0) { "maxCachedItems must be positive." }
+  }
+}
+
+/** The management information of the persisted data of this data type, if any. */
+val ManagementInfo.persistedInfo: PersistedManagementInfo<*>?
+  get() =
+    when (this) {
+      is PersistedManagementInfo<*> -> this
+      is TieredManagementInfo<*> -> persisted
+      is InMemoryManagementInfo -> null
+    }
+
 /**
  * Represents the quota and ttl information for a specific data type for BlobStore to use to ensure
  * in memory data is deleted correctly.
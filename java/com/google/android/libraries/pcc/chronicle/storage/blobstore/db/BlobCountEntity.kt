@@ -0,0 +1,41 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.pcc.chronicle.storage.blobstore.db
+
+import androidx.room.ColumnInfo
+import androidx.room.Entity
+import androidx.room.PrimaryKey
+
+/**
+ * Defines a table holding the number of [BlobEntities][BlobEntity] stored for each dtdName, so that
+ * quota checks don't count the blobs.
+ *
+ * The table is kept up to date by triggers on the blobs table, see [BlobDatabase.CALLBACK].
+ */
+@Entity(tableName = BlobCountEntity.TABLE_NAME)
+data class BlobCountEntity(
+  /** The name of the blob data type. */
+  @PrimaryKey @ColumnInfo(name = DTD_NAME) val dtdName: String,
+  /** The number of blobs of the data type. */
+  @ColumnInfo(name = ROW_COUNT) val rowCount: Int,
+) {
+  companion object {
+    const val TABLE_NAME = "blob_counts"
+    const val DTD_NAME = "dtdName"
+    const val ROW_COUNT = "rowCount"
+  }
+}
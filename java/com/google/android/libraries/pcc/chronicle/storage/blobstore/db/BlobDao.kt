@@ -25,6 +25,12 @@ import androidx.room.Update
 import com.google.android.libraries.pcc.chronicle.storage.blobstore.QuotaInfo
 import com.google.android.libraries.pcc.chronicle.storage.blobstore.TrimOrder
 
+/**
+ * The number of keys bound by the queries taking a list of keys, which keeps them below SQLite's
+ * default limit of 999 variables per statement.
+ */
+const val MAX_BIND_ARGS = 900
+
 /** Data access object for blob data in [BlobDatabase]. */
 @Dao
 interface BlobDao {
@@ -65,9 +71,7 @@ interface BlobDao {
         removeBlobEntityById(currentEntity.blobEntity.id)
         id = insertBlobIfAbsent(entity)
       } else {
-        update(
-          UpdateBlobEntity(currentEntity.blobEntity.id, entity.updateTimestampMillis, entity.blob)
-        )
+        update(entity.toUpdate(currentEntity.blobEntity.id))
         return
       }
     }
@@ -76,10 +80,31 @@ interface BlobDao {
     packages.forEach { insertPackageIfAbsent(PackageEntity(id, it)) }
   }
 
+  /**
+   * Inserts [BlobEntities][BlobEntity], ignoring those whose key/dtdName pair is already stored.
+   * Returns the ids of the inserted blobs, in order, with -1 for the ignored ones. This is a helper
+   * method and should only be called from [insertOrUpdateBlobsWithPackages].
+   */
+  @Insert(onConflict = OnConflictStrategy.IGNORE)
+  suspend fun insertBlobsIfAbsent(entities: List<BlobEntity>): List<Long>
+
+  /**
+   * Inserts [PackageEntities][PackageEntity], with the same conflict strategy as
+   * [insertPackageIfAbsent]. This is a helper method and should only be called from
+   * [insertOrUpdateBlobsWithPackages].
+   */
+  @Insert(onConflict = OnConflictStrategy.ABORT)
+  suspend fun insertPackagesIfAbsent(blobPackages: List<PackageEntity>)
+
   /**
    * Inserts a collection of [BlobEntities][BlobEntity] and their associated [PackageEntities]
    * [PackageEntity]. If any of the [BlobEntities][BlobEntity] already exist, it is updated
-   * (associated packages not updated).
+   * (associated packages not updated). If a key appears more than once, the last entity wins.
+   *
+   * Unlike calling [insertOrUpdateBlobWithPackages] for each entity, the batch is written with a
+   * constant number of statements per [MAX_BIND_ARGS] keys: expired conflicts are deleted with one
+   * query, the blobs and packages are inserted with one prepared statement each, and the ids of the
+   * blobs to update are looked up with one query.
    */
   @Transaction
   suspend fun insertOrUpdateBlobsWithPackages(
@@ -91,12 +116,36 @@ interface BlobDao {
     require(blobsWithPackagesMap.size <= quotaInfo.maxRowCount) {
       "Number of entities to insert exceeds quota limit."
     }
+    require(blobsWithPackagesMap.keys.all { it.dtdName == dtdName }) {
+      "All entities to insert must have dtdName $dtdName."
+    }
+
+    val entries = blobsWithPackagesMap.entries.associateBy { it.key.key }.values.toList()
+    val keys = entries.map { it.key.key }
+    // Expired blobs are replaced rather than updated, so delete them before inserting.
+    keys.chunked(MAX_BIND_ARGS).forEach { removeExpiredBlobEntitiesByKeys(dtdName, it, threshold) }
 
-    blobsWithPackagesMap.entries.forEach {
-      insertOrUpdateBlobWithPackages(it.key, it.value, threshold)
+    val ids = insertBlobsIfAbsent(entries.map { it.key })
+    val inserted = entries.indices.filter { ids[it] != -1L }
+    insertPackagesIfAbsent(
+      inserted.flatMap { index -> entries[index].value.map { PackageEntity(ids[index], it) } }
+    )
+
+    // An id of -1 means the insert was ignored because the blob is stored and not expired.
+    val updated = entries.indices.filter { ids[it] == -1L }.map { entries[it].key }
+    if (updated.isNotEmpty()) {
+      val storedIds =
+        updated
+          .map { it.key }
+          .chunked(MAX_BIND_ARGS)
+          .flatMap { blobKeysAndIdsByKeysAndDtdName(it, dtdName) }
+          .associate { it.key to it.id }
+      updateAll(
+        updated.mapNotNull { entity -> storedIds[entity.key]?.let { entity.toUpdate(it) } }
+      )
     }
 
-    val rowCount = countBlobsByDtdName(dtdName)
+    val rowCount = rowCountByDtdName(dtdName)
     if (rowCount <= quotaInfo.maxRowCount) {
       return
     }
@@ -114,6 +163,26 @@ interface BlobDao {
    */
   @Update(entity = BlobEntity::class) suspend fun update(updateBlobEntity: UpdateBlobEntity): Int
 
+  /** Performs a partial update of [BlobEntities][BlobEntity], as [update] does for one. */
+  @Update(entity = BlobEntity::class)
+  suspend fun updateAll(updateBlobEntities: List<UpdateBlobEntity>): Int
+
+  /**
+   * Queries the DB for the ids of the [BlobEntities][BlobEntity] with the given keys and dtdName,
+   * regardless of expiry. At most [MAX_BIND_ARGS] keys may be passed.
+   */
+  @Query(
+    """
+    SELECT ${BlobEntity.ID}, ${BlobEntity.KEY} FROM ${BlobEntity.TABLE_NAME}
+    WHERE ${BlobEntity.DTD_NAME} = :dtdName
+      AND ${BlobEntity.KEY} IN (:keys)
+    """
+  )
+  suspend fun blobKeysAndIdsByKeysAndDtdName(
+    keys: List<String>,
+    dtdName: String,
+  ): List<BlobKeyAndId>
+
   /** Queries the DB for a [BlobEntity] and associated [PackageEntity]s by key/dtdName pair. */
   @Transaction
   @Query(
@@ -165,9 +234,97 @@ interface BlobDao {
     threshold: Long,
   ): List<BlobEntityWithPackages>
 
+  /**
+   * Queries the DB for a page of at most [pageSize] [BlobEntities][BlobEntity] with the given
+   * dtdName and their associated [PackageEntities][PackageEntity], ordered by id and starting after
+   * [afterId]. Passing the id of the last blob of a page as [afterId] returns the next page, so
+   * every page is read with an index seek rather than an offset scan.
+   */
+  @Transaction
+  @Query(
+    """
+    SELECT * FROM ${BlobEntity.TABLE_NAME}
+    WHERE ${BlobEntity.DTD_NAME} = :dtdName
+      AND ${BlobEntity.CREATED_TIMESTAMP_MILLIS} >= :threshold
+      AND ${BlobEntity.ID} > :afterId
+    ORDER BY ${BlobEntity.ID} ASC
+    LIMIT :pageSize
+    """
+  )
+  suspend fun blobEntitiesWithPackagesByDtdNameAfterId(
+    dtdName: String,
+    threshold: Long,
+    afterId: Long,
+    pageSize: Int,
+  ): List<BlobEntityWithPackages>
+
+  /**
+   * Queries the DB for the metadata of a [BlobEntity] and its associated packages by key/dtdName
+   * pair, without reading its blob.
+   */
+  @Transaction
+  @Query(
+    """
+    SELECT ${BlobEntity.ID}, ${BlobEntity.KEY}, ${BlobEntity.LOCUS_ID},
+      ${BlobEntity.CREATED_TIMESTAMP_MILLIS}, ${BlobEntity.UPDATE_TIMESTAMP_MILLIS}
+    FROM ${BlobEntity.TABLE_NAME}
+    WHERE ${BlobEntity.KEY} = :key
+      AND ${BlobEntity.DTD_NAME} = :dtdName
+      AND ${BlobEntity.CREATED_TIMESTAMP_MILLIS} >= :threshold
+    """
+  )
+  suspend fun blobMetadataWithPackagesByKeyAndDtdName(
+    key: String,
+    dtdName: String,
+    threshold: Long,
+  ): BlobMetadataWithPackages?
+
+  /**
+   * Queries the DB for the metadata of the [BlobEntities][BlobEntity] with the given dtdName and
+   * their associated packages, ordered by id, without reading their blobs.
+   */
+  @Transaction
+  @Query(
+    """
+    SELECT ${BlobEntity.ID}, ${BlobEntity.KEY}, ${BlobEntity.LOCUS_ID},
+      ${BlobEntity.CREATED_TIMESTAMP_MILLIS}, ${BlobEntity.UPDATE_TIMESTAMP_MILLIS}
+    FROM ${BlobEntity.TABLE_NAME}
+    WHERE ${BlobEntity.DTD_NAME} = :dtdName
+      AND ${BlobEntity.CREATED_TIMESTAMP_MILLIS} >= :threshold
+    ORDER BY ${BlobEntity.ID} ASC
+    """
+  )
+  suspend fun blobMetadataWithPackagesByDtdName(
+    dtdName: String,
+    threshold: Long,
+  ): List<BlobMetadataWithPackages>
+
+  /** Queries the DB for the keys of the [BlobEntities][BlobEntity] with the given dtdName. */
+  @Query(
+    """
+    SELECT ${BlobEntity.KEY} FROM ${BlobEntity.TABLE_NAME}
+    WHERE ${BlobEntity.DTD_NAME} = :dtdName
+      AND ${BlobEntity.CREATED_TIMESTAMP_MILLIS} >= :threshold
+    ORDER BY ${BlobEntity.ID} ASC
+    """
+  )
+  suspend fun blobKeysByDtdName(dtdName: String, threshold: Long): List<String>
+
+  /**
+   * Returns the number of [BlobEntities][BlobEntity] with the given dtdName which are not expired.
+   */
+  @Query(
+    """
+    SELECT COUNT(1) FROM ${BlobEntity.TABLE_NAME}
+    WHERE ${BlobEntity.DTD_NAME} = :dtdName
+      AND ${BlobEntity.CREATED_TIMESTAMP_MILLIS} >= :threshold
+    """
+  )
+  suspend fun countUnexpiredBlobsByDtdName(dtdName: String, threshold: Long): Int
+
   /**
    * Queries the DB for [BlobEntities][BlobEntity] and their associated [PackageEntities]
-   * [PackageEntity] by locusId/dtdName pair.
+   * [PackageEntity] by locusId/dtdName pair, ordered by id.
    */
   @Transaction
   @Query(
@@ -176,6 +333,7 @@ interface BlobDao {
     WHERE ${BlobEntity.LOCUS_ID} = :locusId
       AND ${BlobEntity.DTD_NAME} = :dtdName
       AND ${BlobEntity.CREATED_TIMESTAMP_MILLIS} >= :threshold
+    ORDER BY ${BlobEntity.ID} ASC
     """
   )
   suspend fun blobEntitiesWithPackagesByLocusIdAndDtdName(
@@ -247,13 +405,35 @@ interface BlobDao {
 
   /**
    * Deletes [BlobEntities][BlobEntity] with specified packageName. Any [PackageEntities]
-   * [PackageEntity] with blobIds equal to the deleted entities' ids will also be deleted.
+   * [PackageEntity] with blobIds equal to the deleted entities' ids will also be deleted. Returns
+   * the number of deleted [BlobEntities][BlobEntity].
    */
-  @Transaction
-  suspend fun removeBlobAndPackageEntitiesByPackageName(packageName: String): Int {
-    val packageEntities = packagesByPackageName(packageName)
-    return packageEntities.map { it.blobId }.toSet().sumOf { removeBlobEntityById(it) }
-  }
+  @Query(
+    """
+    DELETE FROM ${BlobEntity.TABLE_NAME}
+    WHERE ${BlobEntity.ID} IN (
+      SELECT ${PackageEntity.BLOB_ID} FROM ${PackageEntity.TABLE_NAME}
+      WHERE ${PackageEntity.PACKAGE_NAME} = :packageName
+    )
+    """
+  )
+  suspend fun removeBlobAndPackageEntitiesByPackageName(packageName: String): Int
+
+  /**
+   * Deletes [BlobEntities][BlobEntity] associated with any of the given packageNames, and their
+   * [PackageEntities][PackageEntity]. At most [MAX_BIND_ARGS] packageNames may be passed. Returns
+   * the number of deleted [BlobEntities][BlobEntity].
+   */
+  @Query(
+    """
+    DELETE FROM ${BlobEntity.TABLE_NAME}
+    WHERE ${BlobEntity.ID} IN (
+      SELECT ${PackageEntity.BLOB_ID} FROM ${PackageEntity.TABLE_NAME}
+      WHERE ${PackageEntity.PACKAGE_NAME} IN (:packageNames)
+    )
+    """
+  )
+  suspend fun removeBlobAndPackageEntitiesByPackageNames(packageNames: List<String>): Int
 
   /** Deletes [BlobEntities][BlobEntity] with specified dtdName. */
   @Query("DELETE FROM ${BlobEntity.TABLE_NAME} WHERE ${BlobEntity.DTD_NAME} = :dtdName")
@@ -278,6 +458,25 @@ interface BlobDao {
   )
   suspend fun removeExpiredBlobEntitiesByDtdName(dtdName: String, threshold: Long): Int
 
+  /**
+   * Deletes expired [BlobEntities][BlobEntity] with specified dtdName and keys. At most
+   * [MAX_BIND_ARGS] keys may be passed. This is a helper function for
+   * [insertOrUpdateBlobsWithPackages] and shouldn't be called directly by any other function.
+   */
+  @Query(
+    """
+    DELETE FROM ${BlobEntity.TABLE_NAME}
+    WHERE ${BlobEntity.DTD_NAME} = :dtdName
+      AND ${BlobEntity.KEY} IN (:keys)
+      AND ${BlobEntity.CREATED_TIMESTAMP_MILLIS} < :threshold
+    """
+  )
+  suspend fun removeExpiredBlobEntitiesByKeys(
+    dtdName: String,
+    keys: List<String>,
+    threshold: Long,
+  ): Int
+
   /**
    * Deletes [BlobEntities][BlobEntity] with specified dtdName between the time period between the
    * provided start and end times. Returns the number of rows deleted. This method should only be
@@ -329,19 +528,102 @@ interface BlobDao {
   suspend fun countBlobsByDtdName(dtdName: String): Int
 
   /**
-   * Returns list of distinct package names in package table. This is a helper function and should
-   * not be called directly.
+   * Returns the number of [BlobEntities][BlobEntity] with specified dtdName from the table of blob
+   * counts, or null if it holds no count for the dtdName.
    */
-  @Query("SELECT * FROM ${PackageEntity.TABLE_NAME}") suspend fun allPackages(): List<PackageEntity>
+  @Query(
+    """
+    SELECT ${BlobCountEntity.ROW_COUNT} FROM ${BlobCountEntity.TABLE_NAME}
+    WHERE ${BlobCountEntity.DTD_NAME} = :dtdName
+    """
+  )
+  suspend fun blobCountByDtdName(dtdName: String): Int?
+
+  /**
+   * Returns the number of [BlobEntities][BlobEntity] with specified dtdName, with a primary key
+   * lookup of the count maintained by [BlobDatabase.CALLBACK]. Without that count, e.g. if the
+   * database was built without the callback, the blobs are counted with [countBlobsByDtdName].
+   */
+  suspend fun rowCountByDtdName(dtdName: String): Int =
+    blobCountByDtdName(dtdName) ?: countBlobsByDtdName(dtdName)
+
+  /**
+   * Returns the creation time of the oldest [BlobEntity] with specified dtdName, or null if there
+   * is none. Used to schedule the next deletion of expired entities.
+   */
+  @Query(
+    """
+    SELECT MIN(${BlobEntity.CREATED_TIMESTAMP_MILLIS}) FROM ${BlobEntity.TABLE_NAME}
+    WHERE ${BlobEntity.DTD_NAME} = :dtdName
+    """
+  )
+  suspend fun earliestCreatedTimestampMillisByDtdName(dtdName: String): Long?
+
+  /** Returns the location of every blob stored in a segment file rather than in the table. */
+  @Query(
+    """
+    SELECT ${BlobEntity.ID}, ${BlobEntity.SEGMENT_ID}, ${BlobEntity.SEGMENT_OFFSET},
+      ${BlobEntity.SEGMENT_LENGTH}
+    FROM ${BlobEntity.TABLE_NAME}
+    WHERE ${BlobEntity.SEGMENT_ID} IS NOT NULL
+    """
+  )
+  suspend fun segmentBlobLocations(): List<SegmentBlobLocation>
+
+  /** Returns the location of every blob stored in the segment file with the given id. */
+  @Query(
+    """
+    SELECT ${BlobEntity.ID}, ${BlobEntity.SEGMENT_ID}, ${BlobEntity.SEGMENT_OFFSET},
+      ${BlobEntity.SEGMENT_LENGTH}
+    FROM ${BlobEntity.TABLE_NAME}
+    WHERE ${BlobEntity.SEGMENT_ID} = :segmentId
+    """
+  )
+  suspend fun segmentBlobLocationsBySegmentId(segmentId: Long): List<SegmentBlobLocation>
+
+  /**
+   * Points the [BlobEntity] with specified id to a copy of its blob in another segment file, unless
+   * it no longer points to [location], e.g. because it was updated meanwhile. Returns the number of
+   * rows updated. This method should only be called by BlobStore Management.
+   */
+  @Query(
+    """
+    UPDATE ${BlobEntity.TABLE_NAME}
+    SET ${BlobEntity.SEGMENT_ID} = :newSegmentId, ${BlobEntity.SEGMENT_OFFSET} = :newSegmentOffset
+    WHERE ${BlobEntity.ID} = :id
+      AND ${BlobEntity.SEGMENT_ID} = :segmentId
+      AND ${BlobEntity.SEGMENT_OFFSET} = :segmentOffset
+    """
+  )
+  suspend fun moveSegmentBlob(
+    id: Long,
+    segmentId: Long,
+    segmentOffset: Long,
+    newSegmentId: Long,
+    newSegmentOffset: Long,
+  ): Int
+
+  /**
+   * Returns the distinct package names in the package table, read from its packageName index. This
+   * is a helper function and should not be called directly.
+   */
+  @Query("SELECT DISTINCT ${PackageEntity.PACKAGE_NAME} FROM ${PackageEntity.TABLE_NAME}")
+  suspend fun distinctPackageNames(): List<String>
 
   /**
    * Deletes all entities and packages associated with those entities that are not in the provided
    * allowed packages list. Returns the number of rows deleted.
+   *
+   * Only the distinct package names are read, from the packageName index. The entities of the
+   * packages which are not allowed are then deleted with one statement per [MAX_BIND_ARGS]
+   * packages, so the entities which are kept are never loaded.
    */
   @Transaction
   suspend fun deleteNotAllowedPackages(allowedPackages: Set<String>): Int {
-    val packagesToRemove = allPackages().map { it.packageName }.distinct() - allowedPackages
-    return packagesToRemove.sumOf { removeBlobAndPackageEntitiesByPackageName(it) }
+    val packagesToRemove = distinctPackageNames().filterNot { it in allowedPackages }
+    return packagesToRemove.chunked(MAX_BIND_ARGS).sumOf {
+      removeBlobAndPackageEntitiesByPackageNames(it)
+    }
   }
 
   private fun BlobEntityWithPackages.isExpired(threshold: Long): Boolean =
@@ -18,9 +18,126 @@ package com.google.android.libraries.pcc.chronicle.storage.blobstore.db
 
 import androidx.room.Database
 import androidx.room.RoomDatabase
+import androidx.room.migration.Migration
+import androidx.sqlite.db.SupportSQLiteDatabase
 
-/** Database for Blobstore. */
-@Database(entities = [BlobEntity::class, PackageEntity::class], version = 1, exportSchema = false)
+/**
+ * Database for Blobstore.
+ *
+ * Builders should add [MIGRATIONS] and [CALLBACK], which maintains the blob counts used by quota
+ * checks. Without it, [BlobDao.rowCountByDtdName] falls back to counting the blobs.
+ */
+@Database(
+  entities = [BlobEntity::class, PackageEntity::class, BlobCountEntity::class],
+  version = 5,
+  exportSchema = false,
+)
 abstract class BlobDatabase : RoomDatabase() {
   abstract fun blobDao(): BlobDao
+
+  companion object {
+    /** Adds the indexes used by expiry, quota trims and package queries. */
+    val MIGRATION_1_2 =
+      object : Migration(1, 2) {
+        override fun migrate(database: SupportSQLiteDatabase) {
+          database.execSQL(
+            "CREATE INDEX IF NOT EXISTS `index_blobs_dtdName_createdTimestampMillis` " +
+              "ON `blobs` (`dtdName`, `createdTimestampMillis`)"
+          )
+          database.execSQL(
+            "CREATE INDEX IF NOT EXISTS `index_blobs_dtdName_id` ON `blobs` (`dtdName`, `id`)"
+          )
+          database.execSQL(
+            "CREATE INDEX IF NOT EXISTS `index_blobs_createdTimestampMillis` " +
+              "ON `blobs` (`createdTimestampMillis`)"
+          )
+          database.execSQL(
+            "CREATE INDEX IF NOT EXISTS `index_packages_packageName` ON `packages` (`packageName`)"
+          )
+        }
+      }
+
+    /** Adds the columns locating blobs stored in segment files. */
+    val MIGRATION_2_3 =
+      object : Migration(2, 3) {
+        override fun migrate(database: SupportSQLiteDatabase) {
+          database.execSQL("ALTER TABLE `blobs` ADD COLUMN `segmentId` INTEGER")
+          database.execSQL("ALTER TABLE `blobs` ADD COLUMN `segmentOffset` INTEGER")
+          database.execSQL("ALTER TABLE `blobs` ADD COLUMN `segmentLength` INTEGER")
+          database.execSQL(
+            "CREATE INDEX IF NOT EXISTS `index_blobs_segmentId` ON `blobs` (`segmentId`)"
+          )
+        }
+      }
+
+    /** Adds the index used by lookups by locus. */
+    val MIGRATION_3_4 =
+      object : Migration(3, 4) {
+        override fun migrate(database: SupportSQLiteDatabase) {
+          database.execSQL(
+            "CREATE INDEX IF NOT EXISTS `index_blobs_dtdName_locusId` " +
+              "ON `blobs` (`dtdName`, `locusId`)"
+          )
+        }
+      }
+
+    /** Adds the table of blob counts, and the triggers maintaining it. */
+    val MIGRATION_4_5 =
+      object : Migration(4, 5) {
+        override fun migrate(database: SupportSQLiteDatabase) {
+          database.execSQL(
+            "CREATE TABLE IF NOT EXISTS `blob_counts` (`dtdName` TEXT NOT NULL, " +
+              "`rowCount` INTEGER NOT NULL, PRIMARY KEY(`dtdName`))"
+          )
+          createBlobCountTriggers(database)
+          reconcileBlobCounts(database)
+        }
+      }
+
+    /** Every migration of [BlobDatabase], to be added to its builder. */
+    val MIGRATIONS: Array<Migration> =
+      arrayOf(MIGRATION_1_2, MIGRATION_2_3, MIGRATION_3_4, MIGRATION_4_5)
+
+    /**
+     * Creates the triggers counting the blobs of each dtdName when the database is opened, and
+     * recounts them so that the counts are exact even if the triggers were missing for a while.
+     */
+    val CALLBACK =
+      object : Callback() {
+        override fun onOpen(db: SupportSQLiteDatabase) {
+          db.beginTransaction()
+          try {
+            createBlobCountTriggers(db)
+            reconcileBlobCounts(db)
+            db.setTransactionSuccessful()
+          } finally {
+            db.endTransaction()
+          }
+        }
+      }
+
+    private fun createBlobCountTriggers(database: SupportSQLiteDatabase) {
+      // Blobs never change dtdName, and inserts ignored on conflict don't fire the insert trigger.
+      database.execSQL(
+        "CREATE TRIGGER IF NOT EXISTS `blob_counts_after_insert` AFTER INSERT ON `blobs` BEGIN " +
+          "INSERT OR IGNORE INTO `blob_counts` (`dtdName`, `rowCount`) " +
+          "VALUES (NEW.`dtdName`, 0); " +
+          "UPDATE `blob_counts` SET `rowCount` = `rowCount` + 1 WHERE `dtdName` = NEW.`dtdName`; " +
+          "END"
+      )
+      database.execSQL(
+        "CREATE TRIGGER IF NOT EXISTS `blob_counts_after_delete` AFTER DELETE ON `blobs` BEGIN " +
+          "UPDATE `blob_counts` SET `rowCount` = `rowCount` - 1 WHERE `dtdName` = OLD.`dtdName`; " +
+          "END"
+      )
+    }
+
+    private fun reconcileBlobCounts(database: SupportSQLiteDatabase) {
+      database.execSQL("DELETE FROM `blob_counts`")
+      database.execSQL(
+        "INSERT INTO `blob_counts` (`dtdName`, `rowCount`) " +
+          "SELECT `dtdName`, COUNT(1) FROM `blobs` GROUP BY `dtdName`"
+      )
+    }
+  }
 }
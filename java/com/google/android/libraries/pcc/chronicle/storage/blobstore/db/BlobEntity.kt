@@ -23,8 +23,27 @@ import androidx.room.Index
 import androidx.room.PrimaryKey
 import androidx.room.Relation
 
-/** Defines a table for storing Blob Entities. */
-@Entity(tableName = "blobs", indices = [Index(value = ["key", "dtdName"], unique = true)])
+/**
+ * Defines a table for storing Blob Entities.
+ *
+ * Besides the unique key/dtdName index, the table is indexed for the maintenance queries of
+ * [BlobDao]: expiry deletions and [BlobDao.earliestCreatedTimestampMillisByDtdName] seek on
+ * dtdName/createdTimestampMillis, the quota trims read ids in order from dtdName/id, and deletions
+ * by creation time range seek on createdTimestampMillis. Blobs stored in segment files are indexed
+ * by segment, for their compaction, and lookups by locus seek on dtdName/locusId.
+ */
+@Entity(
+  tableName = "blobs",
+  indices =
+    [
+      Index(value = ["key", "dtdName"], unique = true),
+      Index(value = ["dtdName", "createdTimestampMillis"]),
+      Index(value = ["dtdName", "id"]),
+      Index(value = ["createdTimestampMillis"]),
+      Index(value = ["segmentId"]),
+      Index(value = ["dtdName", "locusId"]),
+    ],
+)
 data class BlobEntity(
   /** Unique ID for this blob entity, auto generated if not provided. */
   @PrimaryKey(autoGenerate = true) val id: Long = 0,
@@ -38,8 +57,14 @@ data class BlobEntity(
   @ColumnInfo(name = UPDATE_TIMESTAMP_MILLIS) val updateTimestampMillis: Long,
   /** The name of the blob data type. */
   @ColumnInfo(name = DTD_NAME) val dtdName: String,
-  /** The serialized blob. */
+  /** The serialized blob, or an empty array if it is stored in a segment file. */
   @ColumnInfo(name = BLOB) val blob: ByteArray,
+  /** The segment file holding the serialized blob, or null if it is stored in [blob]. */
+  @ColumnInfo(name = SEGMENT_ID) val segmentId: Long? = null,
+  /** The offset of the serialized blob in its segment file. */
+  @ColumnInfo(name = SEGMENT_OFFSET) val segmentOffset: Long? = null,
+  /** The size of the serialized blob in its segment file. */
+  @ColumnInfo(name = SEGMENT_LENGTH) val segmentLength: Int? = null,
 ) {
   companion object {
     const val TABLE_NAME = "blobs"
@@ -50,8 +75,15 @@ data class BlobEntity(
     const val UPDATE_TIMESTAMP_MILLIS = "updateTimestampMillis"
     const val DTD_NAME = "dtdName"
     const val BLOB = "blob"
+    const val SEGMENT_ID = "segmentId"
+    const val SEGMENT_OFFSET = "segmentOffset"
+    const val SEGMENT_LENGTH = "segmentLength"
   }
 
+  /** Returns the partial update of the blob stored with [id] to the contents of this entity. */
+  fun toUpdate(id: Long): UpdateBlobEntity =
+    UpdateBlobEntity(id, updateTimestampMillis, blob, segmentId, segmentOffset, segmentLength)
+
   override fun equals(other: Any?): Boolean {
     if (this === other) return true
     if (other !is BlobEntity) return false
@@ -63,6 +95,9 @@ data class BlobEntity(
     if (updateTimestampMillis != other.updateTimestampMillis) return false
     if (dtdName != other.dtdName) return false
     if (!blob.contentEquals(other.blob)) return false
+    if (segmentId != other.segmentId) return false
+    if (segmentOffset != other.segmentOffset) return false
+    if (segmentLength != other.segmentLength) return false
 
     return true
   }
@@ -75,6 +110,9 @@ data class BlobEntity(
     result = 31 * result + updateTimestampMillis.hashCode()
     result = 31 * result + dtdName.hashCode()
     result = 31 * result + blob.contentHashCode()
+    result = 31 * result + (segmentId?.hashCode() ?: 0)
+    result = 31 * result + (segmentOffset?.hashCode() ?: 0)
+    result = 31 * result + (segmentLength ?: 0)
     return result
   }
 }
@@ -90,11 +128,58 @@ data class BlobEntityWithPackages(
   @Relation(parentColumn = "id", entityColumn = "blobId") val packages: List<PackageEntity>,
 )
 
+/** Intermediate data class representing the columns of a [BlobEntity] other than its blob. */
+data class BlobMetadata(
+  @ColumnInfo(name = BlobEntity.ID) val id: Long,
+  @ColumnInfo(name = BlobEntity.KEY) val key: String,
+  @ColumnInfo(name = BlobEntity.LOCUS_ID) val locusId: String,
+  @ColumnInfo(name = BlobEntity.CREATED_TIMESTAMP_MILLIS) val createdTimestampMillis: Long,
+  @ColumnInfo(name = BlobEntity.UPDATE_TIMESTAMP_MILLIS) val updateTimestampMillis: Long,
+)
+
+/**
+ * Intermediate data class representing the [BlobMetadata] of a [BlobEntity] and the names of its
+ * associated packages from the Package table.
+ */
+data class BlobMetadataWithPackages(
+  /** The metadata of the blob entity. */
+  @Embedded val blobMetadata: BlobMetadata,
+  /** Names of the packages associated with the blob entity. */
+  @Relation(
+    parentColumn = BlobEntity.ID,
+    entityColumn = PackageEntity.BLOB_ID,
+    entity = PackageEntity::class,
+    projection = [PackageEntity.PACKAGE_NAME],
+  )
+  val packageNames: List<String>,
+)
+
+/** Intermediate data class representing where the blob of a [BlobEntity] is in a segment file. */
+data class SegmentBlobLocation(
+  @ColumnInfo(name = BlobEntity.ID) val id: Long,
+  @ColumnInfo(name = BlobEntity.SEGMENT_ID) val segmentId: Long,
+  @ColumnInfo(name = BlobEntity.SEGMENT_OFFSET) val segmentOffset: Long,
+  @ColumnInfo(name = BlobEntity.SEGMENT_LENGTH) val segmentLength: Int,
+)
+
+/** Intermediate data class representing the id of the [BlobEntity] stored with a key. */
+data class BlobKeyAndId(
+  @ColumnInfo(name = BlobEntity.ID) val id: Long,
+  @ColumnInfo(name = BlobEntity.KEY) val key: String,
+)
+
 /**
  * Intermediate data class representing a partial [BlobEntity] that can be used to update an
  * existing entry.
  */
-data class UpdateBlobEntity(val id: Long, val updateTimestampMillis: Long, val blob: ByteArray) {
+data class UpdateBlobEntity(
+  val id: Long,
+  val updateTimestampMillis: Long,
+  val blob: ByteArray,
+  val segmentId: Long? = null,
+  val segmentOffset: Long? = null,
+  val segmentLength: Int? = null,
+) {
   override fun equals(other: Any?): Boolean {
     if (this === other) return true
     if (other !is UpdateBlobEntity) return false
@@ -102,6 +187,9 @@ data class UpdateBlobEntity(val id: Long, val updateTimestampMillis: Long, val b
     if (id != other.id) return false
     if (updateTimestampMillis != other.updateTimestampMillis) return false
     if (!blob.contentEquals(other.blob)) return false
+    if (segmentId != other.segmentId) return false
+    if (segmentOffset != other.segmentOffset) return false
+    if (segmentLength != other.segmentLength) return false
 
     return true
   }
@@ -110,6 +198,9 @@ data class UpdateBlobEntity(val id: Long, val updateTimestampMillis: Long, val b
     var result = id.hashCode()
     result = 31 * result + updateTimestampMillis.hashCode()
     result = 31 * result + blob.contentHashCode()
+    result = 31 * result + (segmentId?.hashCode() ?: 0)
+    result = 31 * result + (segmentOffset?.hashCode() ?: 0)
+    result = 31 * result + (segmentLength ?: 0)
     return result
   }
 }
@@ -19,6 +19,7 @@ package com.google.android.libraries.pcc.chronicle.storage.blobstore.db
 import androidx.room.ColumnInfo
 import androidx.room.Entity
 import androidx.room.ForeignKey
+import androidx.room.Index
 
 /** Defines a table for storing Packages. */
 @Entity(
@@ -37,6 +38,8 @@ import androidx.room.ForeignKey
       )
     ],
   primaryKeys = ["blobId", "packageName"],
+  // Lets removals and reads by package name seek rather than scan the table.
+  indices = [Index(value = ["packageName"])],
 )
 data class PackageEntity(
   /** The blob id associated with this package entity. */
@@ -44,16 +44,16 @@ class InMemoryBlobStore<T>(private val store: CacheWrapper<T>, private val timeS
                 associatedPackageNames = currentEntity.metadata.associatedPackageNamesList,
                 created = currentEntity.metadata.created.toInstant(),
                 updated = timeSource.now(),
+                locusId = currentEntity.metadata.locusId,
               ),
             entity = wrappedEntity.entity,
           )
-        store.cache.put(updatedEntity.metadata.id, updatedEntity)
+        store.cache.putEntity(updatedEntity)
         return
       }
     }
     val timestamp = timeSource.now()
-    store.cache.put(
-      wrappedEntity.metadata.id,
+    store.cache.putEntity(
       wrappedEntity.copy(
         metadata =
           EntityMetadata(
@@ -61,8 +61,9 @@ class InMemoryBlobStore<T>(private val store: CacheWrapper<T>, private val timeS
             associatedPackageNames = wrappedEntity.metadata.associatedPackageNamesList,
             created = timestamp,
             updated = timestamp,
+            locusId = wrappedEntity.metadata.locusId,
           )
-      ),
+      )
     )
   }
 
@@ -78,6 +79,10 @@ class InMemoryBlobStore<T>(private val store: CacheWrapper<T>, private val timeS
     return store.cache.snapshot().values.filterNot { it.isExpired() }
   }
 
+  override suspend fun getEntitiesByLocusId(locusId: String): List<WrappedEntity<T>> {
+    return store.cache.getByLocusId(locusId).filterNot { it.isExpired() }
+  }
+
   override suspend fun removeEntityByKey(key: String) {
     store.cache.remove(key)
   }
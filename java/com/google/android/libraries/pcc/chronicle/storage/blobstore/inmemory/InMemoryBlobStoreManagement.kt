@@ -70,6 +70,19 @@ class InMemoryBlobStoreManagement(private val inMemoryStorage: InMemoryStorage)
     }
   }
 
+  override suspend fun nextExpiryMillis(managementInfos: Set<ManagementInfo>): Long? {
+    return inMemoryStorage.store.value.values
+      .mapNotNull { cache ->
+        val earliestCreatedMillis =
+          cache.cache.snapshot().values.minOfOrNull {
+            it.metadata.created.toInstant().toEpochMilli()
+          } ?: return@mapNotNull null
+        // Entities expire once created + ttl is strictly before the current time.
+        earliestCreatedMillis + cache.managementInfo.ttlMillis + 1
+      }
+      .minOrNull()
+  }
+
   private suspend fun CacheWrapper<*>.purgeEntitiesWhere(
     predicate: (WrappedEntity<*>) -> Boolean
   ): Int {
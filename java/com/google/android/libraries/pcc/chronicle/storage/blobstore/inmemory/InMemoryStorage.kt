@@ -36,8 +36,7 @@ class InMemoryStorage {
       if (cache != null) {
         return@update currentStore
       }
-      val newCache =
-        CacheWrapper(LruCache<String, WrappedEntity<T>>(managementInfo.maxItems), managementInfo)
+      val newCache = CacheWrapper(LocusIndexedCache<T>(managementInfo.maxItems), managementInfo)
       return@update currentStore + (managementInfo.dtdName to newCache)
     }
     return store.value[managementInfo.dtdName] as CacheWrapper<T>
@@ -45,6 +44,45 @@ class InMemoryStorage {
 }
 
 data class CacheWrapper<T>(
-  val cache: LruCache<String, WrappedEntity<T>>,
+  val cache: LocusIndexedCache<T>,
   val managementInfo: InMemoryManagementInfo,
 )
+
+/**
+ * An [LruCache] of entities keyed by id, with a secondary index of the ids of the entities of each
+ * locus.
+ *
+ * Entities must be added with [putEntity] to be indexed. Entities removed in any way, including
+ * evictions, are unindexed by [entryRemoved].
+ */
+class LocusIndexedCache<T>(maxSize: Int) : LruCache<String, WrappedEntity<T>>(maxSize) {
+  private val keysByLocusId = HashMap<String, MutableSet<String>>()
+
+  /** Caches [entity] by its id and indexes it by its locus. */
+  fun putEntity(entity: WrappedEntity<T>) {
+    // Held across the put so that a concurrent removal of the key is only unindexed after this.
+    synchronized(keysByLocusId) {
+      put(entity.metadata.id, entity)
+      keysByLocusId.getOrPut(entity.metadata.locusId) { HashSet() }.add(entity.metadata.id)
+    }
+  }
+
+  /** Returns the cached entities whose locus is [locusId]. */
+  fun getByLocusId(locusId: String): List<WrappedEntity<T>> {
+    val keys = synchronized(keysByLocusId) { keysByLocusId[locusId]?.toList().orEmpty() }
+    return keys.mapNotNull { key -> get(key)?.takeIf { it.metadata.locusId == locusId } }
+  }
+
+  override fun entryRemoved(
+    evicted: Boolean,
+    key: String,
+    oldValue: WrappedEntity<T>,
+    newValue: WrappedEntity<T>?,
+  ) {
+    synchronized(keysByLocusId) {
+      val keys = keysByLocusId[oldValue.metadata.locusId] ?: return
+      keys.remove(key)
+      if (keys.isEmpty()) keysByLocusId.remove(oldValue.metadata.locusId)
+    }
+  }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.pcc.chronicle.storage.blobstore.persisted
+
+import java.io.File
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+import java.util.TreeMap
+
+/** The location of a blob in the segment files of a [BlobSegmentStore]. */
+data class SegmentPointer(val segmentId: Long, val offset: Long, val length: Int)
+
+/**
+ * Stores large blobs outside of the blob database, in append-only segment files in [directory], so
+ * that they don't bloat the pages scanned by the database's queries.
+ *
+ * Blobs are appended to the active segment until it reaches [maxSegmentSize], at which point it is
+ * sealed and a new one is started. Reads go through a read-only memory-mapped view of the segment.
+ * Segments are never modified once written: the space of blobs which are no longer referenced is
+ * reclaimed by [PersistedBlobStoreManagement], which copies the blobs still referenced by a sealed
+ * segment to the active one and then deletes the sealed segment.
+ *
+ * Compaction runs concurrently with writes and reads, which hold segment pointers that it can't see
+ * in the database: a pointer returned by [append] pins its segment, so that it isn't compacted,
+ * until it's committed to the database and [unpin]ned, and the deletion of a segment is deferred
+ * until the [reading] blocks which may have read a pointer into it have returned.
+ *
+ * @param minExternalSize the size from which [PersistedBlobStore] stores blobs here rather than in
+ *   the database.
+ */
+class BlobSegmentStore(
+  private val directory: File,
+  val minExternalSize: Int = DEFAULT_MIN_EXTERNAL_SIZE,
+  private val maxSegmentSize: Long = DEFAULT_MAX_SEGMENT_SIZE,
+) {
+  private var activeSegmentId: Long
+  private var activeChannel: FileChannel? = null
+  private val mappedSegments = HashMap<Long, MappedByteBuffer>()
+  private val pinCounts = HashMap<Long, Int>()
+  private var readEpoch = 0L
+  private val readersByEpoch = TreeMap<Long, Int>()
+  /** The deleted segments still on disk, with the last read epoch which may reference them. */
+  private val deferredDeletions = HashMap<Long, Long>()
+
+  init {
+    require(minExternalSize > 0 && maxSegmentSize > 0) { "Sizes must be positive." }
+    // Mapped views are indexed by Int.
+    require(maxSegmentSize <= Int.MAX_VALUE) { "maxSegmentSize must be at most 2 GiB." }
+    directory.mkdirs()
+    activeSegmentId = (segmentIds().maxOrNull() ?: 0) + 1
+  }
+
+  /**
+   * Appends [bytes] to the active segment, and returns where they were written. The segment stays
+   * pinned until the returned pointer is passed to [unpin], once it's committed or abandoned.
+   */
+  fun append(bytes: ByteArray): SegmentPointer =
+    synchronized(this) {
+      var channel = activeChannel ?: openActiveSegment()
+      if (channel.size() > 0 && channel.size() + bytes.size > maxSegmentSize) {
+        sealActiveSegment()
+        channel = openActiveSegment()
+      }
+      val offset = channel.size()
+      val buffer = ByteBuffer.wrap(bytes)
+      while (buffer.hasRemaining()) channel.write(buffer)
+      // The pointer is committed to the database after this returns, so the bytes must be durable.
+      channel.force(false)
+      pinCounts.increment(activeSegmentId)
+      SegmentPointer(activeSegmentId, offset, bytes.size)
+    }
+
+  /** Releases the pin taken by the [append] which returned [pointer]. */
+  fun unpin(pointer: SegmentPointer) {
+    synchronized(this) { pinCounts.decrement(pointer.segmentId) }
+  }
+
+  /**
+   * Runs [block], which reads pointers from the database and then their blobs, so that the segments
+   * deleted meanwhile are only removed from disk once it returns.
+   */
+  inline fun <R> reading(block: () -> R): R {
+    val epoch = enterReading()
+    try {
+      return block()
+    } finally {
+      exitReading(epoch)
+    }
+  }
+
+  /** Returns the blob at [pointer]. */
+  fun read(pointer: SegmentPointer): ByteArray {
+    val view = mappedView(pointer.segmentId, pointer.offset + pointer.length).duplicate()
+    view.position(pointer.offset.toInt())
+    return ByteArray(pointer.length).also { view.get(it) }
+  }
+
+  /** Returns the ids of the sealed segments, which are no longer written to. */
+  fun sealedSegmentIds(): List<Long> =
+    synchronized(this) {
+      segmentIds().filter { it != activeSegmentId && it !in deferredDeletions }.sorted()
+    }
+
+  /**
+   * Returns the ids of the sealed segments which aren't pinned. As no blob is appended to a sealed
+   * segment, every pointer into them is already committed to the database.
+   */
+  fun compactableSegmentIds(): List<Long> =
+    synchronized(this) { sealedSegmentIds().filter { it !in pinCounts } }
+
+  /** Returns the size of the segment with the given id, in bytes. */
+  fun segmentSize(segmentId: Long): Long = segmentFile(segmentId).length()
+
+  /**
+   * Seals the active segment, if it holds any blob, so that a following compaction can reclaim the
+   * space of its unreferenced blobs.
+   */
+  fun sealActiveSegment() {
+    synchronized(this) {
+      val channel = activeChannel ?: return
+      if (channel.size() == 0L) return
+      channel.close()
+      activeChannel = null
+      activeSegmentId++
+    }
+  }
+
+  /**
+   * Deletes a sealed segment, which the database must no longer reference. The file is removed once
+   * the [reading] blocks started before this call have returned.
+   */
+  fun deleteSegment(segmentId: Long) {
+    synchronized(this) {
+      require(segmentId != activeSegmentId) { "The active segment can't be deleted." }
+      require(segmentId !in pinCounts) { "A pinned segment can't be deleted." }
+      deferredDeletions[segmentId] = readEpoch
+      // Readers entering from now on read pointers which no longer reference the segment.
+      readEpoch++
+      removeDeferredDeletions()
+    }
+  }
+
+  @PublishedApi
+  internal fun enterReading(): Long =
+    synchronized(this) {
+      readersByEpoch.increment(readEpoch)
+      readEpoch
+    }
+
+  @PublishedApi
+  internal fun exitReading(epoch: Long) {
+    synchronized(this) {
+      readersByEpoch.decrement(epoch)
+      removeDeferredDeletions()
+    }
+  }
+
+  private fun removeDeferredDeletions() {
+    val oldestReaderEpoch = if (readersByEpoch.isEmpty()) readEpoch else readersByEpoch.firstKey()
+    val iterator = deferredDeletions.iterator()
+    while (iterator.hasNext()) {
+      val (segmentId, epoch) = iterator.next()
+      if (epoch >= oldestReaderEpoch) continue
+      mappedSegments.remove(segmentId)
+      segmentFile(segmentId).delete()
+      iterator.remove()
+    }
+  }
+
+  private fun MutableMap<Long, Int>.increment(key: Long) {
+    this[key] = (this[key] ?: 0) + 1
+  }
+
+  private fun MutableMap<Long, Int>.decrement(key: Long) {
+    val count = checkNotNull(this[key]) { "Unbalanced release of $key." }
+    if (count == 1) remove(key) else this[key] = count - 1
+  }
+
+  private fun mappedView(segmentId: Long, minSize: Long): MappedByteBuffer =
+    synchronized(this) {
+      mappedSegments[segmentId]?.takeIf { it.capacity() >= minSize }
+        ?: FileChannel.open(segmentFile(segmentId).toPath(), StandardOpenOption.READ)
+          .use { it.map(FileChannel.MapMode.READ_ONLY, 0, it.size()) }
+          .also {
+            check(it.capacity() >= minSize) { "Blob segment $segmentId is truncated." }
+            mappedSegments[segmentId] = it
+          }
+    }
+
+  private fun openActiveSegment(): FileChannel =
+    FileChannel.open(
+        segmentFile(activeSegmentId).toPath(),
+        StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE,
+        StandardOpenOption.APPEND,
+      )
+      .also { activeChannel = it }
+
+  private fun segmentIds(): List<Long> =
+    directory
+      .list()
+      .orEmpty()
+      .filter { it.startsWith(SEGMENT_PREFIX) }
+      .mapNotNull { it.removePrefix(SEGMENT_PREFIX).toLongOrNull() }
+
+  private fun segmentFile(segmentId: Long) = File(directory, "$SEGMENT_PREFIX$segmentId")
+
+  companion object {
+    const val DEFAULT_MIN_EXTERNAL_SIZE = 64 * 1024
+    const val DEFAULT_MAX_SEGMENT_SIZE = 16L * 1024 * 1024
+    private const val SEGMENT_PREFIX = "segment_"
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.pcc.chronicle.storage.blobstore.persisted
+
+import com.google.android.libraries.pcc.chronicle.storage.blobstore.db.BlobEntity
+import java.time.Duration
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withTimeoutOrNull
+
+/**
+ * Configures the write-behind mode of [PersistedBlobStore.putEntity], where concurrent writes are
+ * committed together in a single transaction.
+ *
+ * @param maxBatchSize the largest number of writes committed in one transaction.
+ * @param maxDelay how long a write may wait for others to join its transaction before it is
+ *   committed. With a zero delay, only the writes queued while a previous transaction was being
+ *   committed are grouped.
+ */
+data class GroupCommitConfig(
+  val maxBatchSize: Int = DEFAULT_MAX_BATCH_SIZE,
+  val maxDelay: Duration = DEFAULT_MAX_DELAY,
+) {
+  init {
+    require(maxBatchSize > 0) { "maxBatchSize must be positive." }
+    require(!maxDelay.isNegative) { "maxDelay must not be negative." }
+  }
+
+  companion object {
+    const val DEFAULT_MAX_BATCH_SIZE = 64
+    val DEFAULT_MAX_DELAY: Duration = Duration.ofMillis(5)
+  }
+}
+
+/**
+ * Groups concurrent single-entity writes into batches committed by [commit].
+ *
+ * There is no background writer: the first caller to find no commit in progress becomes the leader,
+ * waits up to [GroupCommitConfig.maxDelay] for the batch to fill, and commits every queued write,
+ * including those of the callers waiting on it. [write] returns, or throws the commit's exception,
+ * only once the transaction holding its entity has completed.
+ *
+ * [release] is called with each entity once its write is no longer queued: committed, failed, or
+ * dropped as its caller was cancelled. Until then, the segment holding its blob must stay pinned.
+ */
+internal class GroupCommitWriter(
+  private val config: GroupCommitConfig,
+  private val release: (BlobEntity) -> Unit = {},
+  private val commit: suspend (Map<BlobEntity, List<String>>) -> Unit,
+) {
+  private val leader = Mutex()
+  private val batchFull = Channel<Unit>(Channel.CONFLATED)
+  private val pending = ArrayList<PendingWrite>()
+
+  suspend fun write(entity: BlobEntity, packages: List<String>) {
+    val write = PendingWrite(entity, packages)
+    val queued = synchronized(pending) { pending.add(write).let { pending.size } }
+    if (queued >= config.maxBatchSize) batchFull.trySend(Unit)
+
+    try {
+      leader.withLock {
+        if (write.committed.isCompleted) return@withLock
+        if (queued < config.maxBatchSize) {
+          // A signal sent while the previous leader was committing is stale: drop it, and check
+          // whether the batch is already full instead.
+          batchFull.tryReceive()
+          if (synchronized(pending) { pending.size } < config.maxBatchSize) {
+            withTimeoutOrNull(config.maxDelay.toMillis()) { batchFull.receive() }
+          }
+        }
+        // Writes are committed in order, so this ends once the batch holding this write is done.
+        while (!write.committed.isCompleted) commitPending()
+      }
+      write.committed.await()
+    } catch (e: CancellationException) {
+      // A cancelled caller doesn't wait for its write, so it must not be committed later on.
+      if (synchronized(pending) { pending.remove(write) }) release(write.entity)
+      throw e
+    }
+  }
+
+  private suspend fun commitPending() {
+    val batch =
+      synchronized(pending) {
+        pending.take(config.maxBatchSize).also { pending.subList(0, it.size).clear() }
+      }
+    if (batch.isEmpty()) return
+    try {
+      commit(batch.associate { it.entity to it.packages })
+      batch.forEach {
+        it.committed.complete(Unit)
+        release(it.entity)
+      }
+    } catch (e: CancellationException) {
+      // The transaction was rolled back with the leader: the next leader retries the batch.
+      synchronized(pending) { pending.addAll(0, batch) }
+      throw e
+    } catch (e: Exception) {
+      batch.forEach {
+        it.committed.completeExceptionally(e)
+        release(it.entity)
+      }
+    }
+  }
+
+  private class PendingWrite(val entity: BlobEntity, val packages: List<String>) {
+    val committed = CompletableDeferred<Unit>()
+  }
+}
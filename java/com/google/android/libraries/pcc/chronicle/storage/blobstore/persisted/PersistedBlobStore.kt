@@ -19,59 +19,98 @@ package com.google.android.libraries.pcc.chronicle.storage.blobstore.persisted
 import com.google.android.libraries.pcc.chronicle.api.storage.EntityMetadata
 import com.google.android.libraries.pcc.chronicle.api.storage.WrappedEntity
 import com.google.android.libraries.pcc.chronicle.storage.blobstore.BlobStore
+import com.google.android.libraries.pcc.chronicle.storage.blobstore.LazyWrappedEntity
 import com.google.android.libraries.pcc.chronicle.storage.blobstore.PersistedManagementInfo
 import com.google.android.libraries.pcc.chronicle.storage.blobstore.db.BlobDao
 import com.google.android.libraries.pcc.chronicle.storage.blobstore.db.BlobEntity
 import com.google.android.libraries.pcc.chronicle.storage.blobstore.db.BlobEntityWithPackages
+import com.google.android.libraries.pcc.chronicle.storage.blobstore.db.BlobMetadata
 import com.google.android.libraries.pcc.chronicle.util.TimeSource
 import com.google.protobuf.MessageLite
 import java.time.Instant
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.flow
 
 /**
  * Implementation of [BlobStore] that reads/writes from persisted BlobStore db.
  *
  * @param T the type of the data that will be stored. Must be a proto.
  * @param managementInfo the [PersistedManagementInfo] for your entity.
+ * @param segmentStore where blobs of at least [BlobSegmentStore.minExternalSize] bytes are stored,
+ *   instead of inline in their row. If null, every blob is stored inline.
+ * @param groupCommit if set, concurrent [putEntity] calls are committed together, in transactions
+ *   of up to [GroupCommitConfig.maxBatchSize] entities. Each call still returns only once its
+ *   entity is committed.
  */
 class PersistedBlobStore<T : MessageLite>(
   private val dao: BlobDao,
   private val managementInfo: PersistedManagementInfo<T>,
   private val timeSource: TimeSource,
+  private val segmentStore: BlobSegmentStore? = null,
+  groupCommit: GroupCommitConfig? = null,
 ) : BlobStore<T> {
+  private val groupCommitWriter =
+    groupCommit?.let {
+      // A batch must fit in the quota, see BlobDao.insertOrUpdateBlobsWithPackages.
+      val maxBatchSize = minOf(it.maxBatchSize, managementInfo.quotaInfo.maxRowCount)
+      GroupCommitWriter(it.copy(maxBatchSize = maxBatchSize), ::unpinSegment) { batch ->
+        dao.insertOrUpdateBlobsWithPackages(
+          batch,
+          managementInfo.dtdName,
+          managementInfo.quotaInfo,
+          timeSource.now().toEpochMilli() - managementInfo.ttlMillis,
+        )
+      }
+    }
 
   override suspend fun putEntity(wrappedEntity: WrappedEntity<T>) {
-    dao.insertOrUpdateBlobWithPackages(
-      wrappedEntityToPersistedEntity(wrappedEntity, timeSource.now().toEpochMilli()),
-      wrappedEntity.metadata.associatedPackageNamesList,
-      timeSource.now().toEpochMilli() - managementInfo.ttlMillis,
-    )
+    val entity = wrappedEntityToPersistedEntity(wrappedEntity, timeSource.now().toEpochMilli())
+    groupCommitWriter?.let {
+      // The writer unpins the segment once the write leaves its queue.
+      it.write(entity, wrappedEntity.metadata.associatedPackageNamesList)
+      return
+    }
+    try {
+      dao.insertOrUpdateBlobWithPackages(
+        entity,
+        wrappedEntity.metadata.associatedPackageNamesList,
+        timeSource.now().toEpochMilli() - managementInfo.ttlMillis,
+      )
+    } finally {
+      unpinSegment(entity)
+    }
   }
 
   override suspend fun putEntities(wrappedEntities: Collection<WrappedEntity<T>>) {
-    val map = wrappedEntities.associate {
-      wrappedEntityToPersistedEntity(it, timeSource.now().toEpochMilli()) to
-        it.metadata.associatedPackageNamesList
+    val nowMillis = timeSource.now().toEpochMilli()
+    val map = LinkedHashMap<BlobEntity, List<String>>()
+    try {
+      wrappedEntities.forEach {
+        map[wrappedEntityToPersistedEntity(it, nowMillis)] = it.metadata.associatedPackageNamesList
+      }
+      dao.insertOrUpdateBlobsWithPackages(
+        map,
+        managementInfo.dtdName,
+        managementInfo.quotaInfo,
+        nowMillis - managementInfo.ttlMillis,
+      )
+    } finally {
+      map.keys.forEach { unpinSegment(it) }
     }
-    dao.insertOrUpdateBlobsWithPackages(
-      map,
-      managementInfo.dtdName,
-      managementInfo.quotaInfo,
-      timeSource.now().toEpochMilli() - managementInfo.ttlMillis,
-    )
   }
 
-  override suspend fun getEntityByKey(key: String): WrappedEntity<T>? {
-    val persisted =
-      dao.blobEntityWithPackagesByKeyAndDtdName(
+  override suspend fun getEntityByKey(key: String): WrappedEntity<T>? = reading {
+    dao
+      .blobEntityWithPackagesByKeyAndDtdName(
         key,
         managementInfo.dtdName,
         timeSource.now().toEpochMilli() - managementInfo.ttlMillis,
-      ) ?: return null
-    return persistedEntityToWrappedEntity(persisted)
+      )
+      ?.let { persistedEntityToWrappedEntity(it) }
   }
 
-  override suspend fun getAllEntities(): List<WrappedEntity<T>> {
-    return dao
+  override suspend fun getAllEntities(): List<WrappedEntity<T>> = reading {
+    dao
       .blobEntitiesWithPackagesByDtdName(
         managementInfo.dtdName,
         timeSource.now().toEpochMilli() - managementInfo.ttlMillis,
@@ -79,6 +118,63 @@ class PersistedBlobStore<T : MessageLite>(
       .map { persistedEntityToWrappedEntity(it) }
   }
 
+  override suspend fun getEntitiesByLocusId(locusId: String): List<WrappedEntity<T>> = reading {
+    dao
+      .blobEntitiesWithPackagesByLocusIdAndDtdName(
+        locusId,
+        managementInfo.dtdName,
+        expiryThreshold(),
+      )
+      .map { persistedEntityToWrappedEntity(it) }
+  }
+
+  override fun getAllEntitiesPaged(pageSize: Int): Flow<List<WrappedEntity<T>>> {
+    require(pageSize > 0) { "pageSize must be positive." }
+    return flow {
+      val threshold = timeSource.now().toEpochMilli() - managementInfo.ttlMillis
+      var afterId = -1L
+      do {
+        val page = reading {
+          dao
+            .blobEntitiesWithPackagesByDtdNameAfterId(
+              managementInfo.dtdName,
+              threshold,
+              afterId,
+              pageSize,
+            )
+            .also { if (it.isNotEmpty()) afterId = it.last().blobEntity.id }
+            .map { persistedEntityToWrappedEntity(it) }
+        }
+        if (page.isEmpty()) break
+        emit(page)
+      } while (page.size == pageSize)
+    }
+  }
+
+  override suspend fun getAllKeys(): List<String> =
+    dao.blobKeysByDtdName(managementInfo.dtdName, expiryThreshold())
+
+  override suspend fun countEntities(): Int =
+    dao.countUnexpiredBlobsByDtdName(managementInfo.dtdName, expiryThreshold())
+
+  override suspend fun getMetadataByKey(key: String): EntityMetadata? =
+    dao
+      .blobMetadataWithPackagesByKeyAndDtdName(key, managementInfo.dtdName, expiryThreshold())
+      ?.let { entityMetadata(it.blobMetadata, it.packageNames) }
+
+  override suspend fun getAllMetadata(): List<EntityMetadata> =
+    dao.blobMetadataWithPackagesByDtdName(managementInfo.dtdName, expiryThreshold()).map {
+      entityMetadata(it.blobMetadata, it.packageNames)
+    }
+
+  override suspend fun getAllLazyEntities(): List<LazyWrappedEntity<T>> = reading {
+    dao.blobEntitiesWithPackagesByDtdName(managementInfo.dtdName, expiryThreshold()).map {
+      // Segment files may be compacted once the rows are read, so only the decoding is deferred.
+      val stored = readStoredBlob(it.blobEntity)
+      LazyWrappedEntity(entityMetadata(it)) { managementInfo.deserializer(decode(stored)) }
+    }
+  }
+
   override suspend fun removeEntityByKey(key: String) {
     dao.removeBlobEntityByKeyAndDtdName(key, managementInfo.dtdName)
   }
@@ -87,30 +183,90 @@ class PersistedBlobStore<T : MessageLite>(
     dao.removeBlobEntitiesByDtdName(managementInfo.dtdName)
   }
 
+  /**
+   * Runs [block], which reads rows and then their blobs, so that the segments compacted in between
+   * stay readable.
+   */
+  private inline fun <R> reading(block: () -> R): R =
+    if (segmentStore == null) block() else segmentStore.reading(block)
+
+  private fun unpinSegment(entity: BlobEntity) {
+    val segmentId = entity.segmentId ?: return
+    checkNotNull(segmentStore)
+      .unpin(
+        SegmentPointer(
+          segmentId,
+          checkNotNull(entity.segmentOffset),
+          checkNotNull(entity.segmentLength),
+        )
+      )
+  }
+
+  private fun expiryThreshold(): Long = timeSource.now().toEpochMilli() - managementInfo.ttlMillis
+
   private fun persistedEntityToWrappedEntity(persisted: BlobEntityWithPackages): WrappedEntity<T> {
     return WrappedEntity(
-      EntityMetadata(
-        id = persisted.blobEntity.key,
-        associatedPackageNames = persisted.packages.map { it.packageName },
-        created = Instant.ofEpochMilli(persisted.blobEntity.createdTimestampMillis),
-        updated = Instant.ofEpochMilli(persisted.blobEntity.updateTimestampMillis),
-      ),
-      managementInfo.deserializer(persisted.blobEntity.blob),
+      entityMetadata(persisted),
+      managementInfo.deserializer(decode(readStoredBlob(persisted.blobEntity))),
     )
   }
 
+  private fun entityMetadata(persisted: BlobEntityWithPackages): EntityMetadata =
+    EntityMetadata(
+      id = persisted.blobEntity.key,
+      associatedPackageNames = persisted.packages.map { it.packageName },
+      created = Instant.ofEpochMilli(persisted.blobEntity.createdTimestampMillis),
+      updated = Instant.ofEpochMilli(persisted.blobEntity.updateTimestampMillis),
+      locusId = persisted.blobEntity.locusId,
+    )
+
+  private fun entityMetadata(blobMetadata: BlobMetadata, packageNames: List<String>) =
+    EntityMetadata(
+      id = blobMetadata.key,
+      associatedPackageNames = packageNames,
+      created = Instant.ofEpochMilli(blobMetadata.createdTimestampMillis),
+      updated = Instant.ofEpochMilli(blobMetadata.updateTimestampMillis),
+      locusId = blobMetadata.locusId,
+    )
+
+  /** Returns the blob of [blobEntity] as stored, i.e. before [decode]. */
+  private fun readStoredBlob(blobEntity: BlobEntity): ByteArray =
+    if (blobEntity.segmentId == null) {
+      blobEntity.blob
+    } else {
+      checkNotNull(segmentStore) { "Blob ${blobEntity.key} is stored in a segment file." }
+        .read(
+          SegmentPointer(
+            blobEntity.segmentId,
+            checkNotNull(blobEntity.segmentOffset),
+            checkNotNull(blobEntity.segmentLength),
+          )
+        )
+    }
+
+  private fun decode(stored: ByteArray): ByteArray =
+    managementInfo.blobCodec?.decode(stored) ?: stored
+
   private fun wrappedEntityToPersistedEntity(
     wrapped: WrappedEntity<T>,
     timestampMillis: Long,
   ): BlobEntity {
+    val blob = wrapped.entity.toByteArray().let { managementInfo.blobCodec?.encode(it) ?: it }
+    val pointer = segmentStore?.takeIf { blob.size >= it.minExternalSize }?.append(blob)
     return BlobEntity(
       key = wrapped.metadata.id,
-      // TODO(b/239590875): update locusId to be pulled from metadata
-      locusId = "",
+      locusId = wrapped.metadata.locusId,
       createdTimestampMillis = timestampMillis,
       updateTimestampMillis = timestampMillis,
       dtdName = managementInfo.dtdName,
-      blob = wrapped.entity.toByteArray(),
+      blob = if (pointer == null) blob else EMPTY_BLOB,
+      segmentId = pointer?.segmentId,
+      segmentOffset = pointer?.offset,
+      segmentLength = pointer?.length,
     )
   }
+
+  private companion object {
+    val EMPTY_BLOB = ByteArray(0)
+  }
 }
@@ -18,62 +18,144 @@ package com.google.android.libraries.pcc.chronicle.storage.blobstore.persisted
 
 import com.google.android.libraries.pcc.chronicle.storage.blobstore.BlobStoreManagement
 import com.google.android.libraries.pcc.chronicle.storage.blobstore.ManagementInfo
-import com.google.android.libraries.pcc.chronicle.storage.blobstore.PersistedManagementInfo
 import com.google.android.libraries.pcc.chronicle.storage.blobstore.TrimOrder
 import com.google.android.libraries.pcc.chronicle.storage.blobstore.db.BlobDao
+import com.google.android.libraries.pcc.chronicle.storage.blobstore.persistedInfo
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+
+/**
+ * Implementation of [BlobStoreManagement] for persisted storage using the [BlobDao].
+ *
+ * If blobs are stored in a [segmentStore], the space of the blobs deleted from the database is
+ * reclaimed by compacting the segments: routine maintenance ([deleteExpiredEntities] and [trim])
+ * only compacts segments which are mostly unreferenced, while the deletions requested for privacy
+ * reasons compact every segment holding a deleted blob. Compactions are serialized, and coordinate
+ * with the puts and reads of [PersistedBlobStore] through the pins and read epochs of the
+ * [segmentStore].
+ */
+class PersistedBlobStoreManagement(
+  private val dao: BlobDao,
+  private val segmentStore: BlobSegmentStore? = null,
+) : BlobStoreManagement {
+  private val compactionMutex = Mutex()
+
+  /**
+   * Ids of the segments a forced compaction skipped because they were pinned, which are compacted
+   * as if forced once they are no longer pinned. Guarded by [compactionMutex].
+   */
+  private val pendingForcedSegmentIds = HashSet<Long>()
 
-/** Implementation of [BlobStoreManagement] for persisted storage using the [BlobDao]. */
-class PersistedBlobStoreManagement(private val dao: BlobDao) : BlobStoreManagement {
   override suspend fun clearAll(): Int {
-    return dao.removeAllBlobEntities()
+    return dao.removeAllBlobEntities().also { compactSegments(force = true) }
   }
 
   override suspend fun deleteExpiredEntities(
     currentTimeMillis: Long,
     managementInfos: Set<ManagementInfo>,
   ) {
-    managementInfos.forEach { info ->
-      if (info is PersistedManagementInfo<*>) {
-        dao.removeExpiredBlobEntitiesByDtdName(info.dtdName, currentTimeMillis - info.ttlMillis)
-      }
+    managementInfos.mapNotNull { it.persistedInfo }.forEach { info ->
+      dao.removeExpiredBlobEntitiesByDtdName(info.dtdName, currentTimeMillis - info.ttlMillis)
     }
+    compactSegments(force = false)
+  }
+
+  override suspend fun nextExpiryMillis(managementInfos: Set<ManagementInfo>): Long? {
+    return managementInfos
+      .mapNotNull { it.persistedInfo }
+      .mapNotNull { info ->
+        // Entities expire once created strictly before the ttl threshold.
+        dao.earliestCreatedTimestampMillisByDtdName(info.dtdName)?.let { it + info.ttlMillis + 1 }
+      }
+      .minOrNull()
   }
 
   override suspend fun deleteEntitiesCreatedBetween(
     startTimeMillis: Long,
     endTimeMillis: Long,
   ): Int {
-    return dao.removeBlobEntitiesCreatedBetween(startTimeMillis, endTimeMillis)
+    return dao.removeBlobEntitiesCreatedBetween(startTimeMillis, endTimeMillis).also {
+      compactSegments(force = true)
+    }
   }
 
   override suspend fun trim(managementInfos: Set<ManagementInfo>) {
-    managementInfos.forEach { info ->
-      if (info is PersistedManagementInfo<*>) {
-        val rowCount = dao.countBlobsByDtdName(info.dtdName)
-        if (rowCount <= info.quotaInfo.maxRowCount) {
-          return@forEach
-        }
-        val numRowsToDelete = rowCount - info.quotaInfo.minRowsAfterTrim
-        if (info.quotaInfo.trimOrder == TrimOrder.NEWEST) {
-          dao.removeNewestBlobEntitiesByDtdName(info.dtdName, numRowsToDelete)
-        } else {
-          dao.removeOldestBlobEntitiesByDtdName(info.dtdName, numRowsToDelete)
-        }
-        // If for some reason due to race conditions or other circumstances, the trim doesn't bring
-        // the number of entries below the maxRowCount for the specified type, all entries are
-        // cleared.
-        if (dao.countBlobsByDtdName(info.dtdName) > info.quotaInfo.maxRowCount) {
-          dao.removeBlobEntitiesByDtdName(info.dtdName)
-        }
+    managementInfos.mapNotNull { it.persistedInfo }.forEach { info ->
+      // A lookup of the maintained count, so the data types under quota cost one seek each.
+      val rowCount = dao.rowCountByDtdName(info.dtdName)
+      if (rowCount <= info.quotaInfo.maxRowCount) {
+        return@forEach
+      }
+      val numRowsToDelete = rowCount - info.quotaInfo.minRowsAfterTrim
+      if (info.quotaInfo.trimOrder == TrimOrder.NEWEST) {
+        dao.removeNewestBlobEntitiesByDtdName(info.dtdName, numRowsToDelete)
+      } else {
+        dao.removeOldestBlobEntitiesByDtdName(info.dtdName, numRowsToDelete)
+      }
+      // If for some reason due to race conditions or other circumstances, the trim doesn't bring
+      // the number of entries below the maxRowCount for the specified type, all entries are
+      // cleared.
+      if (dao.rowCountByDtdName(info.dtdName) > info.quotaInfo.maxRowCount) {
+        dao.removeBlobEntitiesByDtdName(info.dtdName)
       }
     }
+    compactSegments(force = false)
   }
 
   override suspend fun deletePackage(packageName: String): Int {
-    return dao.removeBlobAndPackageEntitiesByPackageName(packageName)
+    return dao.removeBlobAndPackageEntitiesByPackageName(packageName).also {
+      compactSegments(force = true)
+    }
   }
 
   override suspend fun reconcilePackages(allowedPackages: Set<String>): Int {
-    return dao.deleteNotAllowedPackages(allowedPackages)
+    return dao.deleteNotAllowedPackages(allowedPackages).also { compactSegments(force = true) }
+  }
+
+  /**
+   * Copies the blobs still referenced by sealed segments whose share of referenced bytes is at most
+   * [COMPACTION_LIVE_RATIO], or below 1 if [force] is set, to the active segment, and deletes those
+   * segments. If [force] is set, the active segment is sealed first so that it is compacted too.
+   *
+   * Segments pinned by writes not yet committed are skipped. If [force] is set, they are remembered
+   * and compacted as if forced by a later compaction, so that deleted blobs don't linger in them.
+   */
+  private suspend fun compactSegments(force: Boolean) {
+    val store = segmentStore ?: return
+    compactionMutex.withLock {
+      if (force) store.sealActiveSegment()
+      // Listed first, so that every pointer into these segments is in the locations read next.
+      val segmentIds = store.compactableSegmentIds()
+      val sealedSegmentIds = store.sealedSegmentIds().toSet()
+      if (force) pendingForcedSegmentIds += sealedSegmentIds - segmentIds.toSet()
+      pendingForcedSegmentIds.retainAll(sealedSegmentIds)
+      if (segmentIds.isEmpty()) return@withLock
+      segmentIds.forEach { segmentId ->
+        val forced = force || segmentId in pendingForcedSegmentIds
+        val locations = dao.segmentBlobLocationsBySegmentId(segmentId)
+        val liveBytes = locations.sumOf { it.segmentLength.toLong() }
+        val size = store.segmentSize(segmentId)
+        val maxLiveBytes = if (forced) size - 1 else (size * COMPACTION_LIVE_RATIO).toLong()
+        pendingForcedSegmentIds -= segmentId
+        if (liveBytes > maxLiveBytes) return@forEach
+
+        locations.forEach {
+          val pointer = SegmentPointer(segmentId, it.segmentOffset, it.segmentLength)
+          val copy = store.append(store.read(pointer))
+          try {
+            // A blob rewritten since the locations were read keeps its new location, and the copy
+            // is left for a later compaction of the active segment.
+            dao.moveSegmentBlob(it.id, segmentId, it.segmentOffset, copy.segmentId, copy.offset)
+          } finally {
+            store.unpin(copy)
+          }
+        }
+        store.deleteSegment(segmentId)
+      }
+    }
+  }
+
+  private companion object {
+    const val COMPACTION_LIVE_RATIO = 0.5
   }
 }
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.pcc.chronicle.storage.blobstore.tiered
+
+import com.google.android.libraries.pcc.chronicle.api.storage.EntityMetadata
+import com.google.android.libraries.pcc.chronicle.api.storage.WrappedEntity
+import com.google.android.libraries.pcc.chronicle.api.storage.toInstant
+import com.google.android.libraries.pcc.chronicle.storage.blobstore.BlobStore
+import com.google.android.libraries.pcc.chronicle.storage.blobstore.LazyWrappedEntity
+import com.google.android.libraries.pcc.chronicle.util.TimeSource
+import kotlinx.coroutines.flow.Flow
+
+/**
+ * Implementation of [BlobStore] keeping the entities read most recently from [persisted] in memory,
+ * deserialized, so that repeated reads of a key don't query the database or parse the entity.
+ *
+ * Bulk and metadata reads go straight to [persisted]. Writes go through to [persisted] before they
+ * return, and invalidate the cached entity rather than replace it, since [persisted] decides its
+ * timestamps and packages; the next read caches the stored entity. Cached entities are not
+ * returned once expired, and deletions made through the
+ * [BlobStoreManager][com.google.android.libraries.pcc.chronicle.storage.blobstore.BlobStoreManager]
+ * are applied to the cache by [TieredBlobStoreManagement].
+ */
+class TieredBlobStore<T>(
+  private val persisted: BlobStore<T>,
+  private val cache: TieredCache<T>,
+  private val timeSource: TimeSource,
+) : BlobStore<T> {
+  override suspend fun putEntity(wrappedEntity: WrappedEntity<T>) {
+    try {
+      persisted.putEntity(wrappedEntity)
+    } finally {
+      cache.invalidate(listOf(wrappedEntity.metadata.id))
+    }
+  }
+
+  override suspend fun putEntities(wrappedEntities: Collection<WrappedEntity<T>>) {
+    try {
+      persisted.putEntities(wrappedEntities)
+    } finally {
+      cache.invalidate(wrappedEntities.map { it.metadata.id })
+    }
+  }
+
+  override suspend fun getEntityByKey(key: String): WrappedEntity<T>? {
+    val entity = cache.read(key) { persisted.getEntityByKey(key) } ?: return null
+    if (!entity.isExpired()) return entity
+    cache.invalidate(listOf(key))
+    return null
+  }
+
+  override suspend fun getAllEntities(): List<WrappedEntity<T>> = persisted.getAllEntities()
+
+  override suspend fun getEntitiesByLocusId(locusId: String): List<WrappedEntity<T>> =
+    persisted.getEntitiesByLocusId(locusId)
+
+  override fun getAllEntitiesPaged(pageSize: Int): Flow<List<WrappedEntity<T>>> =
+    persisted.getAllEntitiesPaged(pageSize)
+
+  override suspend fun getAllKeys(): List<String> = persisted.getAllKeys()
+
+  override suspend fun countEntities(): Int = persisted.countEntities()
+
+  override suspend fun getMetadataByKey(key: String): EntityMetadata? =
+    persisted.getMetadataByKey(key)
+
+  override suspend fun getAllMetadata(): List<EntityMetadata> = persisted.getAllMetadata()
+
+  override suspend fun getAllLazyEntities(): List<LazyWrappedEntity<T>> =
+    persisted.getAllLazyEntities()
+
+  override suspend fun removeEntityByKey(key: String) {
+    try {
+      persisted.removeEntityByKey(key)
+    } finally {
+      cache.invalidate(listOf(key))
+    }
+  }
+
+  override suspend fun removeAll() {
+    try {
+      persisted.removeAll()
+    } finally {
+      cache.invalidateWhere { true }
+    }
+  }
+
+  private fun WrappedEntity<*>.isExpired(): Boolean =
+    metadata.created
+      .toInstant()
+      .plusMillis(cache.managementInfo.ttlMillis)
+      .isBefore(timeSource.now())
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.pcc.chronicle.storage.blobstore.tiered
+
+import com.google.android.libraries.pcc.chronicle.api.storage.WrappedEntity
+import com.google.android.libraries.pcc.chronicle.api.storage.toInstant
+import com.google.android.libraries.pcc.chronicle.storage.blobstore.BlobStoreManagement
+import com.google.android.libraries.pcc.chronicle.storage.blobstore.ManagementInfo
+import com.google.android.libraries.pcc.chronicle.storage.blobstore.db.BlobDao
+import com.google.android.libraries.pcc.chronicle.storage.blobstore.db.MAX_BIND_ARGS
+
+/**
+ * Implementation of [BlobStoreManagement] keeping the in memory tiers of [TieredStorage] coherent
+ * with the deletions made in the database by the `PersistedBlobStoreManagement`.
+ *
+ * The persisted data of tiered data types is deleted, and counted, by the persisted management, so
+ * this one must come after it in the managements of a
+ * [BlobStoreManager][com.google.android.libraries.pcc.chronicle.storage.blobstore.BlobStoreManager]
+ * and only ever reports zero deleted entities.
+ */
+class TieredBlobStoreManagement(
+  private val dao: BlobDao,
+  private val tieredStorage: TieredStorage,
+) : BlobStoreManagement {
+  override suspend fun clearAll(): Int {
+    caches().forEach { cache -> cache.invalidateWhere { true } }
+    return 0
+  }
+
+  override suspend fun deleteEntitiesCreatedBetween(
+    startTimeMillis: Long,
+    endTimeMillis: Long,
+  ): Int {
+    caches().forEach { cache ->
+      cache.invalidateWhere { it.createdMillis() in startTimeMillis until endTimeMillis }
+    }
+    return 0
+  }
+
+  override suspend fun deleteExpiredEntities(
+    currentTimeMillis: Long,
+    managementInfos: Set<ManagementInfo>,
+  ) {
+    caches().forEach { cache ->
+      val threshold = currentTimeMillis - cache.managementInfo.ttlMillis
+      cache.invalidateWhere { it.createdMillis() < threshold }
+    }
+  }
+
+  override suspend fun nextExpiryMillis(managementInfos: Set<ManagementInfo>): Long? = null
+
+  override suspend fun trim(managementInfos: Set<ManagementInfo>) {
+    // The trims delete rows by insertion order, which the cache doesn't know: drop the cached
+    // entities whose rows are gone.
+    caches().forEach { cache ->
+      val storedKeys =
+        cache
+          .keys()
+          .chunked(MAX_BIND_ARGS)
+          .flatMap { dao.blobKeysAndIdsByKeysAndDtdName(it, cache.managementInfo.dtdName) }
+          .mapTo(HashSet()) { it.key }
+      cache.invalidateWhere { it.metadata.id !in storedKeys }
+    }
+  }
+
+  override suspend fun deletePackage(packageName: String): Int {
+    caches().forEach { cache ->
+      cache.invalidateWhere { packageName in it.metadata.associatedPackageNamesList }
+    }
+    return 0
+  }
+
+  override suspend fun reconcilePackages(allowedPackages: Set<String>): Int {
+    caches().forEach { cache ->
+      cache.invalidateWhere { entity ->
+        entity.metadata.associatedPackageNamesList.any { it !in allowedPackages }
+      }
+    }
+    return 0
+  }
+
+  private fun caches(): Collection<TieredCache<*>> = tieredStorage.caches.value.values
+
+  private fun WrappedEntity<*>.createdMillis(): Long = metadata.created.toInstant().toEpochMilli()
+}
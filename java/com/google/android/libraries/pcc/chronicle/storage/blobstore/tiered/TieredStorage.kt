@@ -0,0 +1,87 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.pcc.chronicle.storage.blobstore.tiered
+
+import android.util.LruCache
+import com.google.android.libraries.pcc.chronicle.api.storage.WrappedEntity
+import com.google.android.libraries.pcc.chronicle.storage.blobstore.TieredManagementInfo
+import kotlinx.atomicfu.atomic
+import kotlinx.atomicfu.update
+
+/**
+ * This class contains the in memory tiers of the tiered BlobStores, organized into a map keyed by
+ * DTD name, so that every [TieredBlobStore] of a data type and the [TieredBlobStoreManagement]
+ * share the same cache.
+ */
+class TieredStorage {
+  internal val caches = atomic(emptyMap<String, TieredCache<*>>())
+
+  @Suppress("UNCHECKED_CAST")
+  fun <T : Any> registerDataTypeCache(managementInfo: TieredManagementInfo<*>): TieredCache<T> {
+    caches.update { currentCaches ->
+      if (managementInfo.dtdName in currentCaches) {
+        return@update currentCaches
+      }
+      currentCaches + (managementInfo.dtdName to TieredCache<T>(managementInfo))
+    }
+    return caches.value[managementInfo.dtdName] as TieredCache<T>
+  }
+}
+
+/**
+ * The deserialized entities of a tiered data type which were read most recently.
+ *
+ * The cache is filled by reads of the database, which may race with writes: [read] only caches an
+ * entity if no [invalidate] happened while it was being read, so that a write is never overwritten
+ * by the value it replaced.
+ */
+class TieredCache<T>(val managementInfo: TieredManagementInfo<*>) {
+  private val cache = LruCache<String, WrappedEntity<T>>(managementInfo.maxCachedItems)
+  private var generation = 0L
+
+  /** Returns the cached entity with [key], or reads it with [load] and caches it. */
+  suspend fun read(key: String, load: suspend () -> WrappedEntity<T>?): WrappedEntity<T>? {
+    val loadGeneration =
+      synchronized(this) {
+        cache.get(key)?.let {
+          return it
+        }
+        generation
+      }
+    val entity = load() ?: return null
+    synchronized(this) { if (generation == loadGeneration) cache.put(key, entity) }
+    return entity
+  }
+
+  /** Removes the entities with [keys] from the cache, e.g. because they were written. */
+  fun invalidate(keys: Collection<String>) {
+    synchronized(this) {
+      generation++
+      keys.forEach { cache.remove(it) }
+    }
+  }
+
+  /** Removes the entities matching [predicate] from the cache, and returns their keys. */
+  fun invalidateWhere(predicate: (WrappedEntity<T>) -> Boolean): List<String> =
+    synchronized(this) {
+      generation++
+      cache.snapshot().filterValues(predicate).keys.onEach { cache.remove(it) }.toList()
+    }
+
+  /** Returns the keys of the cached entities. */
+  fun keys(): Set<String> = synchronized(this) { cache.snapshot().keys }
+}
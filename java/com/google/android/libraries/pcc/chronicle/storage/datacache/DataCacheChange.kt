@@ -0,0 +1,43 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.pcc.chronicle.storage.datacache
+
+import com.google.android.libraries.pcc.chronicle.api.storage.WrappedEntity
+
+/** A change made to the entities of a single data type in a [DataCacheStorage]. */
+sealed class DataCacheChange<out T> {
+  /** The id of the changed entity. */
+  abstract val id: String
+
+  /** An entity was stored with an id which wasn't in the cache. */
+  data class Inserted<T>(val entity: WrappedEntity<T>) : DataCacheChange<T>() {
+    override val id: String
+      get() = entity.metadata.id
+  }
+
+  /** An entity replaced the entity previously stored with the same id. */
+  data class Updated<T>(val entity: WrappedEntity<T>) : DataCacheChange<T>() {
+    override val id: String
+      get() = entity.metadata.id
+  }
+
+  /** An entity was removed, purged, or evicted to make room for other entities. */
+  data class Removed(override val id: String) : DataCacheChange<Nothing>()
+
+  /** An entity was removed because it outlived its data type's TTL. */
+  data class Expired(override val id: String) : DataCacheChange<Nothing>()
+}
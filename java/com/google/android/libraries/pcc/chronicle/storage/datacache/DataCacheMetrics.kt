@@ -0,0 +1,87 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.pcc.chronicle.storage.datacache
+
+/**
+ * A snapshot of the activity of a [DataCacheStorage] for a single data type, counted since the
+ * type was first registered.
+ *
+ * @property hitCount number of `get` calls which returned an entity.
+ * @property missCount number of `get` calls which found no entity, or an expired one.
+ * @property putCount number of entities stored.
+ * @property evictionCount number of entities dropped because the cache was at capacity.
+ * @property expirationCount number of entities dropped because they outlived the type's TTL.
+ * @property purgeCount number of entities removed by package deletion, predicate or bulk purges.
+ * @property getLatency distribution of the time spent in `get`.
+ * @property putLatency distribution of the time spent in `put`.
+ */
+data class DataCacheMetrics(
+  val hitCount: Long = 0,
+  val missCount: Long = 0,
+  val putCount: Long = 0,
+  val evictionCount: Long = 0,
+  val expirationCount: Long = 0,
+  val purgeCount: Long = 0,
+  val getLatency: LatencyHistogram = LatencyHistogram.EMPTY,
+  val putLatency: LatencyHistogram = LatencyHistogram.EMPTY,
+) {
+  /** The number of `get` calls, hits and misses included. */
+  val requestCount: Long
+    get() = hitCount + missCount
+
+  /** The ratio of `get` calls which returned an entity, or `1.0` if there were none. */
+  val hitRate: Double
+    get() = if (requestCount == 0L) 1.0 else hitCount.toDouble() / requestCount
+}
+
+/**
+ * A histogram of latencies, where `bucketCounts[i]` counts the samples which took at most
+ * `bucketUpperBoundsNanos[i]` nanoseconds, and more than the previous bucket's bound.
+ */
+data class LatencyHistogram(
+  val bucketUpperBoundsNanos: List<Long>,
+  val bucketCounts: List<Long>,
+) {
+  init {
+    require(bucketUpperBoundsNanos.size == bucketCounts.size) { "Mismatched bucket counts" }
+  }
+
+  /** The total number of samples. */
+  val count: Long
+    get() = bucketCounts.sum()
+
+  /**
+   * Returns the upper bound of the bucket holding the [percentile]th sample, e.g. `50.0` for the
+   * median, or `0` if there are no samples.
+   */
+  fun percentileNanos(percentile: Double): Long {
+    require(percentile in 0.0..100.0) { "percentile must be in [0, 100]" }
+    val total = count
+    if (total == 0L) return 0
+    val rank = maxOf(1L, Math.ceil(total * percentile / 100).toLong())
+    var seen = 0L
+    bucketCounts.forEachIndexed { i, bucketCount ->
+      seen += bucketCount
+      if (seen >= rank) return bucketUpperBoundsNanos[i]
+    }
+    return bucketUpperBoundsNanos.last()
+  }
+
+  companion object {
+    val EMPTY = LatencyHistogram(emptyList(), emptyList())
+  }
+}
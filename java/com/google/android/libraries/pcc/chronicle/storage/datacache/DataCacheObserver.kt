@@ -0,0 +1,46 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.pcc.chronicle.storage.datacache
+
+import com.google.android.libraries.pcc.chronicle.api.ReadConnection
+import kotlinx.coroutines.flow.Flow
+
+/**
+ * The chronicle reader interface for observing the changes made to a data cache, as published by
+ * [TypedDataCacheReader.changes], as an alternative to polling [DataCacheReader.all].
+ */
+interface DataCacheObserver<T> : ReadConnection {
+  /** Returns a [Flow] of every change made to the cache while it is collected. */
+  fun changes(): Flow<DataCacheChange<T>>
+
+  /**
+   * Returns a [Flow] of the changes made to the cache while it is collected, keeping only the
+   * latest change of each entity when the collector falls behind.
+   */
+  fun conflatedChanges(): Flow<DataCacheChange<T>>
+
+  companion object {
+    /** Wraps the provided [TypedDataCacheReader] with a [DataCacheObserver] connection. */
+    fun <T> createDefault(cache: TypedDataCacheReader<T>): DataCacheObserver<T> {
+      return object : DataCacheObserver<T> {
+        override fun changes(): Flow<DataCacheChange<T>> = cache.changes(conflate = false)
+
+        override fun conflatedChanges(): Flow<DataCacheChange<T>> = cache.changes(conflate = true)
+      }
+    }
+  }
+}
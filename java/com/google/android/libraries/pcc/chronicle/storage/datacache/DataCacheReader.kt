@@ -27,12 +27,30 @@ interface DataCacheReader<T> : ReadConnection {
 
   /**
    * Returns a list of [Timestamped<T>] for all stored labels, ordered by update timestamp from
-   * latest to earliest.
+   * earliest to latest.
    */
   fun allTimestamped(): List<Timestamped<T>>
 
+  /**
+   * Returns a list of [Timestamped<T>] for the [count] most recently updated labels, ordered by
+   * update timestamp from latest to earliest.
+   */
+  fun latestTimestamped(count: Int): List<Timestamped<T>> =
+    allTimestamped().asReversed().take(count)
+
+  /**
+   * Returns a list of [Timestamped<T>] for the labels updated at or after [since], ordered by
+   * update timestamp from earliest to latest.
+   */
+  fun updatedSince(since: Instant): List<Timestamped<T>> =
+    allTimestamped().filter { !it.updateTimestamp.isBefore(since) }
+
   fun forEntity(entityId: String): T?
 
+  /** Returns the stored instances indexed by [entityIds], keyed by id, skipping missing ones. */
+  fun forEntities(entityIds: Collection<String>): Map<String, T> =
+    entityIds.mapNotNull { id -> forEntity(id)?.let { id to it } }.toMap()
+
   /** Returns a [Timestamped<T>] for stored label instance indexed by [entityId] */
   fun forEntityTimestamped(entityId: String): Timestamped<T>?
 
@@ -43,15 +61,28 @@ interface DataCacheReader<T> : ReadConnection {
         override fun all(): List<T> = cache.all().map { it.entity }
 
         override fun allTimestamped(): List<Timestamped<T>> =
+          cache.sequenceByUpdateTime().map { it.asTimestampedInstance() }.toList()
+
+        override fun latestTimestamped(count: Int): List<Timestamped<T>> =
+          cache
+            .sequenceByUpdateTime(newestFirst = true)
+            .take(count)
+            .map { it.asTimestampedInstance() }
+            .toList()
+
+        override fun updatedSince(since: Instant): List<Timestamped<T>> =
           cache
-            .all()
-            .asSequence()
+            .sequenceByUpdateTime(newestFirst = true)
             .map { it.asTimestampedInstance() }
-            .sortedBy { it.updateTimestamp }
+            .takeWhile { !it.updateTimestamp.isBefore(since) }
             .toList()
+            .asReversed()
 
         override fun forEntity(entityId: String): T? = cache.get(entityId)?.entity
 
+        override fun forEntities(entityIds: Collection<String>): Map<String, T> =
+          cache.getAll(entityIds).mapValues { it.value.entity }
+
         override fun forEntityTimestamped(entityId: String): Timestamped<T>? =
           cache.get(entityId)?.asTimestampedInstance()
       }
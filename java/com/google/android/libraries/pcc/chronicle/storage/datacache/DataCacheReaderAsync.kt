@@ -30,6 +30,10 @@ interface DataCacheReaderAsync<T> : ReadConnection {
   /** Retrieves entity with the specified ID, `null` when not found. */
   suspend fun forId(entityId: String): T?
 
+  /** Retrieves the entities with the specified IDs, keyed by ID, skipping those not found. */
+  suspend fun forIds(entityIds: Collection<String>): Map<String, T> =
+    entityIds.mapNotNull { id -> forId(id)?.let { id to it } }.toMap()
+
   /**
    * Returns a list of [Timestamped<T>] for all stored labels, ordered by update timestamp from
    * latest to earliest.
@@ -50,6 +54,12 @@ interface DataCacheReaderAsync<T> : ReadConnection {
     return scope.future { forId(entityId) }
   }
 
+  /** Retrieves the entities with the specified IDs, keyed by ID, skipping those not found. */
+  fun forIdsAsync(
+    scope: CoroutineScope,
+    entityIds: Collection<String>,
+  ): ListenableFuture<Map<String, T>> = scope.future { forIds(entityIds) }
+
   /**
    * Returns a list of [Timestamped<T>] for all stored labels, ordered by update timestamp from
    * latest to earliest.
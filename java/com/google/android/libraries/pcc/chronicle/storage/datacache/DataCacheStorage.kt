@@ -18,6 +18,11 @@ package com.google.android.libraries.pcc.chronicle.storage.datacache
 
 import com.google.android.libraries.pcc.chronicle.api.storage.WrappedEntity
 import java.time.Duration
+import java.time.Instant
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.emptyFlow
+import kotlinx.coroutines.flow.flow
 
 /*
  * TODO: go/nullness-caller-updates-lsc - Could this class bounds its type parameters with <T : Any>
@@ -47,6 +52,13 @@ interface DataCacheStorage {
    */
   fun <T> get(cls: Class<T & Any>, id: String): WrappedEntity<T>?
 
+  /**
+   * Returns the stored [WrappedEntity] instances with data type [T] identified by [ids], keyed by
+   * id. Ids with no stored instance are left out of the result.
+   */
+  fun <T> getAll(cls: Class<T & Any>, ids: Collection<String>): Map<String, WrappedEntity<T>> =
+    ids.mapNotNull { id -> get(cls, id)?.let { id to it } }.toMap()
+
   /**
    * Stores [WrappedEntity] instance represents data type [T] with [id] as the key.
    *
@@ -54,6 +66,15 @@ interface DataCacheStorage {
    */
   fun <T> put(cls: Class<out T & Any>, entity: WrappedEntity<T>): Boolean
 
+  /**
+   * Stores a batch of [WrappedEntity] instances of data type [T], each keyed by its id.
+   * Implementations should store the whole batch under a single acquisition of the type's lock.
+   *
+   * Returns [true] if the instances are successfully stored, [false] otherwise.
+   */
+  fun <T> putAll(cls: Class<out T & Any>, entities: Collection<WrappedEntity<T>>): Boolean =
+    entities.map { put(cls, it) }.all { it }
+
   /**
    * Removes stored instance with data type [T] and identified by [id].
    *
@@ -62,18 +83,54 @@ interface DataCacheStorage {
    */
   fun <T> remove(cls: Class<out T & Any>, id: String): WrappedEntity<T>?
 
+  /**
+   * Removes the stored instances with data type [T] identified by [ids].
+   *
+   * @return The number of instances removed
+   */
+  fun <T> removeAll(cls: Class<out T & Any>, ids: Collection<String>): Int =
+    ids.count { remove(cls, it) != null }
+
   /** Returns all stored [WrappedEntity] instances for a specific data type [T]. */
   fun <T> all(cls: Class<T & Any>): List<WrappedEntity<T>>
 
   /** Returns map of <EntityId, [WrappedEntity]> for instances for a specific data type [T]. */
   fun <T> allAsMap(cls: Class<T & Any>): Map<String, WrappedEntity<T>>
 
+  /**
+   * Returns a lazy [Sequence] over the stored [WrappedEntity] instances for a specific data type
+   * [T]. Unlike [all], implementations should walk the live entries without materializing a list,
+   * so the sequence is weakly consistent with concurrent writes and should not be retained.
+   */
+  fun <T> sequence(cls: Class<T & Any>): Sequence<WrappedEntity<T>> = all(cls).asSequence()
+
+  /**
+   * Returns a lazy [Sequence] over the stored [WrappedEntity] instances for a specific data type
+   * [T], ordered by update time: oldest first, or newest first if [newestFirst] is set. Taking the
+   * first `k` instances, e.g. the latest updates, should only cost `O(k)` once the storage keeps
+   * its entities ordered.
+   */
+  fun <T> sequenceByUpdateTime(
+    cls: Class<T & Any>,
+    newestFirst: Boolean = false,
+  ): Sequence<WrappedEntity<T>> {
+    val order = if (newestFirst) UPDATE_TIME_ORDER.reversed() else UPDATE_TIME_ORDER
+    return all(cls).sortedWith(order).asSequence()
+  }
+
   /** Removes all stored instances for a specific data type [T]. */
   fun removeAll(cls: Class<*>)
 
   /** Purges all expired instances for each data type [T]. */
   fun purgeExpiredEntities()
 
+  /**
+   * Returns the earliest instant at which a stored instance expires, i.e. the next time
+   * [purgeExpiredEntities] has anything to remove. Returns `null` if nothing is stored, or if the
+   * storage can't tell, in which case callers should fall back to purging periodically.
+   */
+  fun nextExpiry(): Instant? = null
+
   /**
    * Remove all stored entities associated with the provided package name.
    *
@@ -98,6 +155,77 @@ interface DataCacheStorage {
   /** Remove all entities for [cls] type matches with filter conditions specified in [predicate]. */
   fun purgeEntitiesWhere(cls: Class<out Any>, predicate: (WrappedEntity<*>) -> Boolean): Int
 
+  /**
+   * Remove the stored entities within [scope], leaving the entities of other packages, data types
+   * and creation times in place.
+   *
+   * @return The number of entities deleted
+   */
+  fun purgeEntitiesInScope(scope: DataRemovalScope): Int =
+    registeredDataTypes
+      .filter { scope.includesType(it) }
+      .sumOf { cls -> purgeEntitiesWhere(cls) { scope.matches(it.metadata) } }
+
   /** Completely remove all entities, return the count of entities removed. */
   fun purgeAllEntities(): Int
+
+  /**
+   * Returns a [Flow] of the changes made to the entities of data type [T] while it is collected,
+   * so that readers can react to deltas instead of rescanning [all]. With [conflate], a slow
+   * collector only receives the latest change of each entity. Storages which don't publish changes
+   * return an empty flow.
+   *
+   * An insertion or update is published before the removals of the entities it evicts.
+   */
+  fun <T> changes(cls: Class<T & Any>, conflate: Boolean = false): Flow<DataCacheChange<T>> =
+    emptyFlow()
+
+  /**
+   * Opts [cls] into [saveSnapshot], and restores the entities of [cls] saved by a previous process
+   * which haven't expired since, without replacing entities already stored. Restored entities keep
+   * their original creation time, so the type's TTL still applies to them.
+   *
+   * Each type is restored independently, so types may be opted in concurrently from background
+   * threads. Storages which don't support snapshots ignore this and return `0`.
+   *
+   * @return The number of entities restored
+   */
+  fun enableSnapshots(cls: Class<*>): Int = 0
+
+  /**
+   * Saves the live, non-expired entities of every type opted in with [enableSnapshots], replacing
+   * their previous snapshot. Meant to be called periodically, e.g. from a [StoreScheduler] job.
+   * Removing or purging entities of a type deletes its snapshot until the next save, so removed
+   * entities are never restored.
+   *
+   * @return The number of entities saved
+   */
+  fun saveSnapshot(): Int = 0
+
+  /**
+   * Returns a snapshot of the hit, miss, eviction, expiry, purge and latency metrics recorded for
+   * [cls], or `null` if [cls] isn't registered or the storage doesn't record metrics.
+   */
+  fun metrics(cls: Class<*>): DataCacheMetrics? = null
+
+  /**
+   * Returns a [Flow] emitting a [metrics] snapshot for [cls] every [period], for as long as it is
+   * collected. Completes once [cls] is no longer registered.
+   */
+  fun metricsFlow(cls: Class<*>, period: Duration): Flow<DataCacheMetrics> {
+    if (metrics(cls) == null) return emptyFlow()
+    return flow {
+      while (true) {
+        emit(metrics(cls) ?: break)
+        delay(period.toMillis())
+      }
+    }
+  }
+
+  companion object {
+    /** Orders [WrappedEntity] instances by their update timestamp. */
+    val UPDATE_TIME_ORDER: Comparator<WrappedEntity<*>> =
+      compareBy<WrappedEntity<*>> { it.metadata.updated.seconds }
+        .thenBy { it.metadata.updated.nanos }
+  }
 }
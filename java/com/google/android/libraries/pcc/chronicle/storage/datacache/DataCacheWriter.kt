@@ -26,8 +26,21 @@ import java.time.Instant
 interface DataCacheWriter<T> : WriteConnection {
   fun write(entity: T, entityId: String, ttlTimestamp: Instant, packageName: String)
 
+  /**
+   * Writes a batch of entities keyed by id, all sharing the same [ttlTimestamp], [packageName] and
+   * update time.
+   */
+  fun writeAll(entities: Map<String, T>, ttlTimestamp: Instant, packageName: String) {
+    entities.forEach { (entityId, entity) -> write(entity, entityId, ttlTimestamp, packageName) }
+  }
+
   fun remove(id: String)
 
+  /** Removes the entities identified by [ids]. */
+  fun removeAll(ids: Collection<String>) {
+    ids.forEach { remove(it) }
+  }
+
   companion object {
     /** Creates a [DataCacheWriter] connection that reads from a [TypedDataCacheWriter<T>]. */
     fun <T> createDefault(
@@ -49,9 +62,27 @@ interface DataCacheWriter<T> : WriteConnection {
           )
         }
 
+        override fun writeAll(
+          entities: Map<String, T>,
+          ttlTimestamp: Instant,
+          packageName: String,
+        ) {
+          // Every entity of the batch shares the same timestamps, so they are only built once.
+          val batchMetadata = EntityMetadata(null, packageName, ttlTimestamp, timeSource.now())
+          cache.putAll(
+            entities.map { (entityId, entity) ->
+              WrappedEntity(batchMetadata.toBuilder().setId(entityId).build(), entity)
+            }
+          )
+        }
+
         override fun remove(id: String) {
           cache.remove(id)
         }
+
+        override fun removeAll(ids: Collection<String>) {
+          cache.removeAll(ids)
+        }
       }
     }
   }
@@ -27,16 +27,37 @@ interface DataCacheWriterAsync<T> : WriteConnection {
   /** Write entity, returning once the store acks the request. */
   suspend fun write(entity: WrappedEntity<T>)
 
+  /** Write a batch of entities, returning once the store acks the whole batch. */
+  suspend fun writeAll(entities: Collection<WrappedEntity<T>>) {
+    entities.forEach { write(it) }
+  }
+
   /** Removes the entity with the specified [id], no-op if that [id] isn't found. */
   suspend fun remove(id: String)
 
+  /** Removes the entities with the specified [ids], skipping those not found. */
+  suspend fun removeAll(ids: Collection<String>) {
+    ids.forEach { remove(it) }
+  }
+
   /** Write entity, completing the future when the store completes the request. */
   fun writeAsync(scope: CoroutineScope, entity: WrappedEntity<T>): ListenableFuture<Unit> {
     return scope.future { write(entity) }
   }
 
+  /** Write a batch of entities, completing the future when the store completes the request. */
+  fun writeAllAsync(
+    scope: CoroutineScope,
+    entities: Collection<WrappedEntity<T>>,
+  ): ListenableFuture<Unit> = scope.future { writeAll(entities) }
+
   /** Java compatibility method, completes ListenableFuture when the store completes the request. */
   fun removeAsync(scope: CoroutineScope, id: String): ListenableFuture<Unit> {
     return scope.future { remove(id) }
   }
+
+  /** Java compatibility method, completes ListenableFuture when the store completes the request. */
+  fun removeAllAsync(scope: CoroutineScope, ids: Collection<String>): ListenableFuture<Unit> {
+    return scope.future { removeAll(ids) }
+  }
 }
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.pcc.chronicle.storage.datacache
+
+import com.google.android.libraries.pcc.chronicle.api.storage.EntityMetadata
+import com.google.android.libraries.pcc.chronicle.api.storage.toInstant
+import java.time.Instant
+
+/**
+ * The entities targeted by a data removal request, see [DataCacheStorage.purgeEntitiesInScope].
+ *
+ * @property packageName only entities associated with this package are removed.
+ * @property dataTypes the data types to remove entities from, or `null` for every registered type.
+ * @property createdFrom if set, only entities created at or after this instant are removed.
+ * @property createdUntil if set, only entities created strictly before this instant are removed.
+ */
+data class DataRemovalScope(
+  val packageName: String,
+  val dataTypes: Set<Class<*>>? = null,
+  val createdFrom: Instant? = null,
+  val createdUntil: Instant? = null,
+) {
+  /** Whether entities of [cls] may be removed. */
+  fun includesType(cls: Class<*>): Boolean = dataTypes == null || cls in dataTypes
+
+  /** Whether the entity described by [metadata] is removed, given that its type is included. */
+  fun matches(metadata: EntityMetadata): Boolean {
+    if (packageName !in metadata.associatedPackageNamesList) return false
+    if (createdFrom == null && createdUntil == null) return true
+    val created = metadata.created.toInstant()
+    return (createdFrom == null || !created.isBefore(createdFrom)) &&
+      (createdUntil == null || created.isBefore(createdUntil))
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.pcc.chronicle.storage.datacache
+
+import com.google.android.libraries.pcc.chronicle.storage.blobstore.BlobStoreManager
+import com.google.android.libraries.pcc.chronicle.util.Logcat
+import com.google.android.libraries.pcc.chronicle.util.TimeSource
+import java.time.Duration
+import java.time.Instant
+import kotlinx.atomicfu.atomic
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withTimeoutOrNull
+
+/**
+ * A [StoreScheduler] which runs maintenance in [scope] when the earliest stored entity expires,
+ * rather than on a fixed timer.
+ *
+ * The next wake-up is the earliest of [DataCacheStorage.nextExpiry] and
+ * [BlobStoreManager.nextExpiryMillis], and at most [maxInterval] after the previous run, so that
+ * storages which can't tell their next expiry, and [BlobStoreManager] quota trims, are still
+ * handled. Runs are at least [minInterval] apart, which coalesces entities expiring close to one
+ * another into a single run.
+ *
+ * [queueWorkRequest] starts the scheduler on first use. Later calls make it re-evaluate the next
+ * expiry, e.g. after data types with a shorter ttl are registered; requests made while it is
+ * busy are coalesced into one.
+ *
+ * A failed run is logged and retried after a backoff, which starts at [minInterval], but no less
+ * than [MIN_RETRY_DELAY], and doubles up to [maxInterval] while runs keep failing.
+ *
+ * Delays are measured with [timeSource] and waited for in [scope], so tests can drive the scheduler
+ * with a virtual-time dispatcher and a [TimeSource] reading the same clock.
+ */
+class ExpiryDrivenStoreScheduler(
+  private val scope: CoroutineScope,
+  private val timeSource: TimeSource,
+  private val dataCacheStorage: DataCacheStorage,
+  private val blobStoreManager: BlobStoreManager? = null,
+  private val minInterval: Duration = DEFAULT_MIN_INTERVAL,
+  private val maxInterval: Duration = DEFAULT_MAX_INTERVAL,
+) : StoreScheduler {
+  private val started = atomic(false)
+  private val requests = Channel<Unit>(Channel.CONFLATED)
+
+  init {
+    require(!minInterval.isNegative && minInterval <= maxInterval) {
+      "minInterval must be non-negative and at most maxInterval."
+    }
+  }
+
+  override fun queueWorkRequest() {
+    if (started.compareAndSet(expect = false, update = true)) {
+      scope.launch { runMaintenanceLoop() }
+    } else {
+      requests.trySend(Unit)
+    }
+  }
+
+  private suspend fun runMaintenanceLoop() {
+    var lastRun = timeSource.now()
+    var failures = 0
+    while (true) {
+      try {
+        val wakeUp = nextWakeUp(lastRun)
+        val delayMillis = Duration.between(timeSource.now(), wakeUp).toMillis()
+        // A request only wakes the loop up early to compute the next wake-up again.
+        if (withTimeoutOrNull(delayMillis) { requests.receive() } != null) continue
+
+        lastRun = timeSource.now()
+        dataCacheStorage.purgeExpiredEntities()
+        blobStoreManager?.performMaintenance()
+        failures = 0
+      } catch (e: CancellationException) {
+        throw e
+      } catch (e: Exception) {
+        failures++
+        val retryDelay = retryDelay(failures)
+        logger.w(e, "[%s] maintenance failed, retrying in %s.", className, retryDelay)
+        delay(retryDelay.toMillis())
+      }
+    }
+  }
+
+  private fun retryDelay(failures: Int): Duration {
+    // Past the cap, doubling would only overflow.
+    val doublings = minOf(failures - 1, MAX_BACKOFF_DOUBLINGS)
+    val backoff = maxOf(minInterval, MIN_RETRY_DELAY).multipliedBy(1L shl doublings)
+    return minOf(backoff, maxInterval)
+  }
+
+  private suspend fun nextWakeUp(lastRun: Instant): Instant {
+    val nextExpiry =
+      listOfNotNull(
+          dataCacheStorage.nextExpiry(),
+          blobStoreManager?.nextExpiryMillis()?.let(Instant::ofEpochMilli),
+        )
+        .minOrNull()
+    val latest = lastRun.plus(maxInterval)
+    val earliest = lastRun.plus(minInterval)
+    return when {
+      nextExpiry == null || nextExpiry > latest -> latest
+      nextExpiry < earliest -> earliest
+      else -> nextExpiry
+    }
+  }
+
+  companion object {
+    val DEFAULT_MIN_INTERVAL: Duration = Duration.ofMinutes(1)
+    val DEFAULT_MAX_INTERVAL: Duration = Duration.ofHours(6)
+    /** The shortest delay before retrying a failed run. */
+    val MIN_RETRY_DELAY: Duration = Duration.ofSeconds(1)
+    private const val MAX_BACKOFF_DOUBLINGS = 20
+    private val logger = Logcat.default
+    private val className = ExpiryDrivenStoreScheduler::class.java.simpleName
+  }
+}
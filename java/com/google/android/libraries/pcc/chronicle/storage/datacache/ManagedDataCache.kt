@@ -24,6 +24,7 @@ import com.google.android.libraries.pcc.chronicle.api.Trigger
 import com.google.android.libraries.pcc.chronicle.api.storage.WrappedEntity
 import com.google.android.libraries.pcc.chronicle.storage.TypedManagedStore
 import java.time.Duration
+import kotlinx.coroutines.flow.Flow
 
 /** A [TypedDataCache<T>] that is managed with Chronicle. */
 open class ManagedDataCache<T>
@@ -50,18 +51,46 @@ constructor(
 
   override fun get(id: String): WrappedEntity<T>? = cache.get(entityClass, id)
 
+  override fun getAll(ids: Collection<String>): Map<String, WrappedEntity<T>> =
+    cache.getAll(entityClass, ids)
+
   override fun put(entity: WrappedEntity<T>): Boolean = cache.put(entityClass, entity)
 
+  override fun putAll(entities: Collection<WrappedEntity<T>>): Boolean =
+    cache.putAll(entityClass, entities)
+
   override fun remove(id: String): WrappedEntity<T>? = cache.remove(entityClass, id)
 
+  override fun removeAll(ids: Collection<String>): Int = cache.removeAll(entityClass, ids)
+
   override fun all(): List<WrappedEntity<T>> = cache.all(entityClass)
 
   override fun allAsMap(): Map<String, WrappedEntity<T>> = cache.allAsMap(entityClass)
 
+  override fun sequence(): Sequence<WrappedEntity<T>> = cache.sequence(entityClass)
+
+  override fun sequenceByUpdateTime(newestFirst: Boolean): Sequence<WrappedEntity<T>> =
+    cache.sequenceByUpdateTime(entityClass, newestFirst)
+
+  override fun changes(conflate: Boolean): Flow<DataCacheChange<T>> =
+    cache.changes(entityClass, conflate)
+
   override fun removeAll() = cache.removeAll(entityClass)
 
   override fun purgeExpiredEntities() = cache.purgeExpiredEntities()
 
+  /**
+   * Opts this cache into the storage's snapshots, restoring the entities saved by a previous
+   * process. See [DataCacheStorage.enableSnapshots].
+   */
+  fun enableSnapshots(): Int = cache.enableSnapshots(entityClass)
+
+  /** Returns a snapshot of the metrics of this cache. See [DataCacheStorage.metrics]. */
+  fun metrics(): DataCacheMetrics? = cache.metrics(entityClass)
+
+  /** Emits [metrics] every [period]. See [DataCacheStorage.metricsFlow]. */
+  fun metricsFlow(period: Duration): Flow<DataCacheMetrics> = cache.metricsFlow(entityClass, period)
+
   companion object {
     /** Returns an instance of [ManagedDataCache<T>]. */
     inline fun <reified T : Any> create(
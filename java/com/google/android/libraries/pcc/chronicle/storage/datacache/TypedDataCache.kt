@@ -17,6 +17,8 @@
 package com.google.android.libraries.pcc.chronicle.storage.datacache
 
 import com.google.android.libraries.pcc.chronicle.api.storage.WrappedEntity
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.emptyFlow
 
 /** A type based key-value entity store to store values of type [T]. */
 interface TypedDataCache<T> : TypedDataCacheReader<T>, TypedDataCacheWriter<T>
@@ -32,11 +34,33 @@ interface TypedDataCacheReader<T> {
    */
   fun get(id: String): WrappedEntity<T>?
 
+  /** Returns the stored instances identified by [ids], keyed by id, skipping missing ones. */
+  fun getAll(ids: Collection<String>): Map<String, WrappedEntity<T>> =
+    ids.mapNotNull { id -> get(id)?.let { id to it } }.toMap()
+
   /** Returns all stored [WrappedEntity] instances for a specific data type [T]. */
   fun all(): List<WrappedEntity<T>>
 
   /** Returns map of <EntityId, [WrappedEntity]> for instances for a specific data type [T]. */
   fun allAsMap(): Map<String, WrappedEntity<T>>
+
+  /**
+   * Returns a lazy [Sequence] over the stored [WrappedEntity] instances for a specific data type
+   * [T], for reading large caches without materializing them. See [DataCacheStorage.sequence].
+   */
+  fun sequence(): Sequence<WrappedEntity<T>> = all().asSequence()
+
+  /**
+   * Returns a lazy [Sequence] over the stored instances ordered by update time, oldest first unless
+   * [newestFirst] is set. See [DataCacheStorage.sequenceByUpdateTime].
+   */
+  fun sequenceByUpdateTime(newestFirst: Boolean = false): Sequence<WrappedEntity<T>> {
+    val order = DataCacheStorage.UPDATE_TIME_ORDER
+    return all().sortedWith(if (newestFirst) order.reversed() else order).asSequence()
+  }
+
+  /** Returns a [Flow] of the changes made to the cache. See [DataCacheStorage.changes]. */
+  fun changes(conflate: Boolean = false): Flow<DataCacheChange<T>> = emptyFlow()
 }
 
 /** An interface that provides typed write access to a [DataCacheStorage]. */
@@ -48,6 +72,9 @@ interface TypedDataCacheWriter<T> {
    */
   fun put(entity: WrappedEntity<T>): Boolean
 
+  /** Stores a batch of [WrappedEntity] instances. See [DataCacheStorage.putAll]. */
+  fun putAll(entities: Collection<WrappedEntity<T>>): Boolean = entities.map { put(it) }.all { it }
+
   /**
    * Removes stored instance with data type [T] and identified by [id].
    *
@@ -56,6 +83,9 @@ interface TypedDataCacheWriter<T> {
    */
   fun remove(id: String): WrappedEntity<T>?
 
+  /** Removes the stored instances identified by [ids], returning the number removed. */
+  fun removeAll(ids: Collection<String>): Int = ids.count { remove(it) != null }
+
   /** Removes all stored instances for a specific data type [T]. */
   fun removeAll()
 
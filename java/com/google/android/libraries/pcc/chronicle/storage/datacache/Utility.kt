@@ -45,6 +45,13 @@ inline fun <reified T : Any> DataCacheStorage.size() = size(T::class.java)
  */
 inline fun <reified T : Any> DataCacheStorage.get(id: String) = get(T::class.java, id)
 
+/**
+ * A simple helper interface to access [DataCacheStorage.getAll] interface with type parameter.
+ * Example : DataCacheStorage.getAll<T>(ids).
+ */
+inline fun <reified T : Any> DataCacheStorage.getAll(ids: Collection<String>) =
+  getAll(T::class.java, ids)
+
 /**
  * A simple helper interface to access [DataCacheStorage.put] interface with type parameter. Example
  * : DataCacheStorage.put<T>(id, entity).
@@ -52,6 +59,13 @@ inline fun <reified T : Any> DataCacheStorage.get(id: String) = get(T::class.jav
 inline fun <reified T : Any> DataCacheStorage.put(entity: WrappedEntity<T>): Boolean =
   put(T::class.java, entity)
 
+/**
+ * A simple helper interface to access [DataCacheStorage.putAll] interface with type parameter.
+ * Example : DataCacheStorage.putAll<T>(entities).
+ */
+inline fun <reified T : Any> DataCacheStorage.putAll(entities: Collection<WrappedEntity<T>>) =
+  putAll(T::class.java, entities)
+
 /**
  * A simple helper interface to access [DataCacheStorage.remove] interface with type parameter.
  * Example : DataCacheStorage.remove<T>(id).
@@ -65,6 +79,12 @@ inline fun <reified T : Any> DataCacheStorage.remove(id: String): WrappedEntity<
  */
 inline fun <reified T : Any> DataCacheStorage.all() = all(T::class.java)
 
+/**
+ * A simple helper interface to access [DataCacheStorage.sequence] interface with type parameter.
+ * Example : DataCacheStorage.sequence<T>().
+ */
+inline fun <reified T : Any> DataCacheStorage.sequence() = sequence(T::class.java)
+
 /**
  * A simple helper interface to access [DataCacheStorage.removeAll] interface with type parameter.
  * Example : DataCacheStorage.removeAll<T>().
@@ -0,0 +1,507 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.pcc.chronicle.storage.datacache.impl
+
+import com.google.android.libraries.pcc.chronicle.api.storage.WrappedEntity
+import com.google.android.libraries.pcc.chronicle.storage.datacache.DataCacheChange
+import com.google.android.libraries.pcc.chronicle.storage.datacache.DataCacheMetrics
+import com.google.android.libraries.pcc.chronicle.storage.datacache.DataCacheStorage
+import com.google.android.libraries.pcc.chronicle.util.Logcat
+import com.google.android.libraries.pcc.chronicle.util.TimeSource
+import java.time.Duration
+import java.time.Instant
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+import kotlinx.atomicfu.atomic
+import kotlinx.atomicfu.update
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.emptyFlow
+
+/**
+ * A [ConcurrentHashMap] based implementation of [DataCacheStorage].
+ *
+ * Unlike [DataCacheStorageImpl], reads never take a lock and never copy the underlying map: `get`
+ * is a plain concurrent map lookup, and `all`/`allAsMap` iterate the live map using its
+ * weakly-consistent iterators. `size` reads a live counter, after dropping the entities which have
+ * expired since the last purge. Eviction follows a frequency-aware W-TinyLFU policy: reads are
+ * recorded in a lossy buffer which writers drain while holding the per-type eviction lock. Only
+ * writers of the same data type contend with each other.
+ *
+ * Besides the per-type `maxSize`, all data types share a single [maxWeight] budget, as measured by
+ * [weigher]. When a write pushes the total weight over budget, entities are evicted from the
+ * heaviest data types first.
+ *
+ * @param weigher computes the weight of each entity, e.g. [EntityWeigher.serializedSize].
+ * @param maxWeight the total weight allowed across all registered data types.
+ */
+class ConcurrentDataCacheStorage(
+  private val timeSource: TimeSource,
+  private val weigher: EntityWeigher = EntityWeigher.SINGLETON,
+  maxWeight: Long = Long.MAX_VALUE,
+) : DataCacheStorage {
+  private val entityStore = atomic(emptyMap<Class<*>, ConcurrentEntityCache<*>>())
+  private val registrationLock = Any()
+  private val budget = WeightBudget(maxWeight)
+
+  /** The total weight of the entities currently stored, across all data types. */
+  val weight: Long
+    get() = budget.weight
+
+  override val registeredDataTypes: Set<Class<*>>
+    get() = entityStore.value.keys
+
+  override fun registerDataType(cls: Class<*>, maxSize: Int, onDisk: Boolean, ttl: Duration) {
+    require(maxSize > 0) { "maxSize <= 0" }
+    // Registrations are serialized, so that the existing cache is updated, or a new one built, once
+    // and outside of the retried map update.
+    synchronized(registrationLock) {
+      val currentCache = entityStore.value[cls]
+      if (currentCache != null) {
+        currentCache.ttl = ttl
+        currentCache.resize(maxSize)
+      } else {
+        val newCache = ConcurrentEntityCache<Any>(maxSize, ttl, weigher, budget)
+        entityStore.update { it + (cls to newCache) }
+      }
+    }
+
+    logger.d("[%s] registerDataType : %s", className, cls.name)
+  }
+
+  override fun unregisterDataType(cls: Class<*>) {
+    synchronized(registrationLock) {
+      removeAll(cls)
+      entityStore.update { it - cls }
+    }
+    logger.d("[%s] unregisterDataType : %s", className, cls.name)
+  }
+
+  override fun <T> size(cls: Class<T & Any>): Int {
+    val cache = cacheForClass<T>(cls) ?: return 0
+    // Expired entities are dropped lazily, so the count only pays for what has expired since the
+    // last purge.
+    cache.metrics.recordExpirations(cache.removeExpired(expiryThreshold(cache.ttl)))
+    return cache.size
+  }
+
+  override fun <T> get(cls: Class<T & Any>, id: String): WrappedEntity<T>? {
+    val cache = cacheForClass<T>(cls) ?: return null
+    return cache.metrics.timeGet { cache.get(id)?.takeUnless { it.isExpired(cache.ttl) } }
+  }
+
+  override fun <T> getAll(
+    cls: Class<T & Any>,
+    ids: Collection<String>,
+  ): Map<String, WrappedEntity<T>> {
+    val cache = cacheForClass<T>(cls) ?: return emptyMap()
+    val start = System.nanoTime()
+    val threshold = expiryThreshold(cache.ttl)
+    val result = HashMap<String, WrappedEntity<T>>(ids.size)
+    ids.forEach { id ->
+      cache.get(id)?.takeUnless { it.metadata.created.isBefore(threshold) }?.let { result[id] = it }
+    }
+    cache.metrics.recordGets(System.nanoTime() - start, result.size, ids.size - result.size)
+    return result
+  }
+
+  override fun <T> put(cls: Class<out T & Any>, entity: WrappedEntity<T>): Boolean {
+    val cache = cacheForClass<T>(cls) ?: return false
+    return cache.metrics.timePut {
+      cache.put(entity.metadata.id, entity)
+      enforceBudget()
+      true
+    }
+  }
+
+  override fun <T> putAll(
+    cls: Class<out T & Any>,
+    entities: Collection<WrappedEntity<T>>,
+  ): Boolean {
+    val cache = cacheForClass<T>(cls) ?: return false
+    val start = System.nanoTime()
+    cache.putAll(entities)
+    enforceBudget()
+    cache.metrics.recordPuts(System.nanoTime() - start, entities.size)
+    return true
+  }
+
+  override fun <T> remove(cls: Class<out T & Any>, id: String): WrappedEntity<T>? =
+    cacheForClass<T>(cls)?.remove(id)
+
+  override fun <T> removeAll(cls: Class<out T & Any>, ids: Collection<String>): Int =
+    cacheForClass<T>(cls)?.removeAll(ids) ?: 0
+
+  override fun <T> all(cls: Class<T & Any>): List<WrappedEntity<T>> = sequence(cls).toList()
+
+  override fun <T> allAsMap(cls: Class<T & Any>): Map<String, WrappedEntity<T>> =
+    sequence(cls).associateBy { it.metadata.id }
+
+  override fun <T> sequence(cls: Class<T & Any>): Sequence<WrappedEntity<T>> {
+    val cache = cacheForClass<T>(cls) ?: return emptySequence()
+    val threshold = expiryThreshold(cache.ttl)
+    return cache.entries().filterNot { it.metadata.created.isBefore(threshold) }
+  }
+
+  override fun removeAll(cls: Class<*>) {
+    cacheForClass<Any>(cls)?.let { cache -> cache.metrics.recordPurges(cache.clear()) }
+  }
+
+  override fun purgeExpiredEntities() {
+    logger.d("[%s]: purging entities from data cache.", className)
+    entityStore.value.values.forEach { cache ->
+      cache.metrics.recordExpirations(cache.removeExpired(expiryThreshold(cache.ttl)))
+    }
+  }
+
+  override fun nextExpiry(): Instant? =
+    entityStore.value.values
+      .mapNotNull { cache ->
+        val earliestCreatedMillis = cache.earliestCreatedMillis ?: return@mapNotNull null
+        Instant.ofEpochMilli(earliestCreatedMillis + cache.ttl.toMillis() + 1)
+      }
+      .minOrNull()
+
+  override fun purgeAllEntitiesForPackage(packageName: String): Int {
+    logger.d("[%s]: purging all entities for package removal.", className)
+    return entityStore.value.values.sumOf { cache ->
+      cache.purgeWhere { packageName in it.metadata.associatedPackageNamesList }
+    }
+  }
+
+  override fun purgeEntitiesForPackage(cls: Class<*>, packageName: String): Int {
+    logger.d("[%s]: purging %s entities for package removal.", className, cls.name)
+    return cacheForClass<Any>(cls)?.purgeWhere {
+      packageName in it.metadata.associatedPackageNamesList
+    } ?: 0
+  }
+
+  override fun purgeAllEntitiesNotInPackages(packages: Set<String>): Int {
+    logger.d("[%s]: purging entities for package reconciliation.", className)
+    return entityStore.value.values.sumOf { cache ->
+      cache.purgeWhere { it.metadata.associatedPackageNamesList.all { pkg -> pkg !in packages } }
+    }
+  }
+
+  override fun purgeEntitiesWhere(
+    cls: Class<out Any>,
+    predicate: (WrappedEntity<*>) -> Boolean,
+  ): Int = cacheForClass<Any>(cls)?.purgeWhere(predicate) ?: 0
+
+  override fun purgeAllEntities(): Int {
+    return entityStore.value.values.sumOf { cache -> cache.purgeWhere { true } }
+  }
+
+  override fun <T> changes(cls: Class<T & Any>, conflate: Boolean): Flow<DataCacheChange<T>> =
+    cacheForClass<T>(cls)?.changeFeed?.changes(conflate) ?: emptyFlow()
+
+  override fun metrics(cls: Class<*>): DataCacheMetrics? =
+    entityStore.value[cls]?.metrics?.snapshot()
+
+  private fun expiryThreshold(ttl: Duration): Instant = timeSource.now().minusMillis(ttl.toMillis())
+
+  private fun WrappedEntity<*>.isExpired(ttl: Duration): Boolean =
+    metadata.created.isBefore(expiryThreshold(ttl))
+
+  private fun <T> ConcurrentEntityCache<T>.purgeWhere(
+    predicate: (WrappedEntity<T>) -> Boolean
+  ): Int = removeWhere(predicate).also { metrics.recordPurges(it) }
+
+  /**
+   * Evicts entities until the shared budget is respected, taking them from whichever data type is
+   * the heaviest at each step. Locks are only taken one data type at a time.
+   */
+  private fun enforceBudget() {
+    while (budget.isExceeded) {
+      val heaviest = entityStore.value.values.maxByOrNull { it.weight } ?: return
+      if (!heaviest.evictForBudget()) return
+    }
+  }
+
+  @Suppress("UNCHECKED_CAST")
+  private fun <T> cacheForClass(cls: Class<*>): ConcurrentEntityCache<T>? {
+    val result = entityStore.value[cls] as? ConcurrentEntityCache<T>
+    if (result == null) {
+      logger.d("[%s] no store registered for %s.", className, cls)
+    }
+    return result
+  }
+
+  companion object {
+    private val logger = Logcat.default
+    private val className = ConcurrentDataCacheStorage::class.java.simpleName
+  }
+}
+
+/**
+ * A bounded cache for a single data type, using a simplified W-TinyLFU eviction policy.
+ *
+ * Entries live in a [ConcurrentHashMap], so lookups and iteration are lock-free. Eviction order is
+ * tracked by two access-ordered [LinkedHashMap]s guarded by [evictionLock]: a small admission
+ * window holding the most recently written entries, and a main region holding the rest. When the
+ * window overflows, its eldest entry only enters the main region if the [FrequencySketch] estimates
+ * it has been used more often than the main region's eldest entry; otherwise it is evicted. This
+ * keeps frequently read entries cached through bursts of one-off writes.
+ *
+ * Reads do not touch the policy directly; they offer the key to [readBuffer] and the buffer is
+ * replayed by the next writer (or by a reader that wins a `tryLock` once the buffer fills up). When
+ * the buffer is full, further reads are dropped, which is what makes the ordering approximate.
+ *
+ * The number of entries is counted as they are inserted and removed, and an [ExpiryIndex] lets
+ * expired entries be removed without scanning the live ones.
+ */
+internal class ConcurrentEntityCache<T>(
+  maxSize: Int,
+  @Volatile var ttl: Duration,
+  private val weigher: EntityWeigher,
+  private val budget: WeightBudget,
+) {
+  private val map = ConcurrentHashMap<String, WrappedEntity<T>>()
+  private val evictionLock = ReentrantLock()
+  // The following are guarded by evictionLock.
+  private val window = LinkedHashMap<String, Unit>(16, 0.75f, /* accessOrder= */ true)
+  private val main = LinkedHashMap<String, Unit>(16, 0.75f, /* accessOrder= */ true)
+  private val weights = HashMap<String, Int>()
+  private val expiryIndex = ExpiryIndex()
+  private var sketch = FrequencySketch(maxSize)
+  private val readBuffer = ArrayBlockingQueue<String>(READ_BUFFER_SIZE)
+
+  /** Metrics of this cache. Capacity evictions are recorded by the cache itself. */
+  val metrics = DataCacheMetricsRecorder()
+
+  /** Publishes every insertion, update and removal made to this cache. */
+  val changeFeed = DataCacheChangeFeed<T>()
+
+  @Volatile
+  var maxSize: Int = maxSize
+    private set
+
+  /** The total weight of the cached entries, as computed by the [EntityWeigher]. */
+  @Volatile
+  var weight: Long = 0
+    private set
+
+  /** The number of cached entries, including the expired ones not removed yet. */
+  @Volatile
+  var size: Int = 0
+    private set
+
+  /** The creation time of the oldest cached entry, or `null` if the cache is empty. */
+  val earliestCreatedMillis: Long?
+    get() = evictionLock.withLock { expiryIndex.earliestCreatedMillis }
+
+  private val windowMaxSize: Int
+    get() = maxOf(1, maxSize / WINDOW_PERCENTAGE_DIVISOR)
+
+  fun get(id: String): WrappedEntity<T>? {
+    val result = map[id] ?: return null
+    if (!readBuffer.offer(id) && evictionLock.tryLock()) {
+      try {
+        drainReadBuffer()
+      } finally {
+        evictionLock.unlock()
+      }
+    }
+    return result
+  }
+
+  fun put(id: String, entity: WrappedEntity<T>): WrappedEntity<T>? =
+    evictionLock.withLock {
+      drainReadBuffer()
+      sketch.increment(id.hashCode())
+      val previous = map.put(id, entity)
+      if (previous == null) size++
+      expiryIndex.onPut(entity.metadata)
+      updateWeight(id, weigher.weigh(entity))
+      when {
+        // LinkedHashMap.get moves the key to the tail when in access order.
+        window.containsKey(id) -> window[id]
+        main.containsKey(id) -> main[id]
+        else -> window[id] = Unit
+      }
+      if (changeFeed.hasSubscribers) {
+        changeFeed.publish(
+          if (previous == null) DataCacheChange.Inserted(entity)
+          else DataCacheChange.Updated(entity)
+        )
+      }
+      evictIfNeeded()
+      previous
+    }
+
+  /** Stores every entity of [entities] under a single acquisition of the eviction lock. */
+  fun putAll(entities: Collection<WrappedEntity<T>>) {
+    evictionLock.withLock { entities.forEach { put(it.metadata.id, it) } }
+  }
+
+  fun remove(id: String): WrappedEntity<T>? = evictionLock.withLock { removeEntry(id) }
+
+  /** Removes the entries with the given [ids], returning the number of entries removed. */
+  fun removeAll(ids: Collection<String>): Int =
+    evictionLock.withLock { ids.count { removeEntry(it) != null } }
+
+  /** Removes every entry matching [predicate], returning the number of entries removed. */
+  fun removeWhere(predicate: (WrappedEntity<T>) -> Boolean): Int =
+    evictionLock.withLock {
+      map.values.filter(predicate).count { removeEntry(it.metadata.id) != null }
+    }
+
+  /**
+   * Removes the entries created strictly before [threshold], publishing them as expirations, and
+   * returns the number of entries removed.
+   */
+  fun removeExpired(threshold: Instant): Int =
+    evictionLock.withLock {
+      expiryIndex.idsCreatedBefore(threshold).count { removeEntry(it, expired = true) != null }
+    }
+
+  /** Removes every entry, returning the number of entries removed. */
+  fun clear(): Int =
+    evictionLock.withLock {
+      val count = map.size
+      if (changeFeed.hasSubscribers) {
+        map.keys.forEach { changeFeed.publish(DataCacheChange.Removed(it)) }
+      }
+      map.clear()
+      window.clear()
+      main.clear()
+      weights.clear()
+      expiryIndex.clear()
+      readBuffer.clear()
+      size = 0
+      budget.add(-weight)
+      weight = 0
+      count
+    }
+
+  fun resize(maxSize: Int) {
+    evictionLock.withLock {
+      if (maxSize != this.maxSize) {
+        this.maxSize = maxSize
+        sketch = FrequencySketch(maxSize)
+      }
+      evictIfNeeded()
+    }
+  }
+
+  /**
+   * Evicts the least valuable entry of the cache to free up space in the shared [budget]: the
+   * less frequently used of the admission window's and the main region's eldest entries. Returns
+   * `false` if the cache is empty.
+   */
+  fun evictForBudget(): Boolean =
+    evictionLock.withLock {
+      drainReadBuffer()
+      val windowVictim = window.keys.firstOrNull()
+      val mainVictim = main.keys.firstOrNull()
+      val victim =
+        when {
+          windowVictim == null -> mainVictim
+          mainVictim == null -> windowVictim
+          frequencyOf(windowVictim) >= frequencyOf(mainVictim) -> mainVictim
+          else -> windowVictim
+        } ?: return@withLock false
+      evictEntry(victim)
+      true
+    }
+
+  /** Returns a weakly-consistent view of the live entries, without copying the map. */
+  fun entries(): Sequence<WrappedEntity<T>> = map.values.asSequence()
+
+  private fun drainReadBuffer() {
+    while (true) {
+      val id = readBuffer.poll() ?: return
+      sketch.increment(id.hashCode())
+      when {
+        window.containsKey(id) -> window[id]
+        main.containsKey(id) -> main[id]
+      }
+    }
+  }
+
+  private fun evictIfNeeded() {
+    // Entries overflowing the window compete with the eldest entry of the main region.
+    while (window.size > windowMaxSize) {
+      val candidate = window.keys.first()
+      window.remove(candidate)
+      main[candidate] = Unit
+      if (map.size > maxSize) {
+        val victim = main.keys.first()
+        if (victim == candidate || frequencyOf(candidate) > frequencyOf(victim)) {
+          evictEntry(victim)
+        } else {
+          evictEntry(candidate)
+        }
+      }
+    }
+    // Shrinking the cache can leave the main region over capacity.
+    while (map.size > maxSize) {
+      val victim = main.keys.firstOrNull() ?: window.keys.firstOrNull() ?: return
+      evictEntry(victim)
+    }
+  }
+
+  private fun frequencyOf(id: String): Int = sketch.frequency(id.hashCode())
+
+  private fun updateWeight(id: String, newWeight: Int) {
+    val delta = newWeight.toLong() - (weights.put(id, newWeight) ?: 0)
+    weight += delta
+    budget.add(delta)
+  }
+
+  private fun evictEntry(id: String) {
+    if (removeEntry(id) != null) metrics.recordEvictions(1)
+  }
+
+  private fun removeEntry(id: String, expired: Boolean = false): WrappedEntity<T>? {
+    window.remove(id)
+    main.remove(id)
+    weights.remove(id)?.let { removedWeight ->
+      weight -= removedWeight
+      budget.add(-removedWeight.toLong())
+    }
+    val removed = map.remove(id) ?: return null
+    size--
+    expiryIndex.onRemove(removed.metadata)
+    if (changeFeed.hasSubscribers) {
+      changeFeed.publish(if (expired) DataCacheChange.Expired(id) else DataCacheChange.Removed(id))
+    }
+    return removed
+  }
+
+  companion object {
+    private const val READ_BUFFER_SIZE = 128
+    /** The admission window holds 1% of the entries. */
+    private const val WINDOW_PERCENTAGE_DIVISOR = 100
+  }
+}
+
+/** The total weight of the entities of every data type in a [ConcurrentDataCacheStorage]. */
+internal class WeightBudget(val maxWeight: Long) {
+  private val totalWeight = atomic(0L)
+
+  val weight: Long
+    get() = totalWeight.value
+
+  val isExceeded: Boolean
+    get() = totalWeight.value > maxWeight
+
+  fun add(delta: Long) {
+    totalWeight.addAndGet(delta)
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.pcc.chronicle.storage.datacache.impl
+
+import com.google.android.libraries.pcc.chronicle.storage.datacache.DataCacheChange
+import java.util.concurrent.CopyOnWriteArrayList
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.awaitClose
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.buffer
+import kotlinx.coroutines.flow.callbackFlow
+import kotlinx.coroutines.flow.flow
+
+/**
+ * Fans out the [DataCacheChange]s of a single data type to the collectors of [changes].
+ *
+ * [publish] never blocks, so it can be called while holding the cache's lock: each collector
+ * buffers the changes it hasn't consumed yet. Caches should check [hasSubscribers] before building
+ * changes, so that nothing is allocated while nobody is listening.
+ */
+class DataCacheChangeFeed<T> {
+  private val listeners = CopyOnWriteArrayList<(DataCacheChange<T>) -> Unit>()
+
+  /** Whether any [changes] flow is being collected. */
+  val hasSubscribers: Boolean
+    get() = listeners.isNotEmpty()
+
+  fun publish(change: DataCacheChange<T>) {
+    listeners.forEach { it(change) }
+  }
+
+  /**
+   * Returns a [Flow] of the changes published while it is collected.
+   *
+   * Without [conflate], every change is delivered in order and buffered without bound while the
+   * collector is busy. With [conflate], a busy collector only receives the latest change of each
+   * entity once it resumes, in the order the entities first changed. Collectors of a conflated flow
+   * should therefore treat [DataCacheChange.Inserted] and [DataCacheChange.Updated] alike.
+   */
+  fun changes(conflate: Boolean = false): Flow<DataCacheChange<T>> =
+    if (conflate) conflatedChanges() else allChanges()
+
+  private fun allChanges(): Flow<DataCacheChange<T>> =
+    callbackFlow {
+        val listener: (DataCacheChange<T>) -> Unit = { trySend(it) }
+        listeners += listener
+        awaitClose { listeners -= listener }
+      }
+      .buffer(Channel.UNLIMITED)
+
+  private fun conflatedChanges(): Flow<DataCacheChange<T>> = flow {
+    val pending = LinkedHashMap<String, DataCacheChange<T>>()
+    val signal = Channel<Unit>(Channel.CONFLATED)
+    val listener: (DataCacheChange<T>) -> Unit = { change ->
+      synchronized(pending) { pending[change.id] = change }
+      signal.trySend(Unit)
+    }
+    listeners += listener
+    try {
+      for (unused in signal) {
+        val batch = synchronized(pending) { pending.values.toList().also { pending.clear() } }
+        batch.forEach { emit(it) }
+      }
+    } finally {
+      listeners -= listener
+    }
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.pcc.chronicle.storage.datacache.impl
+
+import com.google.android.libraries.pcc.chronicle.storage.datacache.DataCacheMetrics
+import com.google.android.libraries.pcc.chronicle.storage.datacache.LatencyHistogram
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Records the [DataCacheMetrics] of a single data type.
+ *
+ * Every counter is a [LongAdder], which stripes its updates over several cells when it is
+ * contended, so recording from many threads costs little more than an uncontended increment.
+ * [snapshot] sums the cells, and is not atomic with respect to concurrent updates.
+ */
+class DataCacheMetricsRecorder {
+  private val hits = LongAdder()
+  private val misses = LongAdder()
+  private val puts = LongAdder()
+  private val evictions = LongAdder()
+  private val expirations = LongAdder()
+  private val purges = LongAdder()
+  private val getLatency = LatencyRecorder()
+  private val putLatency = LatencyRecorder()
+
+  fun recordEvictions(count: Int) = evictions.add(count.toLong())
+
+  fun recordExpirations(count: Int) = expirations.add(count.toLong())
+
+  fun recordPurges(count: Int) = purges.add(count.toLong())
+
+  /** Runs [block] as a `get`, recording its latency, and a hit or miss depending on its result. */
+  inline fun <T> timeGet(block: () -> T?): T? {
+    val start = System.nanoTime()
+    val result = block()
+    recordGet(System.nanoTime() - start, hit = result != null)
+    return result
+  }
+
+  /** Runs [block] as a `put`, recording its latency, and the put if it returns `true`. */
+  inline fun timePut(block: () -> Boolean): Boolean {
+    val start = System.nanoTime()
+    val result = block()
+    recordPut(System.nanoTime() - start, stored = result)
+    return result
+  }
+
+  fun recordGet(latencyNanos: Long, hit: Boolean) {
+    if (hit) hits.increment() else misses.increment()
+    getLatency.record(latencyNanos)
+  }
+
+  /** Records a batch `get`, whose latency is recorded as a single sample. */
+  fun recordGets(latencyNanos: Long, hitCount: Int, missCount: Int) {
+    hits.add(hitCount.toLong())
+    misses.add(missCount.toLong())
+    getLatency.record(latencyNanos)
+  }
+
+  fun recordPut(latencyNanos: Long, stored: Boolean) {
+    if (stored) puts.increment()
+    putLatency.record(latencyNanos)
+  }
+
+  /** Records a batch `put`, whose latency is recorded as a single sample. */
+  fun recordPuts(latencyNanos: Long, count: Int) {
+    puts.add(count.toLong())
+    putLatency.record(latencyNanos)
+  }
+
+  fun snapshot() =
+    DataCacheMetrics(
+      hitCount = hits.sum(),
+      missCount = misses.sum(),
+      putCount = puts.sum(),
+      evictionCount = evictions.sum(),
+      expirationCount = expirations.sum(),
+      purgeCount = purges.sum(),
+      getLatency = getLatency.snapshot(),
+      putLatency = putLatency.snapshot(),
+    )
+}
+
+/**
+ * A latency histogram with power-of-two buckets from 1µs (1024ns) to about 1s, plus an overflow
+ * bucket, so that recording a sample is a bit count and a [LongAdder] increment.
+ */
+internal class LatencyRecorder {
+  private val buckets = Array(BUCKET_UPPER_BOUNDS_NANOS.size) { LongAdder() }
+
+  fun record(latencyNanos: Long) {
+    // Bucket i holds samples in (2^(i + 9), 2^(i + 10)] nanoseconds.
+    val log2 = 64 - java.lang.Long.numberOfLeadingZeros(maxOf(latencyNanos - 1, 0))
+    buckets[(log2 - MIN_BUCKET_LOG2).coerceIn(0, buckets.size - 1)].increment()
+  }
+
+  fun snapshot() = LatencyHistogram(BUCKET_UPPER_BOUNDS_NANOS, buckets.map { it.sum() })
+
+  companion object {
+    private const val MIN_BUCKET_LOG2 = 10
+    private const val MAX_BUCKET_LOG2 = 30
+    private val BUCKET_UPPER_BOUNDS_NANOS =
+      (MIN_BUCKET_LOG2..MAX_BUCKET_LOG2).map { 1L shl it } + Long.MAX_VALUE
+  }
+}
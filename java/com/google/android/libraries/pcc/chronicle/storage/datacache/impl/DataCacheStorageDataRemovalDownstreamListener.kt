@@ -19,6 +19,7 @@ package com.google.android.libraries.pcc.chronicle.storage.datacache.impl
 import android.view.contentcapture.DataRemovalRequest
 import com.google.android.libraries.pcc.chronicle.api.DataRemovalDownstreamListener
 import com.google.android.libraries.pcc.chronicle.storage.datacache.DataCacheStorage
+import com.google.android.libraries.pcc.chronicle.storage.datacache.DataRemovalScope
 import com.google.android.libraries.pcc.chronicle.util.Logcat
 
 class DataCacheStorageDataRemovalDownstreamListener(
@@ -26,8 +27,12 @@ class DataCacheStorageDataRemovalDownstreamListener(
 ) : DataRemovalDownstreamListener {
 
   override fun onDataRemoval(request: DataRemovalRequest) {
-    // TODO(b/232848132): Don't just delete everything.
-    val countRemoved = dataCacheStorage.purgeAllEntities()
+    // A request identifies the requesting package and, optionally, locus ids. Entities may carry a
+    // locus id in their metadata, but writers don't have to set it, so removing only the requested
+    // loci could keep data the request covers: all the package's entities are removed instead.
+    // Other packages' entities stay cached.
+    val countRemoved =
+      dataCacheStorage.purgeEntitiesInScope(DataRemovalScope(packageName = request.packageName))
     logger.d("Number of items removed from DataCacheStorage: %d.", countRemoved)
   }
 
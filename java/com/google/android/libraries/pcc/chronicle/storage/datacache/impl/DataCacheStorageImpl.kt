@@ -18,143 +18,368 @@ package com.google.android.libraries.pcc.chronicle.storage.datacache.impl
 
 import android.util.LruCache
 import com.google.android.libraries.pcc.chronicle.api.storage.WrappedEntity
-import com.google.android.libraries.pcc.chronicle.api.storage.toInstant
+import com.google.android.libraries.pcc.chronicle.storage.datacache.DataCacheChange
+import com.google.android.libraries.pcc.chronicle.storage.datacache.DataCacheMetrics
 import com.google.android.libraries.pcc.chronicle.storage.datacache.DataCacheStorage
+import com.google.android.libraries.pcc.chronicle.storage.datacache.DataRemovalScope
+import com.google.android.libraries.pcc.chronicle.storage.datacache.StoreSerializable
 import com.google.android.libraries.pcc.chronicle.util.Logcat
 import com.google.android.libraries.pcc.chronicle.util.TimeSource
+import java.io.File
+import java.io.IOException
 import java.time.Duration
+import java.time.Instant
 import kotlinx.atomicfu.atomic
+import kotlinx.atomicfu.getAndUpdate
 import kotlinx.atomicfu.update
+import kotlinx.atomicfu.updateAndGet
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.emptyFlow
 
-/** A [LruCache] based implementation of [DataCacheStorage]. */
-class DataCacheStorageImpl(private val timeSource: TimeSource) : DataCacheStorage {
+/**
+ * A [LruCache] based implementation of [DataCacheStorage].
+ *
+ * Data types registered with `onDisk = true` keep only a small hot set of entities on the heap
+ * when a [spillDirectory] is provided: the rest are spilled to memory-mapped files in a
+ * subdirectory named after the data type, under [SPILL_SUBDIRECTORY]. This requires the type to be
+ * a proto or to implement [StoreSerializable]; other types, or all types when [spillDirectory] is
+ * `null`, are kept on the heap.
+ *
+ * When a [snapshotDirectory] is provided, types opted in with [enableSnapshots] can be saved to a
+ * snapshot file per type, under [SNAPSHOT_SUBDIRECTORY], from which the next process restores
+ * them. The same serialization requirements apply. Both tiers keep to their subdirectory, so they
+ * may share a directory.
+ */
+class DataCacheStorageImpl(
+  private val timeSource: TimeSource,
+  private val spillDirectory: File? = null,
+  private val snapshotDirectory: File? = null,
+) : DataCacheStorage {
   private val entityStore = atomic(emptyMap<Class<*>, DataCacheWrapper<*>>())
+  private val registrationLock = Any()
+  private val snapshots = atomic(emptyMap<Class<*>, EntitySnapshotFile<*>>())
+  private val capacityScale = atomic(CapacityScale())
 
   override val registeredDataTypes: Set<Class<*>>
     get() = entityStore.value.keys
 
   override fun registerDataType(cls: Class<*>, maxSize: Int, onDisk: Boolean, ttl: Duration) {
-    entityStore.update { currentMap ->
-      val currentCache = storeForClass(cls)
-      currentCache?.resize(maxSize)
-
+    // Registrations are serialized, so that the existing cache is resized, or a new one and its
+    // spill tier built, once and outside of the retried map update.
+    synchronized(registrationLock) {
+      val scaledSize = capacityScale.value.sizeFor(cls, maxSize)
+      @Suppress("UNCHECKED_CAST")
+      val currentCache = entityStore.value[cls]?.cache as IndexedLruCache<Any>?
+      currentCache?.resizeCache(scaledSize)
       val newEntry =
-        DataCacheWrapper(cache = currentCache ?: LruCache(maxSize), config = CacheConfig(ttl))
-
-      currentMap + (cls to newEntry)
+        DataCacheWrapper(
+          cache = currentCache ?: IndexedLruCache(scaledSize, spillTierFor<Any>(cls, onDisk)),
+          config = CacheConfig(ttl, maxSize),
+        )
+      entityStore.update { it + (cls to newEntry) }
     }
 
     logger.d("[%s] registerDataType : %s", className, cls.name)
   }
 
   override fun unregisterDataType(cls: Class<*>) {
-    removeAll(cls)
-    entityStore.update { it - cls }
+    synchronized(registrationLock) {
+      removeAll(cls)
+      entityStore.update { it - cls }
+    }
+    snapshots.getAndUpdate { it - cls }[cls]?.delete()
     logger.d("[%s] unregisterDataType : %s", className, cls.name)
   }
 
-  override fun <T> size(cls: Class<T & Any>): Int = all(cls).size
+  override fun <T> size(cls: Class<T & Any>): Int {
+    val dataCacheWrapper = dataCacheWrapperForClass<T>(cls) ?: return 0
+    // Expired entities are dropped lazily, so the count only pays for what has expired since the
+    // last purge.
+    return synchronized(dataCacheWrapper.cache) {
+      dataCacheWrapper.purgeExpiredEntities(expiryThreshold(dataCacheWrapper.config.ttl))
+      dataCacheWrapper.cache.entityCount()
+    }
+  }
 
   override fun <T> get(cls: Class<T & Any>, id: String): WrappedEntity<T>? {
     val dataCacheWrapper = dataCacheWrapperForClass<T>(cls) ?: return null
-    val lookupEntityWrapper = dataCacheWrapper.cache.get(id) ?: return null
-    val ttl = dataCacheWrapper.config.ttl
-    if (lookupEntityWrapper.isExpired(ttl)) {
-      return null
+    return dataCacheWrapper.cache.metrics.timeGet {
+      val threshold = expiryThreshold(dataCacheWrapper.config.ttl)
+      dataCacheWrapper.cache.getEntity(id)?.takeUnless { it.isCreatedBefore(threshold) }
     }
-    return lookupEntityWrapper
+  }
+
+  override fun <T> getAll(
+    cls: Class<T & Any>,
+    ids: Collection<String>,
+  ): Map<String, WrappedEntity<T>> {
+    val dataCacheWrapper = dataCacheWrapperForClass<T>(cls) ?: return emptyMap()
+    val start = System.nanoTime()
+    val threshold = expiryThreshold(dataCacheWrapper.config.ttl)
+    val result = HashMap<String, WrappedEntity<T>>(ids.size)
+    ids.forEach { id ->
+      dataCacheWrapper.cache
+        .getEntity(id)
+        ?.takeUnless { it.isCreatedBefore(threshold) }
+        ?.let { result[id] = it }
+    }
+    dataCacheWrapper.cache.metrics.recordGets(
+      System.nanoTime() - start,
+      hitCount = result.size,
+      missCount = ids.size - result.size,
+    )
+    return result
   }
 
   override fun <T> put(cls: Class<out T & Any>, entity: WrappedEntity<T>): Boolean {
     val entityCache = storeForClass<T>(cls) ?: return false
-    entityCache.put(entity.metadata.id, entity)
+    return entityCache.metrics.timePut {
+      entityCache.putEntity(entity)
+      true
+    }
+  }
+
+  override fun <T> putAll(
+    cls: Class<out T & Any>,
+    entities: Collection<WrappedEntity<T>>,
+  ): Boolean {
+    val entityCache = storeForClass<T>(cls) ?: return false
+    val start = System.nanoTime()
+    entityCache.putEntities(entities)
+    entityCache.metrics.recordPuts(System.nanoTime() - start, entities.size)
     return true
   }
 
   override fun <T> remove(cls: Class<out T & Any>, id: String): WrappedEntity<T>? =
-    storeForClass<T>(cls)?.remove(id)
+    storeForClass<T>(cls)?.removeEntity(id)?.also { invalidateSnapshot(cls) }
 
-  override fun <T> all(cls: Class<T & Any>): List<WrappedEntity<T>> {
-    val dataCacheWrapper = dataCacheWrapperForClass<T>(cls) ?: return emptyList()
-    val ttl = dataCacheWrapper.config.ttl
-    return dataCacheWrapper.cache.snapshot().values.filterNot { it.isExpired(ttl) }
+  override fun <T> removeAll(cls: Class<out T & Any>, ids: Collection<String>): Int =
+    (storeForClass<T>(cls)?.removeEntities(ids) ?: 0).invalidatingSnapshot(cls)
+
+  override fun <T> all(cls: Class<T & Any>): List<WrappedEntity<T>> = sequence(cls).toList()
+
+  override fun <T> allAsMap(cls: Class<T & Any>): Map<String, WrappedEntity<T>> =
+    sequence(cls).associateBy { it.metadata.id }
+
+  override fun <T> sequence(cls: Class<T & Any>): Sequence<WrappedEntity<T>> {
+    val dataCacheWrapper = dataCacheWrapperForClass<T>(cls) ?: return emptySequence()
+    val threshold = expiryThreshold(dataCacheWrapper.config.ttl)
+    return dataCacheWrapper.cache.entities().filterNot { it.isCreatedBefore(threshold) }
   }
 
-  override fun <T> allAsMap(cls: Class<T & Any>): Map<String, WrappedEntity<T>> {
-    val dataCacheWrapper = dataCacheWrapperForClass<T>(cls) ?: return emptyMap()
-    val ttl = dataCacheWrapper.config.ttl
-    return dataCacheWrapper.cache.snapshot().filterNot { it.value.isExpired(ttl) }
+  override fun <T> sequenceByUpdateTime(
+    cls: Class<T & Any>,
+    newestFirst: Boolean,
+  ): Sequence<WrappedEntity<T>> {
+    val dataCacheWrapper = dataCacheWrapperForClass<T>(cls) ?: return emptySequence()
+    val threshold = expiryThreshold(dataCacheWrapper.config.ttl)
+    return dataCacheWrapper.cache
+      .entitiesByUpdateTime(newestFirst)
+      .filterNot { it.isCreatedBefore(threshold) }
   }
 
   override fun removeAll(cls: Class<*>) {
-    storeForClass(cls)?.evictAll()
+    storeForClass<Any>(cls)?.let { cache ->
+      cache.metrics.recordPurges(cache.removeAllEntities().invalidatingSnapshot(cls))
+    }
   }
 
   override fun purgeExpiredEntities() {
     logger.d("[%s]: purging entities from data cache.", className)
     entityStore.value.values.forEach { dataCacheWrapper ->
-      val ttl = dataCacheWrapper.config.ttl
-      dataCacheWrapper.purgeEntitiesWhere { it.isExpired(ttl) }
+      dataCacheWrapper.purgeExpiredEntities(expiryThreshold(dataCacheWrapper.config.ttl))
     }
   }
 
+  override fun nextExpiry(): Instant? =
+    entityStore.value.values
+      .mapNotNull { dataCacheWrapper ->
+        val cache = dataCacheWrapper.cache
+        val earliestCreatedMillis =
+          synchronized(cache) { cache.expiryIndex.earliestCreatedMillis } ?: return@mapNotNull null
+        // An entity expires once strictly older than the ttl, and the index truncates to millis.
+        Instant.ofEpochMilli(earliestCreatedMillis + dataCacheWrapper.config.ttl.toMillis() + 1)
+      }
+      .minOrNull()
+
   override fun purgeAllEntitiesForPackage(packageName: String): Int {
     logger.d("[%s]: purging all entities for package removal.", className)
-    return entityStore.value.values
-      .map { dataCacheWrapper ->
-        dataCacheWrapper.purgeEntitiesWhere {
-          packageName in it.metadata.associatedPackageNamesList
-        }
-      }
-      .sum()
+    return entityStore.value.entries.sumOf { (cls, dataCacheWrapper) ->
+      dataCacheWrapper.purgeEntitiesForPackage(packageName).invalidatingSnapshot(cls)
+    }
   }
 
   override fun purgeEntitiesForPackage(cls: Class<*>, packageName: String): Int {
     logger.d("[%s]: purging %s entities for package removal.", className, cls.name)
-    return dataCacheWrapperForClass(cls)?.purgeEntitiesWhere {
-      packageName in it.metadata.associatedPackageNamesList
-    } ?: 0
+    return (dataCacheWrapperForClass(cls)?.purgeEntitiesForPackage(packageName) ?: 0)
+      .invalidatingSnapshot(cls)
   }
 
   override fun purgeAllEntitiesNotInPackages(packages: Set<String>): Int {
     logger.d("[%s]: purging entities for package reconciliation.", className)
-    return entityStore.value.values
-      .map { dataCacheWrapper ->
-        dataCacheWrapper.purgeEntitiesWhere {
-          it.metadata.associatedPackageNamesList.all { pkg -> pkg !in packages }
+    return entityStore.value.entries.sumOf { (cls, dataCacheWrapper) ->
+      val cache = dataCacheWrapper.cache
+      synchronized(cache) { cache.removeEntities(cache.packageIndex.idsNotInPackages(packages)) }
+        .also { cache.metrics.recordPurges(it) }
+        .invalidatingSnapshot(cls)
+    }
+  }
+
+  override fun purgeEntitiesInScope(scope: DataRemovalScope): Int {
+    logger.d("[%s]: purging entities for data removal.", className)
+    return entityStore.value.entries.sumOf { (cls, dataCacheWrapper) ->
+      if (!scope.includesType(cls)) return@sumOf 0
+      val cache = dataCacheWrapper.cache
+      // The package index narrows the removal to the package's entities, and the expiry index
+      // checks their creation time without visiting any other entity.
+      synchronized(cache) {
+          val ids =
+            cache.packageIndex.idsForPackage(scope.packageName).filter { id ->
+              cache.expiryIndex.isCreatedWithin(id, scope.createdFrom, scope.createdUntil)
+            }
+          cache.removeEntities(ids)
         }
-      }
-      .sum()
+        .also { cache.metrics.recordPurges(it) }
+        .invalidatingSnapshot(cls)
+    }
   }
 
   override fun purgeEntitiesWhere(
     cls: Class<out Any>,
     predicate: (WrappedEntity<*>) -> Boolean,
-  ): Int = dataCacheWrapperForClass(cls)?.purgeEntitiesWhere(predicate) ?: 0
+  ): Int =
+    (dataCacheWrapperForClass(cls)?.purgeEntitiesWhere(predicate) ?: 0).invalidatingSnapshot(cls)
 
   override fun purgeAllEntities(): Int {
-    return entityStore.value.values
-      .map { dataCacheWrapper -> dataCacheWrapper.purgeEntitiesWhere { true } }
+    return entityStore.value.entries
+      .map { (cls, dataCacheWrapper) ->
+        dataCacheWrapper.purgeEntitiesWhere { true }.invalidatingSnapshot(cls)
+      }
       .sum()
   }
 
-  private fun WrappedEntity<*>.isExpired(ttl: Duration): Boolean =
-    metadata.created.toInstant().plusMillis(ttl.toMillis()).isBefore(timeSource.now())
+  override fun <T> changes(cls: Class<T & Any>, conflate: Boolean): Flow<DataCacheChange<T>> =
+    storeForClass<T>(cls)?.changeFeed?.changes(conflate) ?: emptyFlow()
+
+  override fun metrics(cls: Class<*>): DataCacheMetrics? =
+    entityStore.value[cls]?.cache?.metrics?.snapshot()
+
+  /**
+   * Resizes the cache of every data type to [fraction] of the `maxSize` it was registered with,
+   * without going below its floor in [minSizes], e.g. to shed memory under memory pressure. A
+   * [fraction] of `1.0` restores the registered sizes. Data types registered later are scaled the
+   * same way. Shrinking evicts the least recently used entities.
+   */
+  fun scaleCapacity(fraction: Double, minSizes: Map<Class<*>, Int> = emptyMap()) {
+    require(fraction > 0 && fraction <= 1) { "fraction must be in (0, 1]" }
+    val scale = CapacityScale(fraction, minSizes)
+    // Ordered with registrations, so that no cache is sized with a scale that was replaced.
+    synchronized(registrationLock) {
+      capacityScale.value = scale
+      entityStore.value.forEach { (cls, dataCacheWrapper) ->
+        dataCacheWrapper.cache.resizeCache(scale.sizeFor(cls, dataCacheWrapper.config.maxSize))
+      }
+    }
+    logger.d("[%s] scaled caches to %f of their size.", className, fraction)
+  }
+
+  override fun enableSnapshots(cls: Class<*>): Int {
+    val dataCacheWrapper = dataCacheWrapperForClass<Any>(cls) ?: return 0
+    val directory = snapshotDirectory
+    if (directory == null) {
+      logger.d("[%s] no snapshot directory, not saving %s.", className, cls.name)
+      return 0
+    }
+    val serializer = EntitySerializer.forClass<Any>(cls)
+    if (serializer == null) {
+      logger.w("[%s] %s can't be serialized, not saving it.", className, cls.name)
+      return 0
+    }
+    val path = File(File(directory, SNAPSHOT_SUBDIRECTORY), cls.name)
+    @Suppress("UNCHECKED_CAST")
+    val snapshotFile =
+      snapshots
+        .updateAndGet { current ->
+          if (cls in current) current
+          else current + (cls to EntitySnapshotFile(path, serializer))
+        }
+        .getValue(cls) as EntitySnapshotFile<Any>
+
+    // Entities keep their original creation time, so the TTL still applies to them. Restoring the
+    // oldest first leaves the newest entities as the most recently used.
+    val threshold = expiryThreshold(dataCacheWrapper.config.ttl)
+    val restored =
+      snapshotFile
+        .read { metadata -> !metadata.created.isBefore(threshold) }
+        .sortedWith(compareBy({ it.metadata.created.seconds }, { it.metadata.created.nanos }))
+    return dataCacheWrapper.cache.restoreEntities(restored).also {
+      logger.d("[%s] restored %d %s entities from snapshot.", className, it, cls.name)
+    }
+  }
+
+  override fun saveSnapshot(): Int =
+    snapshots.value.entries.sumOf { (cls, snapshotFile) ->
+      @Suppress("UNCHECKED_CAST")
+      try {
+        (snapshotFile as EntitySnapshotFile<Any>).write { sequence(cls as Class<Any>) }
+      } catch (e: IOException) {
+        logger.w(e, "[%s] failed to save snapshot of %s.", className, cls.name)
+        0
+      }
+    }
+
+  private fun <T> spillTierFor(cls: Class<*>, onDisk: Boolean): DiskSpillTier<T>? {
+    if (!onDisk) return null
+    if (spillDirectory == null) {
+      logger.d("[%s] no spill directory, keeping %s on the heap.", className, cls.name)
+      return null
+    }
+    val serializer = EntitySerializer.forClass<T>(cls)
+    if (serializer == null) {
+      logger.w("[%s] %s can't be serialized, keeping it on the heap.", className, cls.name)
+      return null
+    }
+    return DiskSpillTier(File(File(spillDirectory, SPILL_SUBDIRECTORY), cls.name), serializer)
+  }
+
+  /**
+   * Returns the instant before which entities with the given [ttl] are considered expired. An
+   * entity is expired when `created + ttl` is before now, i.e. when `created` is before the
+   * returned threshold.
+   */
+  private fun expiryThreshold(ttl: Duration): Instant = timeSource.now().minusMillis(ttl.toMillis())
+
+  private fun WrappedEntity<*>.isCreatedBefore(threshold: Instant): Boolean =
+    metadata.created.isBefore(threshold)
+
+  /**
+   * Deletes the snapshot of [cls] when entities were removed from it, so that a restart can't
+   * bring them back. The next [saveSnapshot] saves the remaining entities again.
+   */
+  private fun invalidateSnapshot(cls: Class<*>) {
+    snapshots.value[cls]?.delete()
+  }
+
+  private fun Int.invalidatingSnapshot(cls: Class<*>): Int = also {
+    if (it > 0) invalidateSnapshot(cls)
+  }
 
   private fun DataCacheWrapper<*>.purgeEntitiesWhere(
     predicate: (WrappedEntity<*>) -> Boolean
-  ): Int {
-    return cache
-      .snapshot()
-      .asSequence()
-      .filter { (_, entity) -> predicate(entity) }
-      .map { (key, _) -> cache.remove(key) }
-      .count()
-  }
+  ): Int = cache.removeEntitiesWhere(predicate).also { cache.metrics.recordPurges(it) }
+
+  /** Removes the entities created before [threshold], visiting only those found in the index. */
+  private fun DataCacheWrapper<*>.purgeExpiredEntities(threshold: Instant): Int =
+    cache.removeEntitiesCreatedBefore(threshold).also { cache.metrics.recordExpirations(it) }
+
+  /** Removes the entities associated with [packageName], using the package index. */
+  private fun DataCacheWrapper<*>.purgeEntitiesForPackage(packageName: String): Int =
+    synchronized(cache) { cache.removeEntities(cache.packageIndex.idsForPackage(packageName)) }
+      .also { cache.metrics.recordPurges(it) }
 
   @Suppress("UNCHECKED_CAST")
-  private fun <T> storeForClass(cls: Class<out T & Any>): LruCache<String, WrappedEntity<T>>? =
-    dataCacheWrapperForClass<T>(cls)?.cache as? LruCache<String, WrappedEntity<T>>
+  private fun <T> storeForClass(cls: Class<out T & Any>): IndexedLruCache<T>? =
+    dataCacheWrapperForClass<T>(cls)?.cache as? IndexedLruCache<T>
 
   @Suppress("UNCHECKED_CAST")
   private fun <T> dataCacheWrapperForClass(cls: Class<out T & Any>): DataCacheWrapper<T>? {
@@ -166,14 +391,30 @@ class DataCacheStorageImpl(private val timeSource: TimeSource) : DataCacheStorag
   }
 
   companion object {
+    /** The subdirectory of the spill directory holding the spill tiers. */
+    const val SPILL_SUBDIRECTORY = "spill"
+    /** The subdirectory of the snapshot directory holding the snapshot files. */
+    const val SNAPSHOT_SUBDIRECTORY = "snapshots"
     private val logger = Logcat.default
     private val className = DataCacheStorageImpl::class.java.simpleName
   }
 }
 
 data class DataCacheWrapper<T>(
-  val cache: LruCache<String, WrappedEntity<T>>,
+  val cache: IndexedLruCache<T>,
   val config: CacheConfig,
 )
 
-data class CacheConfig(val ttl: Duration)
+data class CacheConfig(val ttl: Duration, val maxSize: Int)
+
+/** The fraction of their registered size which caches are scaled to, and their minimum sizes. */
+private data class CapacityScale(
+  val fraction: Double = 1.0,
+  val minSizes: Map<Class<*>, Int> = emptyMap(),
+) {
+  fun sizeFor(cls: Class<*>, maxSize: Int): Int {
+    if (fraction >= 1.0) return maxSize
+    val floor = minOf(minSizes[cls] ?: 1, maxSize)
+    return maxOf(floor, Math.ceil(maxSize * fraction).toInt())
+  }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.pcc.chronicle.storage.datacache.impl
+
+import com.google.android.libraries.pcc.chronicle.api.storage.EntityMetadata
+import com.google.android.libraries.pcc.chronicle.api.storage.WrappedEntity
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * A disk tier for entities evicted from the heap by an [IndexedLruCache], stored in memory-mapped,
+ * append-only segment files under [directory].
+ *
+ * Only the serialized entities live in the segments: their [EntityMetadata] is kept on the heap, so
+ * that the owning cache's indexes, TTL checks and package deletion work exactly as they do for the
+ * in-memory tier. Reads deserialize straight from the mapped segment without copying the record
+ * into an intermediate array.
+ *
+ * A segment file is deleted, and unmapped, once none of its records are live. Segments which are
+ * mostly dead are compacted by moving their live records to the active segment. No file handle is
+ * kept open: the mapping stays valid once its channel is closed.
+ *
+ * The tier does not outlive the process: any files left in [directory] are deleted on creation.
+ *
+ * Not thread-safe: callers must hold the monitor of the owning [IndexedLruCache].
+ */
+class DiskSpillTier<T>(
+  private val directory: File,
+  private val serializer: EntitySerializer<T>,
+  /** How many entities the owning cache keeps on the heap; the rest of its capacity is on disk. */
+  val hotSetSize: Int = DEFAULT_HOT_SET_SIZE,
+  private val segmentSize: Int = DEFAULT_SEGMENT_SIZE,
+) {
+  private val records = LinkedHashMap<String, Record>()
+  private var activeSegment: Segment? = null
+  private var nextSegmentNumber = 0
+
+  /** The maximum number of entities kept on disk, enforced by [trimToCapacity]. */
+  var capacity: Int = 0
+
+  /** The number of entities on disk. */
+  val size: Int
+    get() = records.size
+
+  init {
+    directory.mkdirs()
+    directory.listFiles()?.forEach { it.delete() }
+  }
+
+  /** Returns the ids of the entities on disk, oldest first. */
+  fun ids(): List<String> = records.keys.toList()
+
+  /** Returns whether the entity with [id] is on disk. */
+  operator fun contains(id: String): Boolean = id in records
+
+  /** Returns the metadata of the entity with [id], without reading it from disk. */
+  fun metadata(id: String): EntityMetadata? = records[id]?.metadata
+
+  /** Writes [entity] to disk, replacing any previous record with the same id. */
+  @Throws(IOException::class)
+  fun write(entity: WrappedEntity<T>) {
+    delete(entity.metadata.id)
+    val length = serializer.serializedSize(entity.entity)
+    val segment = segmentFor(length)
+    val offset = segment.writePosition
+    serializer.write(entity.entity, segment.slice(offset, length))
+    segment.append(entity.metadata.id, length)
+    records[entity.metadata.id] = Record(entity.metadata, segment, offset, length)
+  }
+
+  /** Reads the entity with [id] from disk, or returns `null` if it is absent or unreadable. */
+  fun read(id: String): WrappedEntity<T>? {
+    val record = records[id] ?: return null
+    val entity = serializer.read(record.segment.slice(record.offset, record.length)) ?: return null
+    return WrappedEntity(record.metadata, entity)
+  }
+
+  /** Reads and deletes the entity with [id], returning it if it was on disk and readable. */
+  fun take(id: String): WrappedEntity<T>? = read(id).also { delete(id) }
+
+  /** Deletes the entity with [id], returning its metadata if it was on disk. */
+  fun delete(id: String): EntityMetadata? {
+    val record = records.remove(id) ?: return null
+    val segment = record.segment
+    segment.release(id, record.length)
+    if (segment !== activeSegment) {
+      when {
+        segment.ids.isEmpty() -> segment.close()
+        segment.liveBytes < segment.writePosition / COMPACTION_RATIO -> compact(segment)
+      }
+    }
+    return record.metadata
+  }
+
+  /** Deletes the oldest entities until at most [capacity] remain, returning their metadata. */
+  fun trimToCapacity(): List<EntityMetadata> {
+    val trimmed = ArrayList<EntityMetadata>()
+    while (records.size > capacity) {
+      trimmed += delete(records.keys.first()) ?: break
+    }
+    return trimmed
+  }
+
+  /** Deletes every entity and segment file. */
+  fun clear() {
+    records.values.map { it.segment }.distinct().forEach { it.close() }
+    records.clear()
+    activeSegment?.close()
+    activeSegment = null
+  }
+
+  private fun segmentFor(length: Int): Segment {
+    val active = activeSegment
+    if (active != null && active.remaining >= length) return active
+    if (active != null && active.ids.isEmpty()) active.close()
+    // Records larger than a segment get a segment of their own.
+    return Segment(File(directory, "segment-${nextSegmentNumber++}"), maxOf(segmentSize, length))
+      .also { activeSegment = it }
+  }
+
+  /** Moves the live records of [segment] to the active segment, and deletes its file. */
+  private fun compact(segment: Segment) {
+    for (id in segment.ids.toList()) {
+      val record = records.getValue(id)
+      val target = segmentFor(record.length)
+      val offset = target.writePosition
+      target.slice(offset, record.length).put(segment.slice(record.offset, record.length))
+      target.append(id, record.length)
+      segment.release(id, record.length)
+      records[id] = record.copy(segment = target, offset = offset)
+    }
+    segment.close()
+  }
+
+  private data class Record(
+    val metadata: EntityMetadata,
+    val segment: Segment,
+    val offset: Int,
+    val length: Int,
+  )
+
+  private class Segment(private val file: File, size: Int) {
+    private val buffer: MappedByteBuffer =
+      RandomAccessFile(file, "rw").channel.use {
+        it.map(FileChannel.MapMode.READ_WRITE, 0, size.toLong())
+      }
+    private var closed = false
+
+    /** The ids of the live records in this segment. */
+    val ids = HashSet<String>()
+    var writePosition = 0
+      private set
+    var liveBytes = 0
+      private set
+
+    val remaining: Int
+      get() = buffer.capacity() - writePosition
+
+    /** Returns a view of `length` bytes at `offset`, sharing the mapped memory. */
+    fun slice(offset: Int, length: Int): ByteBuffer {
+      check(!closed) { "Segment $file is closed." }
+      val view = buffer.duplicate()
+      view.position(offset)
+      view.limit(offset + length)
+      return view.slice()
+    }
+
+    fun append(id: String, length: Int) {
+      ids += id
+      writePosition += length
+      liveBytes += length
+    }
+
+    fun release(id: String, length: Int) {
+      if (ids.remove(id)) liveBytes -= length
+    }
+
+    /** Unmaps and deletes the segment. The views returned by [slice] must no longer be used. */
+    fun close() {
+      if (closed) return
+      closed = true
+      ids.clear()
+      buffer.unmap()
+      file.delete()
+    }
+  }
+
+  companion object {
+    const val DEFAULT_HOT_SET_SIZE = 32
+    const val DEFAULT_SEGMENT_SIZE = 1 shl 20
+
+    /** A segment is compacted once less than a quarter of its written bytes are still live. */
+    private const val COMPACTION_RATIO = 4
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.pcc.chronicle.storage.datacache.impl
+
+import com.google.android.libraries.pcc.chronicle.storage.datacache.StoreSerializable
+import com.google.protobuf.CodedOutputStream
+import com.google.protobuf.MessageLite
+import java.lang.reflect.Method
+import java.lang.reflect.Modifier
+import java.nio.ByteBuffer
+
+/** Converts cached entities of type [T] to and from bytes, for storage in a [DiskSpillTier]. */
+interface EntitySerializer<T> {
+  /** Returns the number of bytes [write] will use for [entity]. */
+  fun serializedSize(entity: T): Int
+
+  /** Writes [entity] into [buffer], starting at its current position. */
+  fun write(entity: T, buffer: ByteBuffer)
+
+  /**
+   * Reads an entity from the remaining bytes of [buffer], or returns `null` if it is corrupt. The
+   * entity must not share memory with [buffer], which may be unmapped once this returns.
+   */
+  fun read(buffer: ByteBuffer): T?
+
+  companion object {
+    /**
+     * Returns a serializer for instances of [cls], or `null` if [cls] can't be serialized. Protos
+     * are supported through their generated `parseFrom(ByteBuffer)` method, and [StoreSerializable]
+     * types through their [StoreSerializable.Deserializer] companion object.
+     */
+    @Suppress("UNCHECKED_CAST")
+    fun <T> forClass(cls: Class<*>): EntitySerializer<T>? {
+      if (MessageLite::class.java.isAssignableFrom(cls)) {
+        val parseFrom =
+          runCatching { cls.getMethod("parseFrom", ByteBuffer::class.java) }.getOrNull()
+            ?: return null
+        if (!Modifier.isStatic(parseFrom.modifiers)) return null
+        return ProtoSerializer(parseFrom) as EntitySerializer<T>
+      }
+      if (StoreSerializable::class.java.isAssignableFrom(cls)) {
+        val deserializer =
+          runCatching { cls.getField("Companion").get(null) }.getOrNull()
+            as? StoreSerializable.Deserializer<*> ?: return null
+        return StoreSerializableSerializer(deserializer) as EntitySerializer<T>
+      }
+      return null
+    }
+  }
+}
+
+/**
+ * Serializes protos with their wire format. Reads parse directly from the provided buffer, so that
+ * memory-mapped data isn't first copied into an intermediate array.
+ */
+private class ProtoSerializer(private val parseFrom: Method) : EntitySerializer<Any> {
+  override fun serializedSize(entity: Any): Int = (entity as MessageLite).serializedSize
+
+  override fun write(entity: Any, buffer: ByteBuffer) {
+    val output = CodedOutputStream.newInstance(buffer)
+    (entity as MessageLite).writeTo(output)
+    output.flush()
+  }
+
+  override fun read(buffer: ByteBuffer): Any? =
+    runCatching { parseFrom.invoke(null, buffer) }.getOrNull()
+}
+
+/** Serializes [StoreSerializable] entities as their UTF-8 encoded serialized string. */
+private class StoreSerializableSerializer(
+  private val deserializer: StoreSerializable.Deserializer<*>
+) : EntitySerializer<Any> {
+  override fun serializedSize(entity: Any): Int = encode(entity).size
+
+  override fun write(entity: Any, buffer: ByteBuffer) {
+    buffer.put(encode(entity))
+  }
+
+  override fun read(buffer: ByteBuffer): Any? =
+    deserializer.fromSerializedString(Charsets.UTF_8.decode(buffer).toString())
+
+  private fun encode(entity: Any): ByteArray =
+    (entity as StoreSerializable).toSerializedString().toByteArray(Charsets.UTF_8)
+}
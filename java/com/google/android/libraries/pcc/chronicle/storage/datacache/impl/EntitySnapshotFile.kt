@@ -0,0 +1,160 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.pcc.chronicle.storage.datacache.impl
+
+import com.google.android.libraries.pcc.chronicle.api.storage.EntityMetadata
+import com.google.android.libraries.pcc.chronicle.api.storage.WrappedEntity
+import com.google.android.libraries.pcc.chronicle.util.Logcat
+import java.io.BufferedOutputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import kotlinx.atomicfu.atomic
+
+/**
+ * A snapshot of the entities of a single data type, saved to [file] so that a data cache can be
+ * warmed up again after a process restart.
+ *
+ * The file holds a header followed by one record per entity: the length-prefixed [EntityMetadata]
+ * proto bytes, then the length-prefixed entity bytes written by [serializer]. Metadata comes first
+ * so that [read] can skip expired records without deserializing their entity.
+ *
+ * [write] replaces the file atomically. [delete] never waits for a [write] in progress: it bumps a
+ * generation, which makes that [write] discard its snapshot rather than publish it, so no snapshot
+ * taken before [delete] is restored afterwards.
+ */
+class EntitySnapshotFile<T>(
+  private val file: File,
+  private val serializer: EntitySerializer<T>,
+) {
+  @Volatile private var present = file.exists()
+
+  /** Incremented by every [delete], so that a [write] can tell that it was invalidated. */
+  private val generation = atomic(0L)
+
+  /**
+   * Replaces the snapshot with the [entities], returning the number of entities written, or 0 if
+   * the snapshot was discarded because [delete] was called meanwhile.
+   */
+  @Throws(IOException::class)
+  fun write(entities: () -> Sequence<WrappedEntity<T>>): Int =
+    synchronized(this) {
+      val startGeneration = generation.value
+      file.parentFile?.mkdirs()
+      val temp = File(file.path + TEMP_SUFFIX)
+      var count = 0
+      DataOutputStream(BufferedOutputStream(FileOutputStream(temp))).use { out ->
+        out.writeInt(MAGIC)
+        out.writeInt(VERSION)
+        entities().forEach { entity ->
+          val metadata = entity.metadata.toByteArray()
+          val buffer = ByteBuffer.allocate(serializer.serializedSize(entity.entity))
+          serializer.write(entity.entity, buffer)
+          out.writeInt(metadata.size)
+          out.write(metadata)
+          out.writeInt(buffer.capacity())
+          out.write(buffer.array(), buffer.arrayOffset(), buffer.capacity())
+          count++
+        }
+      }
+      if (generation.value != startGeneration) {
+        temp.delete()
+        return@synchronized 0
+      }
+      if (!temp.renameTo(file)) {
+        temp.delete()
+        throw IOException("Failed to replace snapshot $file")
+      }
+      present = true
+      // A delete between the check above and the rename may have missed the new file.
+      if (generation.value != startGeneration) {
+        present = false
+        file.delete()
+        return@synchronized 0
+      }
+      count
+    }
+
+  /**
+   * Reads the entities of the snapshot whose metadata matches [keep]. A truncated or corrupt
+   * snapshot yields the records read before the damage, and unreadable entities are skipped.
+   */
+  fun read(keep: (EntityMetadata) -> Boolean): List<WrappedEntity<T>> {
+    if (!present) return emptyList()
+    val result = ArrayList<WrappedEntity<T>>()
+    try {
+      val buffer =
+        RandomAccessFile(file, "r").channel.use {
+          it.map(FileChannel.MapMode.READ_ONLY, 0, it.size())
+        }
+      // The entities are copied out of the mapping, which is released once they are all read.
+      try {
+        if (buffer.remaining() < HEADER_SIZE || buffer.int != MAGIC || buffer.int != VERSION) {
+          logger.w("Ignoring snapshot with unknown format: %s", file)
+          return emptyList()
+        }
+        while (buffer.hasRemaining()) {
+          val metadata = EntityMetadata.parseFrom(buffer.nextRecord())
+          val entityBytes = buffer.nextRecord()
+          if (!keep(metadata)) continue
+          serializer.read(entityBytes)?.let { result += WrappedEntity(metadata, it) }
+        }
+      } finally {
+        buffer.unmap()
+      }
+    } catch (e: IOException) {
+      logger.w(e, "Failed to read snapshot %s, restored %d entities.", file, result.size)
+    } catch (e: RuntimeException) {
+      // Buffer underflows and malformed lengths of a truncated file.
+      logger.w(e, "Snapshot %s is corrupt, restored %d entities.", file, result.size)
+    }
+    return result
+  }
+
+  /** Deletes the snapshot, so that it can't be restored. */
+  fun delete() {
+    // Bumped before present is read: either a write in progress sees the new generation, or it
+    // has already set present and the file is deleted here.
+    generation.incrementAndGet()
+    if (present) {
+      present = false
+      file.delete()
+    }
+  }
+
+  /** Returns a view of the next length-prefixed record, and moves past it. */
+  private fun ByteBuffer.nextRecord(): ByteBuffer {
+    val length = int
+    val record = duplicate()
+    record.limit(position() + length)
+    position(position() + length)
+    return record.slice()
+  }
+
+  companion object {
+    private val logger = Logcat.default
+
+    private const val MAGIC = 0x43444353 // "CDCS"
+    private const val VERSION = 1
+    private const val HEADER_SIZE = 8
+    private const val TEMP_SUFFIX = ".tmp"
+  }
+}
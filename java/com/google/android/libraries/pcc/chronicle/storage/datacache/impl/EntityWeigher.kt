@@ -0,0 +1,43 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.pcc.chronicle.storage.datacache.impl
+
+import com.google.android.libraries.pcc.chronicle.api.storage.WrappedEntity
+import com.google.protobuf.MessageLite
+
+/** Computes the weight of a cached [WrappedEntity], counted against a storage's memory budget. */
+fun interface EntityWeigher {
+  /** Returns the weight of [entity], non-negative and stable while the entity is cached. */
+  fun weigh(entity: WrappedEntity<*>): Int
+
+  companion object {
+    /** Weighs every entity as one unit, so that a memory budget bounds the number of entities. */
+    @JvmField val SINGLETON = EntityWeigher { 1 }
+
+    /**
+     * Weighs entities by their serialized size in bytes, as an approximation of their retained
+     * size. Entities that aren't protos are weighed as [defaultEntityWeight] bytes.
+     */
+    @JvmStatic
+    fun serializedSize(defaultEntityWeight: Int = DEFAULT_ENTITY_WEIGHT) = EntityWeigher { entity ->
+      val entityWeight = (entity.entity as? MessageLite)?.serializedSize ?: defaultEntityWeight
+      entity.metadata.serializedSize + entityWeight
+    }
+
+    private const val DEFAULT_ENTITY_WEIGHT = 1024
+  }
+}
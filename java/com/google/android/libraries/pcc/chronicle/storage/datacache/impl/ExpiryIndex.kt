@@ -0,0 +1,105 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.pcc.chronicle.storage.datacache.impl
+
+import com.google.android.libraries.pcc.chronicle.api.storage.EntityMetadata
+import com.google.protobuf.Timestamp
+import java.time.Instant
+import java.util.TreeMap
+
+/**
+ * An index of entity ids ordered by creation time.
+ *
+ * Entities of a data type share a single ttl, so ordering by `created` is the same as ordering by
+ * expiry time, and keying on `created` keeps the index valid when the ttl of a data type changes.
+ * A purge only visits the entries that are actually due.
+ *
+ * Not thread-safe: callers must hold the lock of the owning cache, e.g. the monitor of an
+ * [IndexedLruCache].
+ */
+class ExpiryIndex : EntityIndex {
+  private val idsByCreatedMillis = TreeMap<Long, MutableSet<String>>()
+  private val createdById = HashMap<String, Timestamp>()
+
+  /** The number of indexed entities. */
+  val size: Int
+    get() = createdById.size
+
+  /** The creation time of the oldest indexed entity, or `null` if the index is empty. */
+  val earliestCreatedMillis: Long?
+    get() = if (idsByCreatedMillis.isEmpty()) null else idsByCreatedMillis.firstKey()
+
+  override fun onPut(metadata: EntityMetadata) {
+    val id = metadata.id
+    removeId(id)
+    createdById[id] = metadata.created
+    idsByCreatedMillis.getOrPut(metadata.created.toEpochMillis()) { HashSet() }.add(id)
+  }
+
+  override fun onRemove(metadata: EntityMetadata) {
+    removeId(metadata.id)
+  }
+
+  override fun clear() {
+    idsByCreatedMillis.clear()
+    createdById.clear()
+  }
+
+  /** Returns the ids of entities created strictly before [threshold], oldest first. */
+  fun idsCreatedBefore(threshold: Instant): List<String> {
+    val thresholdMillis = threshold.toEpochMilli()
+    val result = ArrayList<String>()
+    idsByCreatedMillis.headMap(thresholdMillis, /* inclusive= */ true).forEach { (millis, ids) ->
+      if (millis < thresholdMillis) {
+        result.addAll(ids)
+      } else {
+        // Only entities created within the threshold's millisecond need a precise comparison.
+        ids.filterTo(result) { id -> createdById.getValue(id).isBefore(threshold) }
+      }
+    }
+    return result
+  }
+
+  /**
+   * Returns whether the entity with [id] was created at or after [from], and strictly before
+   * [until]. A `null` bound is unbounded.
+   */
+  fun isCreatedWithin(id: String, from: Instant?, until: Instant?): Boolean {
+    val created = createdById[id] ?: return false
+    return (from == null || !created.isBefore(from)) && (until == null || created.isBefore(until))
+  }
+
+  private fun removeId(id: String) {
+    val created = createdById.remove(id) ?: return
+    val createdMillis = created.toEpochMillis()
+    val ids = idsByCreatedMillis[createdMillis] ?: return
+    ids.remove(id)
+    if (ids.isEmpty()) {
+      idsByCreatedMillis.remove(createdMillis)
+    }
+  }
+}
+
+/** Converts the receiving [Timestamp] into milliseconds since the epoch, without allocating. */
+internal fun Timestamp.toEpochMillis(): Long = seconds * 1000 + nanos / 1_000_000
+
+/**
+ * Returns whether the receiving [Timestamp] is strictly before [instant]. Equivalent to
+ * `toInstant().isBefore(instant)`, without allocating an intermediate [Instant].
+ */
+internal fun Timestamp.isBefore(instant: Instant): Boolean =
+  seconds < instant.epochSecond || (seconds == instant.epochSecond && nanos < instant.nano)
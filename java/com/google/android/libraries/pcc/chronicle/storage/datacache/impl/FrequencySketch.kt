@@ -0,0 +1,91 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.pcc.chronicle.storage.datacache.impl
+
+/**
+ * A count-min sketch of 4-bit counters estimating how often keys have been accessed, as used by
+ * the TinyLFU admission policy.
+ *
+ * Counters saturate at 15 and are all halved once the number of increments reaches ten times the
+ * table size, so that the estimates favor recent popularity over all-time popularity.
+ *
+ * Not thread-safe: callers must provide their own synchronization.
+ */
+internal class FrequencySketch(expectedSize: Int) {
+  private val table = LongArray(tableSizeFor(expectedSize))
+  private val sampleSize = table.size * 10
+  private var additions = 0
+
+  /** Returns the estimated number of recent accesses of the key with the given [hash]. */
+  fun frequency(hash: Int): Int {
+    var frequency = MAX_COUNT
+    for (depth in 0 until DEPTH) {
+      val index = indexOf(hash, depth)
+      val count = ((table[slotOf(index)] ushr offsetOf(index)) and COUNTER_MASK).toInt()
+      frequency = minOf(frequency, count)
+    }
+    return frequency
+  }
+
+  /** Records an access of the key with the given [hash]. */
+  fun increment(hash: Int) {
+    var added = false
+    for (depth in 0 until DEPTH) {
+      val index = indexOf(hash, depth)
+      val slot = slotOf(index)
+      val offset = offsetOf(index)
+      if (((table[slot] ushr offset) and COUNTER_MASK) < MAX_COUNT) {
+        table[slot] += 1L shl offset
+        added = true
+      }
+    }
+    if (added && ++additions >= sampleSize) {
+      reset()
+    }
+  }
+
+  private fun reset() {
+    for (i in table.indices) {
+      table[i] = (table[i] ushr 1) and HALVING_MASK
+    }
+    additions /= 2
+  }
+
+  private fun indexOf(hash: Int, depth: Int): Int {
+    var h = (hash + SEEDS[depth]) * GOLDEN_RATIO
+    h = h xor (h ushr 16)
+    return h
+  }
+
+  /** Each long holds 16 counters: the low 4 bits select the counter, the rest select the slot. */
+  private fun slotOf(index: Int): Int = (index ushr 4) and (table.size - 1)
+
+  private fun offsetOf(index: Int): Int = (index and 15) shl 2
+
+  companion object {
+    private const val DEPTH = 4
+    private const val MAX_COUNT = 15
+    private const val COUNTER_MASK = 0xFL
+    private const val HALVING_MASK = 0x7777777777777777L
+    private const val GOLDEN_RATIO = -0x61c88647
+    private val SEEDS = intArrayOf(0x1b873593, -0x3361d2af, -0x1ad3c5d9, 0x7ed55d16)
+
+    /** One long (16 counters) per expected key, rounded up to a power of two. */
+    private fun tableSizeFor(expectedSize: Int): Int =
+      Integer.highestOneBit(expectedSize.coerceIn(16, 1 shl 24) - 1) shl 1
+  }
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.pcc.chronicle.storage.datacache.impl
+
+import android.util.LruCache
+import com.google.android.libraries.pcc.chronicle.api.storage.EntityMetadata
+import com.google.android.libraries.pcc.chronicle.api.storage.WrappedEntity
+import com.google.android.libraries.pcc.chronicle.storage.datacache.DataCacheChange
+import com.google.android.libraries.pcc.chronicle.util.Logcat
+import java.io.IOException
+import java.time.Instant
+import java.util.concurrent.ConcurrentHashMap
+
+/** A secondary index over the entries of an [IndexedLruCache]. */
+interface EntityIndex {
+  /** Called after an entity with [metadata] has been stored in the cache. */
+  fun onPut(metadata: EntityMetadata)
+
+  /** Called after the entity with [metadata] has been removed, replaced or evicted. */
+  fun onRemove(metadata: EntityMetadata)
+
+  /** Drops every indexed entry. */
+  fun clear()
+}
+
+/**
+ * A [LruCache] of [WrappedEntity] instances which keeps a set of secondary indexes in sync with
+ * insertions, removals and evictions.
+ *
+ * [LruCache] calls [entryRemoved] outside of its own lock, so all mutations made through this class
+ * hold the cache's monitor for their whole duration. That keeps index updates atomic with the
+ * mutation that caused them. Reads through [get] do not need to take any additional lock.
+ *
+ * The live entries are also mirrored in a [ConcurrentHashMap], so that [entities] can iterate the
+ * cache without holding its lock and without copying it the way [snapshot] does.
+ *
+ * When a [spill] tier is provided, only [DiskSpillTier.hotSetSize] entities are kept on the heap:
+ * entries evicted from the [LruCache] are written to disk instead of being dropped, and stay
+ * indexed. [getEntity] moves them back to the heap when they are read.
+ */
+class IndexedLruCache<T>(
+  maxSize: Int,
+  private val spill: DiskSpillTier<T>? = null,
+) : LruCache<String, WrappedEntity<T>>(hotSetSizeFor(maxSize, spill)) {
+  /** Index of entity ids ordered by creation time, used to find expired entities. */
+  val expiryIndex = ExpiryIndex()
+
+  /** Index of entity ids by associated package name, used for package deletion. */
+  val packageIndex = PackageIndex()
+
+  /** Index of entity ids ordered by update time, used to list entities without sorting them. */
+  val updateTimeIndex = UpdateTimeIndex()
+
+  private val indexes: List<EntityIndex> = listOf(expiryIndex, packageIndex, updateTimeIndex)
+
+  /** Metrics of this cache. Capacity evictions are recorded by the cache itself. */
+  val metrics = DataCacheMetricsRecorder()
+
+  /** Publishes every insertion, update and removal made to this cache. */
+  val changeFeed = DataCacheChangeFeed<T>()
+
+  private val liveEntities = ConcurrentHashMap<String, WrappedEntity<T>>()
+
+  /** Set while [removeAllEntities] evicts the heap tier, so that nothing is spilled to disk. */
+  private var clearing = false
+
+  /** Set while [removeEntitiesCreatedBefore] runs, so removals are published as expirations. */
+  private var expiring = false
+
+  /**
+   * Set while [putEntity] stores an entity, to hold the removals caused by its evictions until the
+   * entity itself is published.
+   */
+  private var deferredRemovals: MutableList<DataCacheChange<T>>? = null
+
+  init {
+    spill?.capacity = maxSize - maxSize()
+  }
+
+  /** The number of entities in the cache, including those spilled to disk. */
+  fun entityCount(): Int = synchronized(this) { size() + (spill?.size ?: 0) }
+
+  /** Returns the entity stored with [id], reading it back from disk if it was spilled. */
+  fun getEntity(id: String): WrappedEntity<T>? {
+    get(id)?.let {
+      return it
+    }
+    if (spill == null) return null
+    return synchronized(this) {
+      get(id)
+        ?: takeSpilled(id)?.also { entity ->
+          // The entity is still indexed: it only moves between tiers.
+          liveEntities[id] = entity
+          put(id, entity)
+        }
+    }
+  }
+
+  /**
+   * Returns a weakly-consistent view of the cached entities which does not copy the cache nor
+   * affect its access order. Entries may be added or removed concurrently while it is iterated.
+   * Spilled entities are read from disk one at a time as the sequence is consumed.
+   */
+  fun entities(): Sequence<WrappedEntity<T>> {
+    val heapEntities = liveEntities.values.asSequence()
+    if (spill == null) return heapEntities
+    val spilledEntities =
+      sequence {
+        val ids = synchronized(this@IndexedLruCache) { spill.ids() }
+        for (id in ids) {
+          synchronized(this@IndexedLruCache) { spill.read(id) }?.let { yield(it) }
+        }
+      }
+    // An entity spilled while the heap tier is being iterated could otherwise be seen twice.
+    return (heapEntities + spilledEntities).distinctBy { it.metadata.id }
+  }
+
+  /**
+   * Returns the cached entities ordered by update time, oldest first unless [newestFirst] is set.
+   * Like [entities], the sequence is weakly consistent and doesn't affect the access order, and
+   * only the entities which are consumed are looked up.
+   */
+  fun entitiesByUpdateTime(newestFirst: Boolean = false): Sequence<WrappedEntity<T>> =
+    updateTimeIndex.ids(newestFirst).mapNotNull { id ->
+      liveEntities[id] ?: spill?.let { spill -> synchronized(this) { spill.read(id) } }
+    }
+
+  /** Stores [entity] keyed by its id, returning whether it replaced another entity. */
+  fun putEntity(entity: WrappedEntity<T>): Boolean =
+    synchronized(this) {
+      val id = entity.metadata.id
+      val wasSpilled = spill?.delete(id) != null
+      // Publish before the LruCache put so concurrent readers never observe the id as missing
+      // while it is being replaced.
+      liveEntities[id] = entity
+      val removals = ArrayList<DataCacheChange<T>>()
+      deferredRemovals = removals
+      val replaced =
+        try {
+          put(id, entity) != null || wasSpilled
+        } finally {
+          deferredRemovals = null
+        }
+      indexes.forEach { it.onPut(entity.metadata) }
+      if (changeFeed.hasSubscribers) {
+        changeFeed.publish(
+          if (replaced) DataCacheChange.Updated(entity) else DataCacheChange.Inserted(entity)
+        )
+        removals.forEach { changeFeed.publish(it) }
+      }
+      replaced
+    }
+
+  /** Stores every entity of [entities] under a single acquisition of the cache's monitor. */
+  fun putEntities(entities: Collection<WrappedEntity<T>>) {
+    synchronized(this) { entities.forEach { putEntity(it) } }
+  }
+
+  /**
+   * Stores the [entities] whose id isn't in the cache yet, so that entities restored from a
+   * snapshot never replace newer ones. Returns the number of entities stored.
+   */
+  fun restoreEntities(entities: Collection<WrappedEntity<T>>): Int =
+    synchronized(this) {
+      entities.count { entity ->
+        val id = entity.metadata.id
+        val present = liveEntities.containsKey(id) || spill?.contains(id) == true
+        if (!present) putEntity(entity)
+        !present
+      }
+    }
+
+  /** Removes the entity stored with [id], returning it if it was present. */
+  fun removeEntity(id: String): WrappedEntity<T>? =
+    synchronized(this) {
+      remove(id) ?: takeSpilled(id)?.also { entity -> dropSpilled(listOf(entity.metadata)) }
+    }
+
+  /** Removes every entity whose id is in [ids], returning the number of entities removed. */
+  fun removeEntities(ids: Iterable<String>): Int =
+    synchronized(this) { ids.count { remove(it) != null || removeSpilled(it) } }
+
+  /**
+   * Removes every entity created before [threshold] as expired, returning the number of entities
+   * removed. Only the expired entities are visited, through the [expiryIndex].
+   */
+  fun removeEntitiesCreatedBefore(threshold: Instant): Int =
+    synchronized(this) {
+      expiring = true
+      try {
+        removeEntities(expiryIndex.idsCreatedBefore(threshold))
+      } finally {
+        expiring = false
+      }
+    }
+
+  /** Removes every entity matching [predicate], returning the number of entities removed. */
+  fun removeEntitiesWhere(predicate: (WrappedEntity<T>) -> Boolean): Int =
+    synchronized(this) {
+      val ids = liveEntities.values.filter(predicate).map { it.metadata.id }
+      val spilledIds =
+        spill?.let { spill ->
+          spill.ids().filter { id -> spill.read(id)?.let(predicate) ?: false }
+        }
+      removeEntities(ids + spilledIds.orEmpty())
+    }
+
+  /** Removes every entity, and clears all indexes, returning the number of entities removed. */
+  fun removeAllEntities(): Int =
+    synchronized(this) {
+      val count = entityCount()
+      if (changeFeed.hasSubscribers) spill?.ids()?.forEach { publishRemoval(it) }
+      clearing = true
+      try {
+        evictAll()
+      } finally {
+        clearing = false
+      }
+      spill?.clear()
+      liveEntities.clear()
+      indexes.forEach { it.clear() }
+      count
+    }
+
+  /** Changes the capacity of the cache, evicting entities if it shrinks. */
+  fun resizeCache(maxSize: Int) {
+    synchronized(this) {
+      val hotSetSize = hotSetSizeFor(maxSize, spill)
+      if (spill != null) {
+        spill.capacity = maxSize - hotSetSize
+        // Trim the disk tier first, so that entities evicted from the heap below have room.
+        evictSpilled(spill.trimToCapacity())
+      }
+      resize(hotSetSize)
+    }
+  }
+
+  override fun entryRemoved(
+    evicted: Boolean,
+    key: String,
+    oldValue: WrappedEntity<T>,
+    newValue: WrappedEntity<T>?,
+  ) {
+    // On replacement, putEntity has already published the new value.
+    if (newValue == null) {
+      liveEntities.remove(key)
+    }
+    if (evicted && !clearing) {
+      if (spill != null && spillEntity(oldValue)) return
+      metrics.recordEvictions(1)
+    }
+    if (newValue == null) publishRemoval(key)
+    indexes.forEach { it.onRemove(oldValue.metadata) }
+  }
+
+  /** Writes an entity evicted from the heap to disk, returning whether it was written. */
+  private fun spillEntity(entity: WrappedEntity<T>): Boolean {
+    val spill = spill ?: return false
+    if (spill.capacity <= 0) return false
+    try {
+      spill.write(entity)
+    } catch (e: IOException) {
+      logger.w(e, "Failed to spill entity to disk, dropping it.")
+      return false
+    }
+    evictSpilled(spill.trimToCapacity())
+    return true
+  }
+
+  /**
+   * Reads and deletes the spilled entity with [id]. An entity which can no longer be read is
+   * dropped from the indexes, as it is gone from the cache.
+   */
+  private fun takeSpilled(id: String): WrappedEntity<T>? {
+    val spill = spill ?: return null
+    val metadata = spill.metadata(id) ?: return null
+    val entity = spill.take(id)
+    if (entity == null) {
+      dropSpilled(listOf(metadata))
+      return null
+    }
+    return entity
+  }
+
+  private fun removeSpilled(id: String): Boolean {
+    val metadata = spill?.delete(id) ?: return false
+    dropSpilled(listOf(metadata))
+    return true
+  }
+
+  private fun evictSpilled(evicted: List<EntityMetadata>) {
+    metrics.recordEvictions(evicted.size)
+    dropSpilled(evicted)
+  }
+
+  private fun dropSpilled(dropped: List<EntityMetadata>) {
+    dropped.forEach { metadata ->
+      indexes.forEach { it.onRemove(metadata) }
+      publishRemoval(metadata.id)
+    }
+  }
+
+  private fun publishRemoval(id: String) {
+    if (!changeFeed.hasSubscribers) return
+    val change = if (expiring) DataCacheChange.Expired(id) else DataCacheChange.Removed(id)
+    deferredRemovals?.add(change) ?: changeFeed.publish(change)
+  }
+
+  companion object {
+    private val logger = Logcat.default
+
+    private fun hotSetSizeFor(maxSize: Int, spill: DiskSpillTier<*>?): Int =
+      if (spill == null) maxSize else minOf(maxSize, spill.hotSetSize)
+  }
+}
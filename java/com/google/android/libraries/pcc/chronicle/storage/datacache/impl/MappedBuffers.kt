@@ -0,0 +1,61 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.pcc.chronicle.storage.datacache.impl
+
+import com.google.android.libraries.pcc.chronicle.util.Logcat
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+
+/**
+ * Releases the mapping of this buffer now, rather than once the buffer is garbage collected, so
+ * that the address space of files which are no longer read doesn't build up.
+ *
+ * Neither this buffer nor any view of it may be used afterwards: accessing unmapped memory crashes
+ * the process. Platforms without a known way to unmap a buffer fall back to garbage collection.
+ */
+internal fun MappedByteBuffer.unmap() {
+  val free = Unmapper.free ?: return
+  try {
+    free(this)
+  } catch (e: ReflectiveOperationException) {
+    Unmapper.logger.w(e, "Failed to unmap buffer, leaving it to garbage collection.")
+  }
+}
+
+private object Unmapper {
+  val logger = Logcat.default
+
+  /** Frees a direct buffer, through the hidden APIs of the Android runtime or of JDK 9+. */
+  val free: ((ByteBuffer) -> Unit)? by lazy {
+    try {
+      val freeDirectBuffer =
+        Class.forName("java.nio.NioUtils").getMethod("freeDirectBuffer", ByteBuffer::class.java)
+      return@lazy { buffer: ByteBuffer -> freeDirectBuffer.invoke(null, buffer) }
+    } catch (e: Exception) {
+      // Not running on the Android runtime.
+    }
+    try {
+      val unsafeClass = Class.forName("sun.misc.Unsafe")
+      val unsafe = unsafeClass.getDeclaredField("theUnsafe").apply { isAccessible = true }.get(null)
+      val invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer::class.java)
+      return@lazy { buffer: ByteBuffer -> invokeCleaner.invoke(unsafe, buffer) }
+    } catch (e: Exception) {
+      logger.w(e, "No way to unmap buffers, leaving them to garbage collection.")
+    }
+    null
+  }
+}
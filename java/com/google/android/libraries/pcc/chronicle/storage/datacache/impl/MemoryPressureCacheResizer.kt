@@ -0,0 +1,93 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.pcc.chronicle.storage.datacache.impl
+
+import android.content.ComponentCallbacks2
+import android.content.res.Configuration
+import kotlinx.coroutines.flow.Flow
+
+/** How much memory pressure the device is under, and the share of their size caches keep. */
+enum class MemoryPressure(val capacityFraction: Double) {
+  NONE(1.0),
+  MODERATE(0.5),
+  HIGH(0.25),
+  CRITICAL(0.1);
+
+  companion object {
+    /** Maps a [ComponentCallbacks2.onTrimMemory] level to a [MemoryPressure]. */
+    fun fromTrimLevel(level: Int): MemoryPressure =
+      when {
+        level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE -> CRITICAL
+        level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE -> HIGH
+        level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND -> MODERATE
+        // The app's UI was hidden, which says nothing about the memory available.
+        level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN -> NONE
+        level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL -> CRITICAL
+        level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW -> HIGH
+        level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE -> MODERATE
+        else -> NONE
+      }
+  }
+}
+
+/**
+ * Shrinks the caches of a [DataCacheStorageImpl] in proportion to memory pressure, and grows them
+ * back to their registered sizes once the pressure clears.
+ *
+ * Register it with `Context.registerComponentCallbacks` to follow the system's trim levels, and/or
+ * [follow] a custom pressure signal. The system only reports rising pressure, so growing back
+ * relies on [onMemoryPressure] being called with [MemoryPressure.NONE], e.g. by a custom signal or
+ * when the app returns to the foreground.
+ *
+ * @param minSizes the size below which the cache of each data type never shrinks. Data types
+ *   missing from the map keep at least one entity.
+ */
+class MemoryPressureCacheResizer(
+  private val storage: DataCacheStorageImpl,
+  private val minSizes: Map<Class<*>, Int> = emptyMap(),
+) : ComponentCallbacks2 {
+  /** The memory pressure the caches are currently sized for. */
+  @Volatile
+  var pressure: MemoryPressure = MemoryPressure.NONE
+    private set
+
+  /** Resizes the caches for [pressure], if it changed. */
+  fun onMemoryPressure(pressure: MemoryPressure) {
+    synchronized(this) {
+      if (pressure == this.pressure) return
+      this.pressure = pressure
+      storage.scaleCapacity(pressure.capacityFraction, minSizes)
+    }
+  }
+
+  /** Resizes the caches for every pressure emitted by [source], until collection is cancelled. */
+  suspend fun follow(source: Flow<MemoryPressure>) {
+    source.collect { onMemoryPressure(it) }
+  }
+
+  override fun onTrimMemory(level: Int) {
+    val pressure = MemoryPressure.fromTrimLevel(level)
+    // Hiding the UI doesn't relieve any pressure reported earlier.
+    if (pressure != MemoryPressure.NONE) onMemoryPressure(pressure)
+  }
+
+  override fun onLowMemory() {
+    onMemoryPressure(MemoryPressure.CRITICAL)
+  }
+
+  override fun onConfigurationChanged(newConfig: Configuration) = Unit
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.pcc.chronicle.storage.datacache.impl
+
+import com.google.android.libraries.pcc.chronicle.api.storage.EntityMetadata
+
+/**
+ * An inverted index from package name to the ids of the entities associated with that package, so
+ * that package deletion only visits the entities owned by the package.
+ *
+ * Not thread-safe: callers must hold the monitor of the owning [IndexedLruCache].
+ */
+class PackageIndex : EntityIndex {
+  private val idsByPackageName = HashMap<String, MutableSet<String>>()
+  private val packageNamesById = HashMap<String, List<String>>()
+  private val idsWithoutPackage = HashSet<String>()
+
+  /** The set of package names associated with at least one indexed entity. */
+  val packageNames: Set<String>
+    get() = idsByPackageName.keys
+
+  override fun onPut(metadata: EntityMetadata) {
+    val id = metadata.id
+    removeId(id)
+    val packageNames = metadata.associatedPackageNamesList
+    packageNamesById[id] = packageNames
+    if (packageNames.isEmpty()) idsWithoutPackage.add(id)
+    packageNames.forEach { idsByPackageName.getOrPut(it) { HashSet() }.add(id) }
+  }
+
+  override fun onRemove(metadata: EntityMetadata) {
+    removeId(metadata.id)
+  }
+
+  override fun clear() {
+    idsByPackageName.clear()
+    packageNamesById.clear()
+    idsWithoutPackage.clear()
+  }
+
+  /** Returns the ids of the entities associated with [packageName]. */
+  fun idsForPackage(packageName: String): List<String> =
+    idsByPackageName[packageName]?.toList() ?: emptyList()
+
+  /**
+   * Returns the ids of the entities none of whose associated packages are in [allowedPackageNames],
+   * including entities with no associated package at all.
+   *
+   * Only the indexed packages missing from [allowedPackageNames] are visited, along with the
+   * entities that have no package.
+   */
+  fun idsNotInPackages(allowedPackageNames: Set<String>): List<String> {
+    val result = LinkedHashSet<String>(idsWithoutPackage)
+    idsByPackageName.forEach { (packageName, ids) ->
+      if (packageName in allowedPackageNames) return@forEach
+      ids.forEach { id ->
+        if (packageNamesById[id].orEmpty().none { it in allowedPackageNames }) result.add(id)
+      }
+    }
+    return result.toList()
+  }
+
+  private fun removeId(id: String) {
+    val packageNames = packageNamesById.remove(id) ?: return
+    idsWithoutPackage.remove(id)
+    packageNames.forEach { packageName ->
+      val ids = idsByPackageName[packageName] ?: return@forEach
+      ids.remove(id)
+      if (ids.isEmpty()) {
+        idsByPackageName.remove(packageName)
+      }
+    }
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.pcc.chronicle.storage.datacache.impl
+
+import com.google.android.libraries.pcc.chronicle.api.storage.EntityMetadata
+import java.util.concurrent.ConcurrentSkipListSet
+
+/**
+ * An index of entity ids ordered by `(updated, id)`, so that entities can be listed by update time,
+ * or the most recently updated ones found, without sorting the cache.
+ *
+ * Updates must hold the monitor of the owning [IndexedLruCache], but the ordering itself is kept in
+ * a [ConcurrentSkipListSet]: [ids] can be iterated without the lock, and is weakly consistent with
+ * concurrent updates.
+ */
+class UpdateTimeIndex : EntityIndex {
+  private val keys = ConcurrentSkipListSet<Key>()
+  private val keysById = HashMap<String, Key>()
+
+  override fun onPut(metadata: EntityMetadata) {
+    val key = Key(metadata.updated.seconds, metadata.updated.nanos, metadata.id)
+    keysById.put(metadata.id, key)?.let { keys.remove(it) }
+    keys.add(key)
+  }
+
+  override fun onRemove(metadata: EntityMetadata) {
+    keysById.remove(metadata.id)?.let { keys.remove(it) }
+  }
+
+  override fun clear() {
+    keysById.clear()
+    keys.clear()
+  }
+
+  /** Returns the indexed ids by update time, oldest first unless [newestFirst] is set. */
+  fun ids(newestFirst: Boolean = false): Sequence<String> =
+    (if (newestFirst) keys.descendingIterator() else keys.iterator()).asSequence().map { it.id }
+
+  private class Key(val seconds: Long, val nanos: Int, val id: String) : Comparable<Key> {
+    override fun compareTo(other: Key): Int =
+      when {
+        seconds != other.seconds -> seconds.compareTo(other.seconds)
+        nanos != other.nanos -> nanos.compareTo(other.nanos)
+        else -> id.compareTo(other.id)
+      }
+  }
+}
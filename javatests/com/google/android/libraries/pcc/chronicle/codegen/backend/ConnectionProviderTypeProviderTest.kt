@@ -65,6 +65,19 @@ class ConnectionProviderTypeProviderTest {
     compareWithGolden(fileContents, expectedOutputMultipleWriteConnection)
   }
 
+  @Test
+  fun generatedCode_containsObserverConnectionImplementationsAndConnectionProvider() {
+    val typeProvider =
+      ConnectionProviderTypeProvider(
+        MyDataClass::class.asTypeName(),
+        listOf(),
+        listOf(),
+        listOf(MyObserverConnection::class.asTypeName()),
+      )
+    val fileContents = typeProvider.getGeneratedSource()
+    compareWithGolden(fileContents, expectedOutputOneObserverConnection)
+  }
+
   private fun FileSpecContentsProvider.getGeneratedSource(): String {
     val fileSpec =
       FileSpec.builder("com.google", "FileName").apply { provideContentsInto(this) }.build()
@@ -141,6 +154,32 @@ class ConnectionProviderTypeProviderTest {
       """
         .trimIndent()
 
+    private val expectedOutputOneObserverConnection =
+      """
+      package com.google
+
+      import com.google.android.libraries.pcc.chronicle.codegen.backend.MyDataClass
+      import com.google.android.libraries.pcc.chronicle.codegen.backend.MyObserverConnection
+      import com.google.android.libraries.pcc.chronicle.storage.datacache.DataCacheObserver
+      import com.google.android.libraries.pcc.chronicle.storage.datacache.DefaultManagedDataCacheConnectionProvider
+      import com.google.android.libraries.pcc.chronicle.storage.datacache.ManagedDataCache
+      import com.google.android.libraries.pcc.chronicle.storage.datacache.TypedDataCacheReader
+      import com.google.android.libraries.pcc.chronicle.util.TimeSource
+
+      public class MyObserverConnectionImpl(
+        cache: TypedDataCacheReader<MyDataClass>,
+      ) : MyObserverConnection, DataCacheObserver<MyDataClass> by
+          DataCacheObserver.createDefault(cache)
+
+      public class MyDataClassConnectionProvider(
+        cache: ManagedDataCache<MyDataClass>,
+        timeSource: TimeSource,
+      ) : DefaultManagedDataCacheConnectionProvider<MyDataClass>(cache,
+          mapOf(MyObserverConnection::class.java to { MyObserverConnectionImpl(cache) }, ))
+
+      """
+        .trimIndent()
+
     private val expectedOutputMultipleWriteConnection =
       """
       package com.google
@@ -184,6 +223,8 @@ interface MyReadConnection : ReadConnection
 
 interface MyWriteConnection : WriteConnection
 
+interface MyObserverConnection : ReadConnection
+
 interface MyWriteConnection0 : WriteConnection
 
 interface MyWriteConnection1 : WriteConnection
@@ -727,13 +727,26 @@ class BlobStoreIntegrationTest {
           )
         )
       }
+    val thrown3 =
+      assertFailsWith<IllegalArgumentException> {
+        blobStoreProvider.provideBlobStore<TestPerson>(
+          TieredManagementInfo(
+            PersistedManagementInfo(
+              dtdName = DTD_PERSON,
+              ttlMillis = 10000,
+              quotaInfo = QuotaInfo(2, 1, TrimOrder.OLDEST),
+              deserializer = TestPerson::parseFrom,
+            ),
+            maxCachedItems = 3,
+          )
+        )
+      }
 
-    assertThat(thrown1)
-      .hasMessageThat()
-      .contains("Persisted and in memory blob stores for the same DTD is not allowed.")
-    assertThat(thrown2)
-      .hasMessageThat()
-      .contains("Persisted and in memory blob stores for the same DTD is not allowed.")
+    listOf(thrown1, thrown2, thrown3).forEach {
+      assertThat(it)
+        .hasMessageThat()
+        .contains("Persisted, tiered and in memory blob stores for the same DTD are not allowed.")
+    }
   }
 
   @Test
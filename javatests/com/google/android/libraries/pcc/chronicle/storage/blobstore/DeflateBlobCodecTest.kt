@@ -0,0 +1,83 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.pcc.chronicle.storage.blobstore
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.google.common.truth.Truth.assertThat
+import kotlin.test.assertFailsWith
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@RunWith(AndroidJUnit4::class)
+class DeflateBlobCodecTest {
+  private val message =
+    TestMessage.newBuilder()
+      .apply {
+        version = 1
+        name = "test"
+        content = "the quick brown fox jumps over the lazy dog. ".repeat(20)
+      }
+      .build()
+      .toByteArray()
+
+  @Test
+  fun encode_textHeavyMessage_compressesAndRoundTrips() {
+    val codec = DeflateBlobCodec()
+
+    val encoded = codec.encode(message)
+
+    assertThat(encoded.size).isLessThan(message.size / 3)
+    assertThat(TestMessage.parseFrom(codec.decode(encoded)).toByteArray()).isEqualTo(message)
+  }
+
+  @Test
+  fun encode_incompressibleMessage_isStoredAsIs() {
+    val small = TestMessage.newBuilder().setVersion(7).build().toByteArray()
+    val codec = DeflateBlobCodec()
+
+    val encoded = codec.encode(small)
+
+    assertThat(encoded).isEqualTo(small)
+    assertThat(codec.decode(encoded)).isEqualTo(small)
+  }
+
+  @Test
+  fun decode_uncompressedBlob_returnsItUnchanged() {
+    assertThat(DeflateBlobCodec().decode(message)).isEqualTo(message)
+    assertThat(DeflateBlobCodec().decode(ByteArray(0))).isEmpty()
+  }
+
+  @Test
+  fun encode_withDictionary_compressesSmallMessagesBetter() {
+    val shortMessage =
+      TestMessage.newBuilder()
+        .apply {
+          name = "the quick brown fox"
+          content = "jumps over the lazy dog"
+        }
+        .build()
+        .toByteArray()
+    val dictionary = "the quick brown fox jumps over the lazy dog".toByteArray()
+    val withDictionary = DeflateBlobCodec(dictionary = dictionary)
+
+    val encoded = withDictionary.encode(shortMessage)
+
+    assertThat(encoded.size).isLessThan(DeflateBlobCodec().encode(shortMessage).size)
+    assertThat(withDictionary.decode(encoded)).isEqualTo(shortMessage)
+    assertFailsWith<IllegalStateException> { DeflateBlobCodec().decode(encoded) }
+  }
+}
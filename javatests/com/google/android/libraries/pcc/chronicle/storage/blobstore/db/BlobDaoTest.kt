@@ -81,6 +81,7 @@ class BlobDaoTest {
     context = ApplicationProvider.getApplicationContext()
     db =
       Room.inMemoryDatabaseBuilder(context, BlobDatabase::class.java)
+        .addCallback(BlobDatabase.CALLBACK)
         .allowMainThreadQueries()
         .build()
     sqliteDb = db.openHelper.writableDatabase
@@ -177,6 +178,89 @@ class BlobDaoTest {
       .isNotNull()
   }
 
+  @Test
+  fun insertBlobsWithPackages_updatesStoredAndReplacesExpiredBlobs() = runBlocking {
+    // Blob 1 is created after THRESHOLD_2 and blob 2 before it, so only blob 2 is expired.
+    val storedBlob1 = blobKey1Dtd1.copy(createdTimestampMillis = CREATED_2)
+    val storedBlob2 = blobKey2Dtd1.copy(createdTimestampMillis = CREATED_1)
+    dao.insertOrUpdateBlobWithPackages(storedBlob1, listOf(PACKAGE_1), THRESHOLD_1)
+    dao.insertOrUpdateBlobWithPackages(storedBlob2, listOf(PACKAGE_1), THRESHOLD_1)
+    val updatedBlob1 =
+      storedBlob1.copy(updateTimestampMillis = UPDATE_1, blob = "Updated blob 1".toByteArray())
+    val replacedBlob2 =
+      storedBlob2.copy(createdTimestampMillis = CREATED_2, updateTimestampMillis = CREATED_2)
+
+    dao.insertOrUpdateBlobsWithPackages(
+      mapOf(
+        updatedBlob1 to listOf(PACKAGE_2),
+        replacedBlob2 to listOf(PACKAGE_2),
+        blobKey3Dtd1 to listOf(PACKAGE_3),
+      ),
+      DTD_NAME_1,
+      QuotaInfo(maxRowCount = 3, minRowsAfterTrim = 2, trimOrder = TrimOrder.OLDEST),
+      THRESHOLD_2,
+    )
+
+    checkBlob(
+      updatedBlob1,
+      listOf(PACKAGE_1),
+      dao.blobEntityWithPackagesByKeyAndDtdName(KEY_1, DTD_NAME_1, THRESHOLD_2),
+    )
+    checkBlob(
+      replacedBlob2,
+      listOf(PACKAGE_2),
+      dao.blobEntityWithPackagesByKeyAndDtdName(KEY_2, DTD_NAME_1, THRESHOLD_2),
+    )
+    checkBlob(
+      blobKey3Dtd1,
+      listOf(PACKAGE_3),
+      dao.blobEntityWithPackagesByKeyAndDtdName(KEY_3, DTD_NAME_1, THRESHOLD_2),
+    )
+  }
+
+  @Test
+  fun insertBlobsWithPackages_moreKeysThanBindArgs() = runBlocking<Unit> {
+    val count = MAX_BIND_ARGS * 2 + 1
+    val blobs = (0 until count).map { blobKey1Dtd1.copy(key = "key_$it") }
+    val quotaInfo =
+      QuotaInfo(maxRowCount = count, minRowsAfterTrim = 1, trimOrder = TrimOrder.OLDEST)
+
+    dao.insertOrUpdateBlobsWithPackages(
+      blobs.associateWith { listOf(PACKAGE_1) },
+      DTD_NAME_1,
+      quotaInfo,
+      THRESHOLD_1,
+    )
+    dao.insertOrUpdateBlobsWithPackages(
+      blobs.associate { it.copy(updateTimestampMillis = UPDATE_1) to listOf(PACKAGE_2) },
+      DTD_NAME_1,
+      quotaInfo,
+      THRESHOLD_1,
+    )
+
+    val stored = dao.blobEntitiesWithPackagesByDtdName(DTD_NAME_1, THRESHOLD_1)
+    assertThat(stored).hasSize(count)
+    assertThat(stored.map { it.blobEntity.updateTimestampMillis }.distinct())
+      .containsExactly(UPDATE_1)
+    assertThat(stored.flatMap { it.packages }.map { it.packageName }.distinct())
+      .containsExactly(PACKAGE_1)
+  }
+
+  @Test
+  fun insertBlobsWithPackages_otherDtdName_throwsException() = runBlocking {
+    val thrown =
+      assertFailsWith<IllegalArgumentException> {
+        dao.insertOrUpdateBlobsWithPackages(
+          mapOf(blobKey1Dtd2 to listOf(PACKAGE_1)),
+          DTD_NAME_1,
+          QuotaInfo(maxRowCount = 2, minRowsAfterTrim = 1, trimOrder = TrimOrder.OLDEST),
+          THRESHOLD_1,
+        )
+      }
+
+    assertThat(thrown).hasMessageThat().contains("must have dtdName $DTD_NAME_1")
+  }
+
   @Test
   fun insertBlobWithPackages_entryNotExpired_updateBlob() = runBlocking {
     dao.insertOrUpdateBlobWithPackages(blobKey1Dtd1, listOf(PACKAGE_1), THRESHOLD_1)
@@ -499,6 +583,41 @@ class BlobDaoTest {
     assertThat(blobWithPackages2?.blobEntity?.id?.let { dao.packagesByBlobId(it) }).hasSize(2)
   }
 
+  @Test
+  fun rowCountByDtdName_followsInsertsAndDeletes() = runBlocking {
+    dao.insertOrUpdateBlobWithPackages(blobKey1Dtd1, listOf(PACKAGE_1), THRESHOLD_1)
+    dao.insertOrUpdateBlobWithPackages(blobKey2Dtd1, listOf(PACKAGE_2), THRESHOLD_1)
+    dao.insertOrUpdateBlobWithPackages(blobKey1Dtd2, listOf(PACKAGE_1), THRESHOLD_1)
+    // Updates and ignored inserts don't change the counts.
+    dao.insertOrUpdateBlobWithPackages(
+      blobKey1Dtd1.copy(updateTimestampMillis = UPDATE_1),
+      listOf(PACKAGE_1),
+      THRESHOLD_1,
+    )
+
+    assertThat(dao.blobCountByDtdName(DTD_NAME_1)).isEqualTo(2)
+    assertThat(dao.blobCountByDtdName(DTD_NAME_2)).isEqualTo(1)
+
+    dao.removeBlobAndPackageEntitiesByPackageName(PACKAGE_2)
+    dao.removeBlobEntitiesByDtdName(DTD_NAME_2)
+
+    assertThat(dao.rowCountByDtdName(DTD_NAME_1)).isEqualTo(1)
+    assertThat(dao.rowCountByDtdName(DTD_NAME_2)).isEqualTo(0)
+    assertThat(dao.blobCountByDtdName("unknown_dtd")).isNull()
+    assertThat(dao.rowCountByDtdName("unknown_dtd")).isEqualTo(0)
+  }
+
+  @Test
+  fun callback_onOpen_reconcilesBlobCounts() = runBlocking {
+    dao.insertOrUpdateBlobWithPackages(blobKey1Dtd1, listOf(PACKAGE_1), THRESHOLD_1)
+    dao.insertOrUpdateBlobWithPackages(blobKey2Dtd1, listOf(PACKAGE_1), THRESHOLD_1)
+    sqliteDb.execSQL("UPDATE `blob_counts` SET `rowCount` = 42")
+
+    BlobDatabase.CALLBACK.onOpen(sqliteDb)
+
+    assertThat(dao.rowCountByDtdName(DTD_NAME_1)).isEqualTo(2)
+  }
+
   @Test
   fun removeBlobAndPackageEntitiesByPackageName() = runBlocking {
     dao.insertOrUpdateBlobWithPackages(blobKey1Dtd1, listOf(PACKAGE_1), THRESHOLD_1)
@@ -771,6 +890,25 @@ class BlobDaoTest {
     assertThat(blobWithPackages3?.blobEntity?.id?.let { dao.packagesByBlobId(it) }).isEmpty()
   }
 
+  @Test
+  fun deleteNotAllowedPackages_morePackagesThanBindArgs() = runBlocking<Unit> {
+    val count = MAX_BIND_ARGS + 10
+    val blobs = (0 until count).map { blobKey1Dtd1.copy(key = "key_$it") }
+    dao.insertOrUpdateBlobsWithPackages(
+      blobs.withIndex().associate { (index, blob) -> blob to listOf("package_$index", PACKAGE_1) },
+      DTD_NAME_1,
+      QuotaInfo(maxRowCount = count, minRowsAfterTrim = 1, trimOrder = TrimOrder.OLDEST),
+      THRESHOLD_1,
+    )
+
+    val deleted = dao.deleteNotAllowedPackages(allowedPackages = setOf(PACKAGE_1, "package_0"))
+
+    assertThat(deleted).isEqualTo(count - 1)
+    val remaining = dao.blobEntitiesWithPackagesByDtdName(DTD_NAME_1, THRESHOLD_1)
+    assertThat(remaining.map { it.blobEntity.key }).containsExactly("key_0")
+    assertThat(dao.distinctPackageNames()).containsExactly(PACKAGE_1, "package_0")
+  }
+
   private fun checkBlob(
     expectedBlob: BlobEntity,
     expectedPackages: List<String>,
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.pcc.chronicle.storage.blobstore.db
+
+import android.content.Context
+import android.database.sqlite.SQLiteDatabase
+import androidx.room.Room
+import androidx.test.core.app.ApplicationProvider
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.google.common.truth.Truth.assertThat
+import kotlinx.coroutines.runBlocking
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@RunWith(AndroidJUnit4::class)
+class BlobDatabaseMigrationTest {
+  private val context: Context = ApplicationProvider.getApplicationContext()
+  private lateinit var db: BlobDatabase
+
+  @Before
+  fun setUp() {
+    context.deleteDatabase(DB_NAME)
+    // The schema Room created for version 1 of BlobDatabase.
+    SQLiteDatabase.openOrCreateDatabase(context.getDatabasePath(DB_NAME), null).use {
+      it.execSQL(
+        "CREATE TABLE IF NOT EXISTS `blobs` (`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, " +
+          "`key` TEXT NOT NULL, `locusId` TEXT NOT NULL, " +
+          "`createdTimestampMillis` INTEGER NOT NULL, `updateTimestampMillis` INTEGER NOT NULL, " +
+          "`dtdName` TEXT NOT NULL, `blob` BLOB NOT NULL)"
+      )
+      it.execSQL(
+        "CREATE UNIQUE INDEX IF NOT EXISTS `index_blobs_key_dtdName` ON `blobs` (`key`, `dtdName`)"
+      )
+      it.execSQL(
+        "CREATE TABLE IF NOT EXISTS `packages` (`blobId` INTEGER NOT NULL, " +
+          "`packageName` TEXT NOT NULL, PRIMARY KEY(`blobId`, `packageName`), " +
+          "FOREIGN KEY(`blobId`) REFERENCES `blobs`(`id`) ON UPDATE CASCADE ON DELETE CASCADE )"
+      )
+      it.execSQL(
+        "INSERT INTO `blobs` VALUES (1, '$KEY', 'locus', $CREATED, $CREATED, '$DTD_NAME', x'00')"
+      )
+      it.execSQL("INSERT INTO `packages` VALUES (1, '$PACKAGE')")
+      it.version = 1
+    }
+  }
+
+  @After
+  fun tearDown() {
+    db.close()
+    context.deleteDatabase(DB_NAME)
+  }
+
+  @Test
+  fun migrate_keepsDataAndAddsIndexes() = runBlocking {
+    // Room validates the migrated schema against the entities when the database is opened.
+    db =
+      Room.databaseBuilder(context, BlobDatabase::class.java, DB_NAME)
+        .addMigrations(*BlobDatabase.MIGRATIONS)
+        .allowMainThreadQueries()
+        .build()
+    val dao = db.blobDao()
+
+    val blob = dao.blobEntityWithPackagesByKeyAndDtdName(KEY, DTD_NAME, threshold = 0)
+    assertThat(blob?.packages?.map { it.packageName }).containsExactly(PACKAGE)
+    assertThat(blob?.blobEntity?.segmentId).isNull()
+    assertThat(blob?.blobEntity?.locusId).isEqualTo("locus")
+    assertThat(dao.blobCountByDtdName(DTD_NAME)).isEqualTo(1)
+    assertThat(indexNames("blobs"))
+      .containsAtLeast(
+        "index_blobs_dtdName_createdTimestampMillis",
+        "index_blobs_dtdName_id",
+        "index_blobs_createdTimestampMillis",
+        "index_blobs_segmentId",
+        "index_blobs_dtdName_locusId",
+      )
+    assertThat(indexNames("packages")).contains("index_packages_packageName")
+  }
+
+  private fun indexNames(table: String): List<String> =
+    db.openHelper.readableDatabase.query("PRAGMA index_list(`$table`)").use { cursor ->
+      buildList {
+        while (cursor.moveToNext()) add(cursor.getString(cursor.getColumnIndexOrThrow("name")))
+      }
+    }
+
+  companion object {
+    private const val DB_NAME = "BlobDatabaseMigrationTest"
+    private const val KEY = "key"
+    private const val DTD_NAME = "dtd"
+    private const val PACKAGE = "package"
+    private const val CREATED = 1000L
+  }
+}
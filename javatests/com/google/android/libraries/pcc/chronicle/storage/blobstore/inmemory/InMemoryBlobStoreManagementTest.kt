@@ -146,6 +146,25 @@ class InMemoryBlobStoreManagementTest {
     assertThat(personBlobStore.getEntityByKey(KEY_2)).isNotNull()
   }
 
+  @Test
+  fun nextExpiryMillis() = runBlocking {
+    assertThat(inMemoryBlobStoreManagement.nextExpiryMillis(setOf(managementInfo1))).isNull()
+
+    messageBlobStore.putEntity(wrapped1)
+    personBlobStore.putEntity(
+      WrappedEntity(
+        EntityMetadata(KEY_1, listOf(PACKAGE_1), created = Instant.ofEpochMilli(CREATED - 200)),
+        testPerson,
+      )
+    )
+
+    val result =
+      inMemoryBlobStoreManagement.nextExpiryMillis(setOf(managementInfo1, managementInfo2))
+
+    // The person entity was created first, and expires once its 500ms ttl has fully elapsed.
+    assertThat(result).isEqualTo(CREATED - 200 + 500 + 1)
+  }
+
   @Test
   fun deleteEntitiesBetween() = runBlocking {
     messageBlobStore.putEntity(wrapped1)
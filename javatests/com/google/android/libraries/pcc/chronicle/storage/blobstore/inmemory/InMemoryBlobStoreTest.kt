@@ -289,6 +289,28 @@ class InMemoryBlobStoreTest {
     checkResult(results[1], KEY_3, CREATED, CREATED, listOf(PACKAGE_1), testMessage)
   }
 
+  @Test
+  fun getEntitiesByLocusId_followsEvictionsAndRemovals() = runBlocking {
+    blobStore.putEntities(listOf(wrapped1.withLocus(LOCUS_1), wrapped2.withLocus(LOCUS_2)))
+
+    assertThat(blobStore.getEntitiesByLocusId(LOCUS_1).map { it.metadata.id })
+      .containsExactly(KEY_1)
+
+    // KEY_1 was read last, so KEY_2 is evicted.
+    blobStore.putEntity(wrapped3.withLocus(LOCUS_1))
+
+    assertThat(blobStore.getEntitiesByLocusId(LOCUS_1).map { it.metadata.id })
+      .containsExactly(KEY_1, KEY_3)
+    assertThat(blobStore.getEntitiesByLocusId(LOCUS_2)).isEmpty()
+
+    blobStore.removeEntityByKey(KEY_1)
+
+    val results = blobStore.getEntitiesByLocusId(LOCUS_1)
+    assertThat(results).hasSize(1)
+    assertThat(results[0].metadata.locusId).isEqualTo(LOCUS_1)
+    checkResult(results[0], KEY_3, CREATED, CREATED, listOf(PACKAGE_1), testMessage)
+  }
+
   @Test
   fun removeEntityByKey() = runBlocking {
     blobStore.putEntities(listOf(wrapped1, wrapped2))
@@ -322,6 +344,9 @@ class InMemoryBlobStoreTest {
     assertThat(results2).hasSize(0)
   }
 
+  private fun WrappedEntity<TestMessage>.withLocus(locusId: String) =
+    copy(metadata = metadata.toBuilder().setLocusId(locusId).build())
+
   private fun checkResult(
     result: WrappedEntity<TestMessage>?,
     key: String,
@@ -343,6 +368,8 @@ class InMemoryBlobStoreTest {
     private const val KEY_3 = "key_3"
     private const val PACKAGE_1 = "package_1"
     private const val PACKAGE_2 = "package_2"
+    private const val LOCUS_1 = "locus_1"
+    private const val LOCUS_2 = "locus_2"
     private val DTD = TestMessage::class.java.toString()
     private const val CREATED = 1000L
     private const val VERSION = 1L
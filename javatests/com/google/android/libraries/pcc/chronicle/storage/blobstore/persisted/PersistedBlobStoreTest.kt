@@ -24,23 +24,39 @@ import com.google.android.libraries.pcc.chronicle.api.storage.EntityMetadata
 import com.google.android.libraries.pcc.chronicle.api.storage.WrappedEntity
 import com.google.android.libraries.pcc.chronicle.api.storage.toInstant
 import com.google.android.libraries.pcc.chronicle.storage.blobstore.BlobStore
+import com.google.android.libraries.pcc.chronicle.storage.blobstore.DeflateBlobCodec
 import com.google.android.libraries.pcc.chronicle.storage.blobstore.PersistedManagementInfo
 import com.google.android.libraries.pcc.chronicle.storage.blobstore.QuotaInfo
 import com.google.android.libraries.pcc.chronicle.storage.blobstore.TestMessage
 import com.google.android.libraries.pcc.chronicle.storage.blobstore.TrimOrder
+import com.google.android.libraries.pcc.chronicle.storage.blobstore.db.BlobDao
 import com.google.android.libraries.pcc.chronicle.storage.blobstore.db.BlobDatabase
 import com.google.android.libraries.pcc.chronicle.util.TimeSource
 import com.google.common.truth.Truth.assertThat
+import java.io.File
+import java.time.Duration
 import java.time.Instant
 import java.util.concurrent.Executors
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.toList
+import kotlinx.coroutines.joinAll
+import kotlinx.coroutines.launch
 import kotlinx.coroutines.runBlocking
 import org.junit.Before
 import org.junit.Test
 import org.junit.runner.RunWith
+import org.mockito.kotlin.any
+import org.mockito.kotlin.argThat
+import org.mockito.kotlin.eq
+import org.mockito.kotlin.mock
+import org.mockito.kotlin.never
+import org.mockito.kotlin.times
+import org.mockito.kotlin.verifyBlocking
 
 @RunWith(AndroidJUnit4::class)
 class PersistedBlobStoreTest {
   private lateinit var blobStore: BlobStore<TestMessage>
+  private lateinit var dao: BlobDao
   private val context: Context = ApplicationProvider.getApplicationContext()
 
   private val testMessage =
@@ -84,17 +100,8 @@ class PersistedBlobStoreTest {
         .setQueryExecutor(Executors.newSingleThreadExecutor())
         .setTransactionExecutor(Executors.newSingleThreadExecutor())
         .build()
-    blobStore =
-      PersistedBlobStore(
-        db.blobDao(),
-        PersistedManagementInfo(
-          DTD,
-          500,
-          QuotaInfo(10, 5, TrimOrder.OLDEST),
-          TestMessage::parseFrom,
-        ),
-        timeSource,
-      )
+    dao = db.blobDao()
+    blobStore = PersistedBlobStore(dao, MANAGEMENT_INFO, timeSource)
   }
 
   @Test
@@ -218,6 +225,229 @@ class PersistedBlobStoreTest {
     checkResult(results[1], KEY_2, CREATED, CREATED, listOf(PACKAGE_1), testMessage)
   }
 
+  @Test
+  fun getEntitiesByLocusId() = runBlocking {
+    val inLocus = { entity: WrappedEntity<TestMessage>, locusId: String ->
+      entity.copy(metadata = entity.metadata.toBuilder().setLocusId(locusId).build())
+    }
+    blobStore.putEntities(listOf(inLocus(wrapped1, LOCUS_1), inLocus(wrapped2, LOCUS_2)))
+
+    val results = blobStore.getEntitiesByLocusId(LOCUS_1)
+
+    assertThat(results).hasSize(1)
+    assertThat(results[0].metadata.locusId).isEqualTo(LOCUS_1)
+    assertThat(blobStore.getMetadataByKey(KEY_2)?.locusId).isEqualTo(LOCUS_2)
+    checkResult(results[0], KEY_1, CREATED, CREATED, listOf(PACKAGE_1, PACKAGE_2), testMessage)
+  }
+
+  @Test
+  fun getAllEntitiesPaged_readsPagesInInsertionOrder() = runBlocking {
+    val keys = (1..5).map { "paged_key_$it" }
+    keys.forEach {
+      blobStore.putEntity(
+        WrappedEntity(EntityMetadata(it, listOf(PACKAGE_1), fakeTime, fakeTime), testMessage)
+      )
+    }
+
+    val pages = blobStore.getAllEntitiesPaged(pageSize = 2).toList()
+
+    assertThat(pages.map { it.size }).containsExactly(2, 2, 1).inOrder()
+    assertThat(pages.flatten().map { it.metadata.id }).containsExactlyElementsIn(keys).inOrder()
+    checkResult(pages[2][0], keys[4], CREATED, CREATED, listOf(PACKAGE_1), testMessage)
+  }
+
+  @Test
+  fun getAllEntitiesPaged_excludesExpiredEntities() = runBlocking<Unit> {
+    blobStore.putEntity(wrapped1)
+    fakeTime = Instant.ofEpochMilli(CREATED + 400)
+    blobStore.putEntity(wrapped2)
+    fakeTime = Instant.ofEpochMilli(CREATED + 600)
+
+    val results = blobStore.getAllEntitiesPaged(pageSize = 1).toList().flatten()
+
+    assertThat(results.map { it.metadata.id }).containsExactly(KEY_2)
+  }
+
+  @Test
+  fun metadataReads_doNotDeserializeEntities() = runBlocking {
+    val store =
+      PersistedBlobStore(
+        dao,
+        MANAGEMENT_INFO.copy(deserializer = { error("Entities must not be deserialized.") }),
+        timeSource,
+      )
+    store.putEntity(wrapped1)
+    fakeTime = Instant.ofEpochMilli(CREATED + 400)
+    store.putEntity(wrapped2)
+    fakeTime = Instant.ofEpochMilli(CREATED + 600)
+
+    assertThat(store.getAllKeys()).containsExactly(KEY_2)
+    assertThat(store.countEntities()).isEqualTo(1)
+    assertThat(store.getMetadataByKey(KEY_1)).isNull()
+    assertThat(store.getAllMetadata())
+      .containsExactly(
+        EntityMetadata(
+          id = KEY_2,
+          associatedPackageNames = listOf(PACKAGE_1),
+          created = Instant.ofEpochMilli(CREATED + 400),
+          updated = Instant.ofEpochMilli(CREATED + 400),
+        )
+      )
+    assertThat(store.getMetadataByKey(KEY_2)).isEqualTo(store.getAllMetadata().single())
+  }
+
+  @Test
+  fun getAllLazyEntities_deserializesOnFirstAccess() = runBlocking {
+    var deserialized = 0
+    val store =
+      PersistedBlobStore(
+        dao,
+        MANAGEMENT_INFO.copy(
+          deserializer = {
+            deserialized++
+            TestMessage.parseFrom(it)
+          }
+        ),
+        timeSource,
+      )
+    store.putEntities(listOf(wrapped1, wrapped2))
+
+    val results = store.getAllLazyEntities()
+
+    assertThat(results.map { it.metadata.id }).containsExactly(KEY_1, KEY_2).inOrder()
+    assertThat(deserialized).isEqualTo(0)
+    checkResult(
+      results[1].toWrappedEntity(),
+      KEY_2,
+      CREATED,
+      CREATED,
+      listOf(PACKAGE_1),
+      testMessage,
+    )
+    assertThat(results[1].entity).isEqualTo(testMessage)
+    assertThat(deserialized).isEqualTo(1)
+  }
+
+  @Test
+  fun blobCodec_storesEncodedBlobsAndReadsUncompressedOnes() = runBlocking {
+    blobStore.putEntity(wrapped1)
+    val compressedStore =
+      PersistedBlobStore(dao, MANAGEMENT_INFO.copy(blobCodec = DeflateBlobCodec()), timeSource)
+    val largeMessage = testMessage.toBuilder().setContent(CONTENT.repeat(50)).build()
+    compressedStore.putEntity(wrapped2.copy(entity = largeMessage))
+
+    val storedBlob = dao.blobEntityWithPackagesByKeyAndDtdName(KEY_2, DTD, 0)?.blobEntity?.blob
+    assertThat(storedBlob?.size).isLessThan(largeMessage.serializedSize)
+    checkResult(
+      compressedStore.getEntityByKey(KEY_1),
+      KEY_1,
+      CREATED,
+      CREATED,
+      listOf(PACKAGE_1, PACKAGE_2),
+      testMessage,
+    )
+    checkResult(
+      compressedStore.getEntityByKey(KEY_2),
+      KEY_2,
+      CREATED,
+      CREATED,
+      listOf(PACKAGE_1),
+      largeMessage,
+    )
+  }
+
+  @Test
+  fun segmentStore_storesLargeBlobsOutsideTheTable() = runBlocking {
+    val segmentStore = BlobSegmentStore(File(context.filesDir, "segments"), minExternalSize = 64)
+    val store = PersistedBlobStore(dao, MANAGEMENT_INFO, timeSource, segmentStore)
+    val largeMessage = testMessage.toBuilder().setContent(CONTENT.repeat(10)).build()
+    store.putEntities(listOf(wrapped1, wrapped2.copy(entity = largeMessage)))
+
+    val row1 = dao.blobEntityWithPackagesByKeyAndDtdName(KEY_1, DTD, 0)?.blobEntity
+    val row2 = dao.blobEntityWithPackagesByKeyAndDtdName(KEY_2, DTD, 0)?.blobEntity
+    assertThat(row1?.segmentId).isNull()
+    assertThat(row2?.segmentId).isNotNull()
+    assertThat(row2?.blob).isEmpty()
+    val results = store.getAllEntities()
+    checkResult(results[0], KEY_1, CREATED, CREATED, listOf(PACKAGE_1, PACKAGE_2), testMessage)
+    checkResult(results[1], KEY_2, CREATED, CREATED, listOf(PACKAGE_1), largeMessage)
+  }
+
+  @Test
+  fun groupCommit_concurrentPutsAreCommittedTogether() = runBlocking {
+    val mockDao = mock<BlobDao>()
+    val store =
+      PersistedBlobStore(
+        mockDao,
+        MANAGEMENT_INFO,
+        timeSource,
+        groupCommit = GroupCommitConfig(maxBatchSize = 3, maxDelay = Duration.ofMinutes(1)),
+      )
+
+    // The batch is full with the third entity, so none of the puts waits for maxDelay.
+    listOf(wrapped1, wrapped2, wrapped2.copy(metadata = EntityMetadata(KEY_3, PACKAGE_1, fakeTime)))
+      .map { launch { store.putEntity(it) } }
+      .joinAll()
+
+    verifyBlocking(mockDao) {
+      insertOrUpdateBlobsWithPackages(
+        argThat { keys.map { it.key }.toSet() == setOf(KEY_1, KEY_2, KEY_3) },
+        eq(DTD),
+        eq(MANAGEMENT_INFO.quotaInfo),
+        eq(CREATED - 500),
+      )
+    }
+    verifyBlocking(mockDao, never()) { insertOrUpdateBlobWithPackages(any(), any(), any()) }
+  }
+
+  @Test
+  fun groupCommit_fullBatchSignalDoesNotOutliveItsBatch() = runBlocking {
+    val mockDao = mock<BlobDao>()
+    val store =
+      PersistedBlobStore(
+        mockDao,
+        MANAGEMENT_INFO,
+        timeSource,
+        groupCommit = GroupCommitConfig(maxBatchSize = 2, maxDelay = Duration.ofMinutes(1)),
+      )
+    val wrapped3 = wrapped2.copy(metadata = EntityMetadata(KEY_3, PACKAGE_1, fakeTime))
+    val wrapped4 = wrapped2.copy(metadata = EntityMetadata(KEY_4, PACKAGE_1, fakeTime))
+
+    // The third put signals a full batch while the first one is committed, and then commits itself
+    // without waiting for the signal.
+    listOf(wrapped1, wrapped2, wrapped3).map { launch { store.putEntity(it) } }.joinAll()
+    val put4 = launch { store.putEntity(wrapped4) }
+    delay(100)
+
+    assertThat(put4.isCompleted).isFalse()
+    verifyBlocking(mockDao, times(2)) {
+      insertOrUpdateBlobsWithPackages(any(), any(), any(), any())
+    }
+    put4.cancel()
+  }
+
+  @Test
+  fun groupCommit_singlePutIsCommittedAfterMaxDelay() = runBlocking {
+    val store =
+      PersistedBlobStore(
+        dao,
+        MANAGEMENT_INFO,
+        timeSource,
+        groupCommit = GroupCommitConfig(maxBatchSize = 3, maxDelay = Duration.ofMillis(10)),
+      )
+
+    store.putEntity(wrapped1)
+
+    checkResult(
+      blobStore.getEntityByKey(KEY_1),
+      KEY_1,
+      CREATED,
+      CREATED,
+      listOf(PACKAGE_1, PACKAGE_2),
+      testMessage,
+    )
+  }
+
   @Test
   fun removeEntityByKey() = runBlocking {
     blobStore.putEntities(listOf(wrapped1, wrapped2))
@@ -269,9 +499,15 @@ class PersistedBlobStoreTest {
   companion object {
     private const val KEY_1 = "key_1"
     private const val KEY_2 = "key_2"
+    private const val KEY_3 = "key_3"
+    private const val KEY_4 = "key_4"
     private const val PACKAGE_1 = "package_1"
     private const val PACKAGE_2 = "package_2"
+    private const val LOCUS_1 = "locus_1"
+    private const val LOCUS_2 = "locus_2"
     private val DTD = TestMessage::class.java.toString()
+    private val MANAGEMENT_INFO =
+      PersistedManagementInfo(DTD, 500, QuotaInfo(10, 5, TrimOrder.OLDEST), TestMessage::parseFrom)
     private const val CREATED = 1000L
     private const val VERSION = 1L
     private const val NAME = "test"
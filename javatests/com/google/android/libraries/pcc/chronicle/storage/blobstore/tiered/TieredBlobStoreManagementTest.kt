@@ -0,0 +1,153 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.pcc.chronicle.storage.blobstore.tiered
+
+import android.content.Context
+import androidx.room.Room
+import androidx.test.core.app.ApplicationProvider
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.google.android.libraries.pcc.chronicle.api.storage.EntityMetadata
+import com.google.android.libraries.pcc.chronicle.api.storage.WrappedEntity
+import com.google.android.libraries.pcc.chronicle.storage.blobstore.PersistedManagementInfo
+import com.google.android.libraries.pcc.chronicle.storage.blobstore.QuotaInfo
+import com.google.android.libraries.pcc.chronicle.storage.blobstore.TestMessage
+import com.google.android.libraries.pcc.chronicle.storage.blobstore.TieredManagementInfo
+import com.google.android.libraries.pcc.chronicle.storage.blobstore.TrimOrder
+import com.google.android.libraries.pcc.chronicle.storage.blobstore.db.BlobDao
+import com.google.android.libraries.pcc.chronicle.storage.blobstore.db.BlobDatabase
+import com.google.android.libraries.pcc.chronicle.storage.blobstore.persisted.PersistedBlobStore
+import com.google.android.libraries.pcc.chronicle.storage.blobstore.persisted.PersistedBlobStoreManagement
+import com.google.android.libraries.pcc.chronicle.util.TimeSource
+import com.google.common.truth.Truth.assertThat
+import java.time.Instant
+import java.util.concurrent.Executors
+import kotlinx.coroutines.runBlocking
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@RunWith(AndroidJUnit4::class)
+class TieredBlobStoreManagementTest {
+  private val context: Context = ApplicationProvider.getApplicationContext()
+  private lateinit var dao: BlobDao
+  private lateinit var cache: TieredCache<TestMessage>
+  private lateinit var blobStore: TieredBlobStore<TestMessage>
+  private lateinit var persistedManagement: PersistedBlobStoreManagement
+  private lateinit var tieredManagement: TieredBlobStoreManagement
+
+  private var fakeTime = Instant.ofEpochMilli(CREATED)
+  private val timeSource = TimeSource { fakeTime }
+
+  @Before
+  fun setUp() = runBlocking<Unit> {
+    val db =
+      Room.databaseBuilder(context, BlobDatabase::class.java, "BlobStore")
+        .setQueryExecutor(Executors.newSingleThreadExecutor())
+        .setTransactionExecutor(Executors.newSingleThreadExecutor())
+        .build()
+    dao = db.blobDao()
+    val storage = TieredStorage()
+    cache = storage.registerDataTypeCache(MANAGEMENT_INFO)
+    val persisted = PersistedBlobStore(dao, MANAGEMENT_INFO.persisted, timeSource)
+    blobStore = TieredBlobStore(persisted, cache, timeSource)
+    persistedManagement = PersistedBlobStoreManagement(dao)
+    tieredManagement = TieredBlobStoreManagement(dao, storage)
+
+    blobStore.putEntity(wrapped(KEY_1, PACKAGE_1))
+    fakeTime = fakeTime.plusMillis(100)
+    blobStore.putEntity(wrapped(KEY_2, PACKAGE_2))
+    blobStore.getEntityByKey(KEY_1)
+    blobStore.getEntityByKey(KEY_2)
+  }
+
+  @Test
+  fun clearAll_invalidatesAllEntities() = runBlocking {
+    assertThat(tieredManagement.clearAll()).isEqualTo(0)
+
+    assertThat(cache.keys()).isEmpty()
+  }
+
+  @Test
+  fun deletePackage_invalidatesEntitiesOfPackage() = runBlocking<Unit> {
+    persistedManagement.deletePackage(PACKAGE_1)
+    tieredManagement.deletePackage(PACKAGE_1)
+
+    assertThat(cache.keys()).containsExactly(KEY_2)
+    assertThat(blobStore.getEntityByKey(KEY_1)).isNull()
+  }
+
+  @Test
+  fun reconcilePackages_invalidatesEntitiesOfRemovedPackages() = runBlocking<Unit> {
+    tieredManagement.reconcilePackages(setOf(PACKAGE_2))
+
+    assertThat(cache.keys()).containsExactly(KEY_2)
+  }
+
+  @Test
+  fun deleteEntitiesCreatedBetween_invalidatesEntitiesInRange() = runBlocking<Unit> {
+    tieredManagement.deleteEntitiesCreatedBetween(CREATED, CREATED + 100)
+
+    assertThat(cache.keys()).containsExactly(KEY_2)
+  }
+
+  @Test
+  fun deleteExpiredEntities_invalidatesExpiredEntities() = runBlocking<Unit> {
+    val currentTimeMillis = CREATED + MANAGEMENT_INFO.ttlMillis + 50
+
+    tieredManagement.deleteExpiredEntities(currentTimeMillis, setOf(MANAGEMENT_INFO))
+
+    assertThat(cache.keys()).containsExactly(KEY_2)
+  }
+
+  @Test
+  fun trim_invalidatesEntitiesNoLongerStored() = runBlocking<Unit> {
+    dao.removeBlobEntityByKeyAndDtdName(KEY_1, MANAGEMENT_INFO.dtdName)
+
+    tieredManagement.trim(setOf(MANAGEMENT_INFO))
+
+    assertThat(cache.keys()).containsExactly(KEY_2)
+  }
+
+  private fun wrapped(key: String, packageName: String) =
+    WrappedEntity(
+      EntityMetadata(
+        id = key,
+        associatedPackageNames = listOf(packageName),
+        created = fakeTime,
+        updated = fakeTime,
+      ),
+      TestMessage.newBuilder().setName(key).build(),
+    )
+
+  companion object {
+    private const val KEY_1 = "key_1"
+    private const val KEY_2 = "key_2"
+    private const val PACKAGE_1 = "package_1"
+    private const val PACKAGE_2 = "package_2"
+    private const val CREATED = 1000L
+    private val MANAGEMENT_INFO =
+      TieredManagementInfo(
+        PersistedManagementInfo(
+          TestMessage::class.java.toString(),
+          500,
+          QuotaInfo(10, 5, TrimOrder.OLDEST),
+          TestMessage::parseFrom,
+        ),
+        maxCachedItems = 10,
+      )
+  }
+}
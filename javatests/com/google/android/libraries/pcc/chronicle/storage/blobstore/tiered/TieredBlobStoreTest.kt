@@ -0,0 +1,156 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.pcc.chronicle.storage.blobstore.tiered
+
+import android.content.Context
+import androidx.room.Room
+import androidx.test.core.app.ApplicationProvider
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.google.android.libraries.pcc.chronicle.api.storage.EntityMetadata
+import com.google.android.libraries.pcc.chronicle.api.storage.WrappedEntity
+import com.google.android.libraries.pcc.chronicle.storage.blobstore.PersistedManagementInfo
+import com.google.android.libraries.pcc.chronicle.storage.blobstore.QuotaInfo
+import com.google.android.libraries.pcc.chronicle.storage.blobstore.TestMessage
+import com.google.android.libraries.pcc.chronicle.storage.blobstore.TieredManagementInfo
+import com.google.android.libraries.pcc.chronicle.storage.blobstore.TrimOrder
+import com.google.android.libraries.pcc.chronicle.storage.blobstore.db.BlobDao
+import com.google.android.libraries.pcc.chronicle.storage.blobstore.db.BlobDatabase
+import com.google.android.libraries.pcc.chronicle.storage.blobstore.persisted.PersistedBlobStore
+import com.google.android.libraries.pcc.chronicle.util.TimeSource
+import com.google.common.truth.Truth.assertThat
+import java.time.Instant
+import java.util.concurrent.Executors
+import kotlinx.coroutines.runBlocking
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@RunWith(AndroidJUnit4::class)
+class TieredBlobStoreTest {
+  private val context: Context = ApplicationProvider.getApplicationContext()
+  private lateinit var dao: BlobDao
+  private lateinit var persisted: PersistedBlobStore<TestMessage>
+  private lateinit var cache: TieredCache<TestMessage>
+  private lateinit var blobStore: TieredBlobStore<TestMessage>
+
+  private var fakeTime = Instant.ofEpochMilli(CREATED)
+  private val timeSource = TimeSource { fakeTime }
+
+  @Before
+  fun setUp() {
+    val db =
+      Room.databaseBuilder(context, BlobDatabase::class.java, "BlobStore")
+        .setQueryExecutor(Executors.newSingleThreadExecutor())
+        .setTransactionExecutor(Executors.newSingleThreadExecutor())
+        .build()
+    dao = db.blobDao()
+    persisted = PersistedBlobStore(dao, MANAGEMENT_INFO.persisted, timeSource)
+    cache = TieredStorage().registerDataTypeCache(MANAGEMENT_INFO)
+    blobStore = TieredBlobStore(persisted, cache, timeSource)
+  }
+
+  @Test
+  fun getEntityByKey_servesRepeatedReadsFromCache() = runBlocking<Unit> {
+    blobStore.putEntity(wrapped(KEY_1, "first"))
+    assertThat(blobStore.getEntityByKey(KEY_1)?.entity?.name).isEqualTo("first")
+
+    // Written behind the tiered store's back, so the cached entity is still served.
+    persisted.putEntity(wrapped(KEY_1, "second"))
+
+    assertThat(blobStore.getEntityByKey(KEY_1)?.entity?.name).isEqualTo("first")
+    assertThat(cache.keys()).containsExactly(KEY_1)
+  }
+
+  @Test
+  fun putEntity_invalidatesCachedEntity() = runBlocking<Unit> {
+    blobStore.putEntity(wrapped(KEY_1, "first"))
+    blobStore.getEntityByKey(KEY_1)
+
+    blobStore.putEntity(wrapped(KEY_1, "second"))
+
+    val entity = blobStore.getEntityByKey(KEY_1)
+    assertThat(entity?.entity?.name).isEqualTo("second")
+    // The cached metadata is the stored one, not that of the written entity.
+    assertThat(entity?.metadata).isEqualTo(persisted.getEntityByKey(KEY_1)?.metadata)
+  }
+
+  @Test
+  fun removeEntityByKey_invalidatesCachedEntity() = runBlocking {
+    blobStore.putEntities(listOf(wrapped(KEY_1, "first"), wrapped(KEY_2, "second")))
+    blobStore.getEntityByKey(KEY_1)
+    blobStore.getEntityByKey(KEY_2)
+
+    blobStore.removeEntityByKey(KEY_1)
+
+    assertThat(blobStore.getEntityByKey(KEY_1)).isNull()
+    assertThat(cache.keys()).containsExactly(KEY_2)
+
+    blobStore.removeAll()
+
+    assertThat(blobStore.getEntityByKey(KEY_2)).isNull()
+    assertThat(cache.keys()).isEmpty()
+  }
+
+  @Test
+  fun getEntityByKey_expiredCachedEntity_returnsNull() = runBlocking {
+    blobStore.putEntity(wrapped(KEY_1, "first"))
+    blobStore.getEntityByKey(KEY_1)
+
+    fakeTime = fakeTime.plusMillis(MANAGEMENT_INFO.ttlMillis + 1)
+
+    assertThat(blobStore.getEntityByKey(KEY_1)).isNull()
+    assertThat(cache.keys()).isEmpty()
+  }
+
+  @Test
+  fun getEntityByKey_evictsLeastRecentlyUsed() = runBlocking<Unit> {
+    val keys = (1..MANAGEMENT_INFO.maxCachedItems + 1).map { "key_$it" }
+    blobStore.putEntities(keys.map { wrapped(it, it) })
+
+    keys.forEach { blobStore.getEntityByKey(it) }
+
+    assertThat(cache.keys()).containsExactlyElementsIn(keys.drop(1))
+  }
+
+  private fun wrapped(key: String, name: String) =
+    WrappedEntity(
+      EntityMetadata(
+        id = key,
+        associatedPackageNames = listOf(PACKAGE_1),
+        created = fakeTime,
+        updated = fakeTime,
+      ),
+      TestMessage.newBuilder().setName(name).build(),
+    )
+
+  companion object {
+    private const val KEY_1 = "key_1"
+    private const val KEY_2 = "key_2"
+    private const val PACKAGE_1 = "package_1"
+    private const val CREATED = 1000L
+    private val MANAGEMENT_INFO =
+      TieredManagementInfo(
+        PersistedManagementInfo(
+          TestMessage::class.java.toString(),
+          500,
+          QuotaInfo(10, 5, TrimOrder.OLDEST),
+          TestMessage::parseFrom,
+        ),
+        maxCachedItems = 3,
+      )
+  }
+}
@@ -38,15 +38,45 @@ class DataCacheReaderTest {
   fun reader_all_returnsAllFromStorage_orderedByUpdatedTimestamp() {
     val reader = DataCacheReader.createDefault(mockDataStorage)
 
-    whenever(mockDataStorage.all()).thenReturn(listOf(DUMMY_LABEL_WRAPPER_1, DUMMY_LABEL_WRAPPER_2))
+    whenever(mockDataStorage.sequenceByUpdateTime())
+      .thenReturn(sequenceOf(DUMMY_LABEL_WRAPPER_1, DUMMY_LABEL_WRAPPER_2))
 
     val all = reader.allTimestamped()
 
     assertThat(all)
       .containsExactly(
+        DUMMY_LABEL_WRAPPER_1.asTimestampedInstance(),
         DUMMY_LABEL_WRAPPER_2.asTimestampedInstance(),
+      )
+      .inOrder()
+  }
+
+  @Test
+  fun reader_latestTimestamped_returnsMostRecentlyUpdatedFirst() {
+    val reader = DataCacheReader.createDefault(mockDataStorage)
+
+    whenever(mockDataStorage.sequenceByUpdateTime(newestFirst = true))
+      .thenReturn(sequenceOf(DUMMY_LABEL_WRAPPER_2, DUMMY_LABEL_WRAPPER_1))
+
+    assertThat(reader.latestTimestamped(1))
+      .containsExactly(DUMMY_LABEL_WRAPPER_2.asTimestampedInstance())
+  }
+
+  @Test
+  fun reader_updatedSince_returnsOnlyLaterUpdatesOldestFirst() {
+    val reader = DataCacheReader.createDefault(mockDataStorage)
+
+    whenever(mockDataStorage.sequenceByUpdateTime(newestFirst = true))
+      .thenReturn(sequenceOf(DUMMY_LABEL_WRAPPER_2, DUMMY_LABEL_WRAPPER_1))
+
+    assertThat(reader.updatedSince(Instant.ofEpochSecond(20000)))
+      .containsExactly(DUMMY_LABEL_WRAPPER_2.asTimestampedInstance())
+    assertThat(reader.updatedSince(Instant.ofEpochSecond(10000)))
+      .containsExactly(
         DUMMY_LABEL_WRAPPER_1.asTimestampedInstance(),
+        DUMMY_LABEL_WRAPPER_2.asTimestampedInstance(),
       )
+      .inOrder()
   }
 
   @Test
@@ -62,6 +92,17 @@ class DataCacheReaderTest {
     assertThat(reader.forEntity("3")).isNull()
   }
 
+  @Test
+  fun reader_forEntities_returnsFoundEntities() {
+    val reader = DataCacheReader.createDefault(mockDataStorage)
+
+    whenever(mockDataStorage.getAll(listOf("1", "3")))
+      .thenReturn(mapOf("1" to DUMMY_LABEL_WRAPPER_1))
+
+    assertThat(reader.forEntities(listOf("1", "3")))
+      .containsExactly("1", DUMMY_LABEL_WRAPPER_1.entity)
+  }
+
   @Test
   fun reader_forEntityTimestamped_returnsCorrectEntity() {
     val reader = DataCacheReader.createDefault(mockDataStorage)
@@ -74,6 +74,42 @@ class DataCacheWriterTest {
       )
   }
 
+  @Test
+  fun writeAll_invokesDataCachePutAllWithSharedTimestamps() {
+    val writer = DataCacheWriter.createDefault(mockDataStorage, mockTimeSource)
+
+    whenever(mockTimeSource.now()).thenReturn(Instant.ofEpochSecond(11000))
+    writer.writeAll(
+      mapOf("1" to DummyTestLabel(value = 1), "2" to DummyTestLabel(value = 2)),
+      Instant.ofEpochSecond(10000),
+      "package_1",
+    )
+
+    val created = Instant.ofEpochSecond(10000)
+    val updated = Instant.ofEpochSecond(11000)
+    verify(mockTimeSource, times(1)).now()
+    verify(mockDataStorage, times(1))
+      .putAll(
+        listOf(
+          WrappedEntity(
+            EntityMetadata("1", "package_1", created, updated),
+            DummyTestLabel(value = 1),
+          ),
+          WrappedEntity(
+            EntityMetadata("2", "package_1", created, updated),
+            DummyTestLabel(value = 2),
+          ),
+        )
+      )
+  }
+
+  @Test
+  fun removeAll_invokesDataCacheRemoveAll() {
+    val writer = DataCacheWriter.createDefault(mockDataStorage, mockTimeSource)
+    writer.removeAll(listOf("10", "5"))
+    verify(mockDataStorage, times(1)).removeAll(listOf("10", "5"))
+  }
+
   @Test
   fun remove_invokesDataCacheRemove() {
     val writer = DataCacheWriter.createDefault(mockDataStorage, mockTimeSource)
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.pcc.chronicle.storage.datacache
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.google.android.libraries.pcc.chronicle.util.TimeSource
+import java.time.Duration
+import java.time.Instant
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.test.TestScope
+import kotlinx.coroutines.test.advanceTimeBy
+import kotlinx.coroutines.test.runCurrent
+import org.junit.After
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.kotlin.doAnswer
+import org.mockito.kotlin.mock
+import org.mockito.kotlin.never
+import org.mockito.kotlin.times
+import org.mockito.kotlin.verify
+
+@RunWith(AndroidJUnit4::class)
+class ExpiryDrivenStoreSchedulerTest {
+  private val scope = TestScope()
+  private val timeSource = TimeSource { Instant.ofEpochMilli(scope.testScheduler.currentTime) }
+  private var earliestExpiry: Instant? = null
+  private val storage: DataCacheStorage = mock { on { nextExpiry() } doAnswer { earliestExpiry } }
+  private val scheduler = ExpiryDrivenStoreScheduler(scope, timeSource, storage)
+
+  @After
+  fun tearDown() {
+    scope.cancel()
+  }
+
+  @Test
+  fun queueWorkRequest_purgesWhenEarliestEntityExpires() {
+    earliestExpiry = Instant.ofEpochMilli(Duration.ofMinutes(10).toMillis())
+
+    scheduler.queueWorkRequest()
+    advanceBy(Duration.ofMinutes(10).minusMillis(1))
+    verify(storage, never()).purgeExpiredEntities()
+
+    earliestExpiry = null
+    advanceBy(Duration.ofMillis(1))
+    verify(storage).purgeExpiredEntities()
+  }
+
+  @Test
+  fun queueWorkRequest_withoutExpiry_purgesEveryMaxInterval() {
+    scheduler.queueWorkRequest()
+
+    advanceBy(ExpiryDrivenStoreScheduler.DEFAULT_MAX_INTERVAL.multipliedBy(2))
+
+    verify(storage, times(2)).purgeExpiredEntities()
+  }
+
+  @Test
+  fun queueWorkRequest_continuousExpiries_areCoalescedByMinInterval() {
+    scheduler.queueWorkRequest()
+    earliestExpiry = Instant.EPOCH
+
+    advanceBy(ExpiryDrivenStoreScheduler.DEFAULT_MIN_INTERVAL.multipliedBy(3))
+
+    verify(storage, times(3)).purgeExpiredEntities()
+  }
+
+  @Test
+  fun queueWorkRequest_again_reevaluatesNextExpiry() {
+    scheduler.queueWorkRequest()
+    advanceBy(Duration.ofMinutes(1))
+    verify(storage, never()).purgeExpiredEntities()
+
+    earliestExpiry = timeSource.now().plus(Duration.ofMinutes(5))
+    scheduler.queueWorkRequest()
+    advanceBy(Duration.ofMinutes(5))
+
+    verify(storage).purgeExpiredEntities()
+  }
+
+  @Test
+  fun queueWorkRequest_failedRun_isRetriedAfterBackoff() {
+    var failuresLeft = 1
+    val failingStorage: DataCacheStorage = mock {
+      on { nextExpiry() } doAnswer { Instant.EPOCH }
+      on { purgeExpiredEntities() } doAnswer
+        {
+          if (failuresLeft-- > 0) throw IllegalStateException("Purge failed.")
+        }
+    }
+    ExpiryDrivenStoreScheduler(scope, timeSource, failingStorage).queueWorkRequest()
+
+    // The run failing after a minute is retried one backoff later, and the loop carries on.
+    advanceBy(ExpiryDrivenStoreScheduler.DEFAULT_MIN_INTERVAL.multipliedBy(3))
+
+    verify(failingStorage, times(3)).purgeExpiredEntities()
+  }
+
+  private fun advanceBy(duration: Duration) {
+    scope.advanceTimeBy(duration.toMillis())
+    scope.runCurrent()
+  }
+}
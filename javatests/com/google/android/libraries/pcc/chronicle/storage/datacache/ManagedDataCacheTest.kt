@@ -147,6 +147,20 @@ class ManagedDataCacheTest {
     assertThat(testDataStorage.all()).isEqualTo(listOf(testTen, testThirty))
   }
 
+  @Test
+  fun sequence_returnsCacheSequenceResults() {
+    whenever(mockDataStorage.sequence(TestData::class.java))
+      .thenReturn(sequenceOf(testTen, testThirty))
+    assertThat(testDataStorage.sequence().toList()).isEqualTo(listOf(testTen, testThirty))
+  }
+
+  @Test
+  fun metrics_returnsCacheMetrics() {
+    val metrics = DataCacheMetrics(hitCount = 3, missCount = 1)
+    whenever(mockDataStorage.metrics(TestData::class.java)).thenReturn(metrics)
+    assertThat(testDataStorage.metrics()).isEqualTo(metrics)
+  }
+
   @Test
   fun removeAll_invokesCacheRemoveAll() {
     testDataStorage.removeAll()
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.pcc.chronicle.storage.datacache.impl
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.google.android.libraries.pcc.chronicle.api.storage.EntityMetadata
+import com.google.android.libraries.pcc.chronicle.api.storage.WrappedEntity
+import com.google.android.libraries.pcc.chronicle.util.TimeSource
+import com.google.common.truth.Truth.assertThat
+import java.time.Duration
+import java.time.Instant
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@RunWith(AndroidJUnit4::class)
+class ConcurrentDataCacheStorageTest {
+  private var now = Instant.ofEpochMilli(1_000_000)
+  private val storage = ConcurrentDataCacheStorage(TimeSource { now })
+
+  @Test
+  fun put_unregisteredType_returnsFalse() {
+    assertThat(storage.put(Data::class.java, entity("a"))).isFalse()
+    assertThat(storage.get(Data::class.java, "a")).isNull()
+  }
+
+  @Test
+  fun putAndGet_roundTrips() {
+    storage.registerDataType(Data::class.java, maxSize = 10, ttl = Duration.ofMinutes(5))
+
+    assertThat(storage.put(Data::class.java, entity("a"))).isTrue()
+
+    assertThat(storage.get(Data::class.java, "a")).isEqualTo(entity("a"))
+    assertThat(storage.size(Data::class.java)).isEqualTo(1)
+    assertThat(storage.allAsMap(Data::class.java)).containsExactly("a", entity("a"))
+  }
+
+  @Test
+  fun put_overCapacity_evictsLeastRecentlyUsed() {
+    storage.registerDataType(Data::class.java, maxSize = 2, ttl = Duration.ofMinutes(5))
+    storage.put(Data::class.java, entity("a"))
+    storage.put(Data::class.java, entity("b"))
+
+    // Touch "a" so that "b" becomes the eldest entry.
+    storage.get(Data::class.java, "a")
+    storage.put(Data::class.java, entity("c"))
+
+    assertThat(storage.all(Data::class.java)).containsExactly(entity("a"), entity("c"))
+  }
+
+  @Test
+  fun put_overCapacity_keepsFrequentlyReadEntitiesThroughBurstOfWrites() {
+    storage.registerDataType(Data::class.java, maxSize = 3, ttl = Duration.ofMinutes(5))
+    storage.put(Data::class.java, entity("hot"))
+    repeat(5) { storage.get(Data::class.java, "hot") }
+
+    (1..10).forEach { storage.put(Data::class.java, entity("cold$it")) }
+
+    assertThat(storage.get(Data::class.java, "hot")).isEqualTo(entity("hot"))
+    assertThat(storage.size(Data::class.java)).isEqualTo(3)
+  }
+
+  @Test
+  fun put_overSharedBudget_evictsFromHeaviestType() {
+    val budgeted =
+      ConcurrentDataCacheStorage(
+        TimeSource { now },
+        weigher = { entity -> (entity.entity as? Data)?.value?.length ?: 1 },
+        maxWeight = 10,
+      )
+    budgeted.registerDataType(Data::class.java, maxSize = 100, ttl = Duration.ofMinutes(5))
+    budgeted.registerDataType(Other::class.java, maxSize = 100, ttl = Duration.ofMinutes(5))
+    budgeted.put(Other::class.java, WrappedEntity(EntityMetadata("o", "pkg", now), Other))
+    budgeted.put(Data::class.java, entity("aaaa"))
+    budgeted.put(Data::class.java, entity("bbbb"))
+
+    budgeted.put(Data::class.java, entity("cccc"))
+
+    assertThat(budgeted.weight).isAtMost(10L)
+    assertThat(budgeted.size(Data::class.java)).isEqualTo(2)
+    assertThat(budgeted.get(Other::class.java, "o")).isNotNull()
+  }
+
+  @Test
+  fun remove_releasesSharedBudget() {
+    val budgeted =
+      ConcurrentDataCacheStorage(TimeSource { now }, EntityWeigher { 3 }, maxWeight = 100)
+    budgeted.registerDataType(Data::class.java, maxSize = 10, ttl = Duration.ofMinutes(5))
+    budgeted.put(Data::class.java, entity("a"))
+    budgeted.put(Data::class.java, entity("b"))
+
+    budgeted.remove(Data::class.java, "a")
+
+    assertThat(budgeted.weight).isEqualTo(3L)
+  }
+
+  @Test
+  fun registerDataType_again_shrinksExistingCache() {
+    storage.registerDataType(Data::class.java, maxSize = 3, ttl = Duration.ofMinutes(5))
+    storage.put(Data::class.java, entity("a"))
+    storage.put(Data::class.java, entity("b"))
+    storage.put(Data::class.java, entity("c"))
+
+    storage.registerDataType(Data::class.java, maxSize = 1, ttl = Duration.ofMinutes(5))
+
+    assertThat(storage.all(Data::class.java)).containsExactly(entity("c"))
+  }
+
+  @Test
+  fun get_expiredEntity_returnsNull() {
+    storage.registerDataType(Data::class.java, maxSize = 10, ttl = Duration.ofMinutes(5))
+    storage.put(Data::class.java, entity("a"))
+
+    now = now.plus(Duration.ofMinutes(6))
+
+    assertThat(storage.get(Data::class.java, "a")).isNull()
+    assertThat(storage.size(Data::class.java)).isEqualTo(0)
+  }
+
+  @Test
+  fun size_countsRemovalsEvictionsAndExpiry() {
+    storage.registerDataType(Data::class.java, maxSize = 2, ttl = Duration.ofMinutes(5))
+    storage.put(Data::class.java, entity("a"))
+    storage.put(Data::class.java, entity("a"))
+    storage.put(Data::class.java, entity("b"))
+    storage.put(Data::class.java, entity("c"))
+    assertThat(storage.size(Data::class.java)).isEqualTo(2)
+
+    storage.remove(Data::class.java, storage.all(Data::class.java).first().metadata.id)
+    assertThat(storage.size(Data::class.java)).isEqualTo(1)
+
+    now = now.plus(Duration.ofMinutes(4))
+    val fresh = entity("d")
+    storage.put(Data::class.java, fresh)
+    now = now.plus(Duration.ofMinutes(2))
+    assertThat(storage.size(Data::class.java)).isEqualTo(1)
+    assertThat(storage.all(Data::class.java)).containsExactly(fresh)
+  }
+
+  @Test
+  fun purgeExpiredEntities_removesOnlyExpired() {
+    storage.registerDataType(Data::class.java, maxSize = 10, ttl = Duration.ofMinutes(5))
+    storage.put(Data::class.java, entity("old"))
+    now = now.plus(Duration.ofMinutes(4))
+    storage.put(Data::class.java, entity("new"))
+    now = now.plus(Duration.ofMinutes(2))
+
+    storage.purgeExpiredEntities()
+
+    assertThat(storage.allAsMap(Data::class.java).keys).containsExactly("new")
+  }
+
+  @Test
+  fun purgeAllEntitiesForPackage_removesMatchingEntities() {
+    storage.registerDataType(Data::class.java, maxSize = 10, ttl = Duration.ofMinutes(5))
+    storage.put(Data::class.java, entity("a", "pkg1"))
+    storage.put(Data::class.java, entity("b", "pkg2"))
+
+    assertThat(storage.purgeAllEntitiesForPackage("pkg1")).isEqualTo(1)
+    assertThat(storage.all(Data::class.java)).containsExactly(entity("b", "pkg2"))
+  }
+
+  @Test
+  fun purgeAllEntitiesNotInPackages_removesEntitiesWithNoAllowedPackage() {
+    storage.registerDataType(Data::class.java, maxSize = 10, ttl = Duration.ofMinutes(5))
+    storage.put(Data::class.java, entity("a", "pkg1"))
+    storage.put(Data::class.java, entity("b", "pkg2"))
+
+    assertThat(storage.purgeAllEntitiesNotInPackages(setOf("pkg2"))).isEqualTo(1)
+    assertThat(storage.all(Data::class.java)).containsExactly(entity("b", "pkg2"))
+  }
+
+  @Test
+  fun unregisterDataType_removesEntities() {
+    storage.registerDataType(Data::class.java, maxSize = 10, ttl = Duration.ofMinutes(5))
+    storage.put(Data::class.java, entity("a"))
+
+    storage.unregisterDataType(Data::class.java)
+
+    assertThat(storage.registeredDataTypes).isEmpty()
+    assertThat(storage.get(Data::class.java, "a")).isNull()
+  }
+
+  private fun entity(id: String, packageName: String = "pkg") =
+    WrappedEntity(EntityMetadata(id, packageName, now), Data(id))
+
+  data class Data(val value: String)
+
+  object Other
+}
@@ -49,21 +49,43 @@ class DataCacheStorageDataRemovalDownstreamListenerTest {
 
     // Current test set-up
     dataCacheStorage.registerDataType(Data::class.java, maxSize = 10, ttl = Duration.ofHours(1))
-    dataCacheStorage.put(WrappedEntity(metadataWithCreatedAtNow(), Data()))
+    dataCacheStorage.registerDataType(Other::class.java, maxSize = 10, ttl = Duration.ofHours(1))
+    dataCacheStorage.put(
+      WrappedEntity(metadataWithCreatedAtNow("a", defaultDataRemovalRequest.packageName), Data())
+    )
   }
 
   @Test
   fun onDataRemoval_dataIsRemoved() {
-    // TODO(b/232848132): Don't just delete everything.
     DataCacheStorageDataRemovalDownstreamListener(dataCacheStorage)
       .onDataRemoval(defaultDataRemovalRequest)
     assertThat(dataCacheStorage.all(Data::class.java)).isEmpty()
   }
 
+  @Test
+  fun onDataRemoval_otherPackagesDataIsKept() {
+    val requestingPackage = defaultDataRemovalRequest.packageName
+    dataCacheStorage.put(WrappedEntity(metadataWithCreatedAtNow("b", "other.package"), Data()))
+    dataCacheStorage.put(WrappedEntity(metadataWithCreatedAtNow("c", requestingPackage), Other()))
+    dataCacheStorage.put(WrappedEntity(metadataWithCreatedAtNow("d", "other.package"), Other()))
+
+    DataCacheStorageDataRemovalDownstreamListener(dataCacheStorage)
+      .onDataRemoval(defaultDataRemovalRequest)
+
+    assertThat(dataCacheStorage.allAsMap(Data::class.java).keys).containsExactly("b")
+    assertThat(dataCacheStorage.allAsMap(Other::class.java).keys).containsExactly("d")
+  }
+
   companion object {
     class Data
 
-    private fun metadataWithCreatedAtNow() =
-      EntityMetadata.newBuilder().setCreated(Instant.now().toProtoTimestamp()).build()
+    class Other
+
+    private fun metadataWithCreatedAtNow(id: String, packageName: String) =
+      EntityMetadata.newBuilder()
+        .setId(id)
+        .addAssociatedPackageNames(packageName)
+        .setCreated(Instant.now().toProtoTimestamp())
+        .build()
   }
 }
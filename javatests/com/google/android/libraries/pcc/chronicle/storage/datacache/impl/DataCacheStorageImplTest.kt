@@ -0,0 +1,537 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.pcc.chronicle.storage.datacache.impl
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.google.android.libraries.pcc.chronicle.api.storage.EntityMetadata
+import com.google.android.libraries.pcc.chronicle.api.storage.WrappedEntity
+import com.google.android.libraries.pcc.chronicle.api.storage.toProtoTimestamp
+import com.google.android.libraries.pcc.chronicle.storage.datacache.DataCacheChange
+import com.google.android.libraries.pcc.chronicle.storage.datacache.DataRemovalScope
+import com.google.android.libraries.pcc.chronicle.storage.datacache.StoreSerializable
+import com.google.android.libraries.pcc.chronicle.util.TimeSource
+import com.google.common.truth.Truth.assertThat
+import java.io.File
+import java.time.Duration
+import java.time.Instant
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.async
+import kotlinx.coroutines.flow.take
+import kotlinx.coroutines.flow.toList
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.yield
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+
+@RunWith(AndroidJUnit4::class)
+class DataCacheStorageImplTest {
+  private var now = Instant.ofEpochMilli(1_000_000)
+  private val storage = DataCacheStorageImpl(TimeSource { now })
+
+  @get:Rule val tempFolder = TemporaryFolder()
+
+  @Before
+  fun setUp() {
+    storage.registerDataType(Data::class.java, maxSize = 10, ttl = TTL)
+  }
+
+  @Test
+  fun get_beforeTtl_returnsEntity() {
+    storage.put(Data::class.java, entity("a"))
+
+    now = now.plus(TTL)
+
+    assertThat(storage.get(Data::class.java, "a")).isEqualTo(entity("a", created = START))
+  }
+
+  @Test
+  fun get_afterTtl_returnsNull() {
+    storage.put(Data::class.java, entity("a"))
+
+    now = now.plus(TTL).plusNanos(1)
+
+    assertThat(storage.get(Data::class.java, "a")).isNull()
+  }
+
+  @Test
+  fun purgeExpiredEntities_removesOnlyExpiredEntities() {
+    storage.put(Data::class.java, entity("old"))
+    now = now.plus(Duration.ofMinutes(4))
+    storage.put(Data::class.java, entity("new"))
+    now = now.plus(Duration.ofMinutes(2))
+
+    storage.purgeExpiredEntities()
+
+    assertThat(storage.allAsMap(Data::class.java).keys).containsExactly("new")
+    // Expired entities are gone from the cache itself, not just filtered from reads.
+    now = START
+    assertThat(storage.allAsMap(Data::class.java).keys).containsExactly("new")
+  }
+
+  @Test
+  fun purgeExpiredEntities_subMillisecondBoundary_usesExactComparison() {
+    storage.put(Data::class.java, entity("early", created = START.plusNanos(100)))
+    storage.put(Data::class.java, entity("late", created = START.plusNanos(900)))
+    now = START.plus(TTL).plusNanos(500)
+
+    storage.purgeExpiredEntities()
+
+    now = START
+    assertThat(storage.allAsMap(Data::class.java).keys).containsExactly("late")
+  }
+
+  @Test
+  fun purgeExpiredEntities_afterReplacement_usesLatestCreationTime() {
+    storage.put(Data::class.java, entity("a"))
+    now = now.plus(Duration.ofMinutes(4))
+    storage.put(Data::class.java, entity("a"))
+    now = now.plus(Duration.ofMinutes(2))
+
+    storage.purgeExpiredEntities()
+
+    assertThat(storage.allAsMap(Data::class.java).keys).containsExactly("a")
+  }
+
+  @Test
+  fun purgeExpiredEntities_afterEviction_ignoresEvictedEntities() {
+    storage.registerDataType(Data::class.java, maxSize = 1, ttl = TTL)
+    storage.put(Data::class.java, entity("a"))
+    storage.put(Data::class.java, entity("b"))
+    now = now.plus(TTL).plusMillis(1)
+
+    storage.purgeExpiredEntities()
+
+    now = START
+    assertThat(storage.all(Data::class.java)).isEmpty()
+  }
+
+  @Test
+  fun size_excludesExpiredEntities() {
+    storage.put(Data::class.java, entity("old"))
+    now = now.plus(Duration.ofMinutes(4))
+    storage.put(Data::class.java, entity("new"))
+    assertThat(storage.size(Data::class.java)).isEqualTo(2)
+
+    now = now.plus(Duration.ofMinutes(2))
+
+    assertThat(storage.size(Data::class.java)).isEqualTo(1)
+  }
+
+  @Test
+  fun sequence_walksLiveEntities() {
+    storage.put(Data::class.java, entity("a"))
+    storage.put(Data::class.java, entity("b"))
+    storage.remove(Data::class.java, "a")
+
+    assertThat(storage.sequence(Data::class.java).map { it.metadata.id }.toList())
+      .containsExactly("b")
+  }
+
+  @Test
+  fun sequence_excludesExpiredAndEvictedEntities() {
+    storage.registerDataType(Data::class.java, maxSize = 2, ttl = TTL)
+    storage.put(Data::class.java, entity("a"))
+    now = now.plus(Duration.ofMinutes(4))
+    storage.put(Data::class.java, entity("b"))
+    storage.put(Data::class.java, entity("c"))
+    storage.put(Data::class.java, entity("d"))
+    now = now.plus(Duration.ofMinutes(2))
+
+    assertThat(storage.sequence(Data::class.java).map { it.metadata.id }.toList())
+      .containsExactly("c", "d")
+  }
+
+  @Test
+  fun sequenceByUpdateTime_ordersByLatestUpdate() {
+    storage.put(Data::class.java, entity("a"))
+    now = now.plus(Duration.ofMinutes(1))
+    storage.put(Data::class.java, entity("b"))
+    now = now.plus(Duration.ofMinutes(1))
+    // Updating "a" moves it after "b".
+    storage.put(Data::class.java, entity("a", created = START).withUpdated(now))
+
+    assertThat(storage.sequenceByUpdateTime(Data::class.java).map { it.metadata.id }.toList())
+      .containsExactly("b", "a")
+      .inOrder()
+    assertThat(
+        storage
+          .sequenceByUpdateTime(Data::class.java, newestFirst = true)
+          .map { it.metadata.id }
+          .first()
+      )
+      .isEqualTo("a")
+
+    storage.remove(Data::class.java, "a")
+    assertThat(storage.sequenceByUpdateTime(Data::class.java).map { it.metadata.id }.toList())
+      .containsExactly("b")
+  }
+
+  @Test
+  fun nextExpiry_returnsExpiryOfOldestEntity() {
+    assertThat(storage.nextExpiry()).isNull()
+
+    storage.put(Data::class.java, entity("a"))
+    now = now.plus(Duration.ofMinutes(1))
+    storage.put(Data::class.java, entity("b"))
+
+    val nextExpiry = checkNotNull(storage.nextExpiry())
+    assertThat(nextExpiry).isEqualTo(START.plus(TTL).plusMillis(1))
+    now = nextExpiry.minusMillis(1)
+    storage.purgeExpiredEntities()
+    assertThat(storage.size(Data::class.java)).isEqualTo(2)
+    now = nextExpiry
+    storage.purgeExpiredEntities()
+    assertThat(storage.size(Data::class.java)).isEqualTo(1)
+  }
+
+  @Test
+  fun purgeEntitiesInScope_removesOnlyEntitiesOfPackageTypeAndTimeRange() {
+    storage.registerDataType(Other::class.java, maxSize = 10, ttl = TTL)
+    storage.put(Data::class.java, entity("before", packageNames = listOf("pkg1")))
+    now = now.plus(Duration.ofMinutes(1))
+    storage.put(Data::class.java, entity("within", packageNames = listOf("pkg1")))
+    storage.put(Data::class.java, entity("otherPackage", packageNames = listOf("pkg2")))
+    storage.put(Other::class.java, WrappedEntity(EntityMetadata("otherType", "pkg1", now), Other))
+    now = now.plus(Duration.ofMinutes(1))
+    storage.put(Data::class.java, entity("after", packageNames = listOf("pkg1")))
+
+    val removed =
+      storage.purgeEntitiesInScope(
+        DataRemovalScope(
+          packageName = "pkg1",
+          dataTypes = setOf(Data::class.java),
+          createdFrom = START.plus(Duration.ofMinutes(1)),
+          createdUntil = START.plus(Duration.ofMinutes(2)),
+        )
+      )
+
+    assertThat(removed).isEqualTo(1)
+    assertThat(storage.allAsMap(Data::class.java).keys)
+      .containsExactly("before", "otherPackage", "after")
+    assertThat(storage.allAsMap(Other::class.java).keys).containsExactly("otherType")
+  }
+
+  @Test
+  fun purgeAllEntitiesForPackage_removesOnlyEntitiesOfPackage() {
+    storage.registerDataType(Other::class.java, maxSize = 10, ttl = TTL)
+    storage.put(Data::class.java, entity("a", packageNames = listOf("pkg1")))
+    storage.put(Data::class.java, entity("b", packageNames = listOf("pkg1", "pkg2")))
+    storage.put(Data::class.java, entity("c", packageNames = listOf("pkg2")))
+    storage.put(Other::class.java, WrappedEntity(EntityMetadata("d", "pkg1", now), Other))
+
+    assertThat(storage.purgeAllEntitiesForPackage("pkg1")).isEqualTo(3)
+
+    assertThat(storage.allAsMap(Data::class.java).keys).containsExactly("c")
+    assertThat(storage.all(Other::class.java)).isEmpty()
+  }
+
+  @Test
+  fun purgeEntitiesForPackage_afterReplacement_usesLatestPackages() {
+    storage.put(Data::class.java, entity("a", packageNames = listOf("pkg1")))
+    storage.put(Data::class.java, entity("a", packageNames = listOf("pkg2")))
+
+    assertThat(storage.purgeEntitiesForPackage(Data::class.java, "pkg1")).isEqualTo(0)
+    assertThat(storage.purgeEntitiesForPackage(Data::class.java, "pkg2")).isEqualTo(1)
+    assertThat(storage.all(Data::class.java)).isEmpty()
+  }
+
+  @Test
+  fun purgeAllEntitiesNotInPackages_keepsEntitiesWithAnAllowedPackage() {
+    storage.put(Data::class.java, entity("a", packageNames = listOf("pkg1")))
+    storage.put(Data::class.java, entity("b", packageNames = listOf("pkg1", "pkg2")))
+    storage.put(Data::class.java, entity("c", packageNames = listOf("pkg3")))
+    storage.put(Data::class.java, entity("d", packageNames = emptyList()))
+
+    assertThat(storage.purgeAllEntitiesNotInPackages(setOf("pkg2"))).isEqualTo(3)
+
+    assertThat(storage.allAsMap(Data::class.java).keys).containsExactly("b")
+  }
+
+  @Test
+  fun registerDataType_onDisk_keepsEntitiesBeyondHotSet() {
+    val spilling = DataCacheStorageImpl(TimeSource { now }, tempFolder.newFolder())
+    spilling.registerDataType(Spilled::class.java, maxSize = 40, onDisk = true, ttl = TTL)
+
+    (1..50).forEach { spilling.put(Spilled::class.java, spilled("e$it")) }
+
+    assertThat(spilling.size(Spilled::class.java)).isEqualTo(40)
+    assertThat(spilling.get(Spilled::class.java, "e10")).isNull()
+    assertThat(spilling.get(Spilled::class.java, "e11")).isEqualTo(spilled("e11"))
+    assertThat(spilling.allAsMap(Spilled::class.java).keys)
+      .containsExactlyElementsIn((11..50).map { "e$it" })
+  }
+
+  @Test
+  fun registerDataType_onDisk_appliesTtlAndPackageDeletionToSpilledEntities() {
+    val spilling = DataCacheStorageImpl(TimeSource { now }, tempFolder.newFolder())
+    spilling.registerDataType(Spilled::class.java, maxSize = 40, onDisk = true, ttl = TTL)
+    // The oldest entities are the first ones spilled to disk.
+    spilling.put(Spilled::class.java, spilled("old"))
+    spilling.put(Spilled::class.java, spilled("removed", packageName = "pkg1"))
+    now = now.plus(Duration.ofMinutes(4))
+    (1..35).forEach { spilling.put(Spilled::class.java, spilled("e$it")) }
+
+    assertThat(spilling.purgeAllEntitiesForPackage("pkg1")).isEqualTo(1)
+    now = now.plus(Duration.ofMinutes(2))
+    assertThat(spilling.get(Spilled::class.java, "old")).isNull()
+    spilling.purgeExpiredEntities()
+
+    assertThat(spilling.size(Spilled::class.java)).isEqualTo(35)
+    assertThat(spilling.allAsMap(Spilled::class.java).keys).containsNoneOf("old", "removed")
+  }
+
+  @Test
+  fun registerDataType_onDiskWithoutSerializer_keepsEntitiesOnHeap() {
+    val spilling = DataCacheStorageImpl(TimeSource { now }, tempFolder.newFolder())
+    spilling.registerDataType(Data::class.java, maxSize = 40, onDisk = true, ttl = TTL)
+
+    (1..40).forEach { spilling.put(Data::class.java, entity("e$it")) }
+
+    assertThat(spilling.size(Data::class.java)).isEqualTo(40)
+  }
+
+  @Test
+  fun putAll_storesEveryEntity() {
+    assertThat(storage.putAll(Data::class.java, listOf(entity("a"), entity("b")))).isTrue()
+
+    assertThat(storage.allAsMap(Data::class.java).keys).containsExactly("a", "b")
+    assertThat(storage.metrics(Data::class.java)?.putCount).isEqualTo(2L)
+  }
+
+  @Test
+  fun putAll_unregisteredType_returnsFalse() {
+    val other = WrappedEntity(entity("a").metadata, Other)
+
+    assertThat(storage.putAll(Other::class.java, listOf(other))).isFalse()
+  }
+
+  @Test
+  fun getAll_returnsLiveEntitiesAndSkipsMissingOrExpired() {
+    storage.put(Data::class.java, entity("old"))
+    now = now.plus(Duration.ofMinutes(4))
+    storage.put(Data::class.java, entity("new"))
+    now = now.plus(Duration.ofMinutes(2))
+
+    assertThat(storage.getAll(Data::class.java, listOf("old", "new", "missing")))
+      .containsExactly("new", entity("new", created = START.plus(Duration.ofMinutes(4))))
+    val metrics = storage.metrics(Data::class.java)!!
+    assertThat(metrics.hitCount).isEqualTo(1L)
+    assertThat(metrics.missCount).isEqualTo(2L)
+  }
+
+  @Test
+  fun removeAll_withIds_removesOnlyThoseEntities() {
+    storage.putAll(Data::class.java, listOf(entity("a"), entity("b"), entity("c")))
+
+    assertThat(storage.removeAll(Data::class.java, listOf("a", "c", "missing"))).isEqualTo(2)
+
+    assertThat(storage.allAsMap(Data::class.java).keys).containsExactly("b")
+  }
+
+  @Test
+  fun enableSnapshots_restoresLiveEntitiesSavedByPreviousStorage() {
+    val directory = tempFolder.newFolder()
+    val previous = snapshotStorage(directory)
+    previous.put(Spilled::class.java, spilled("old"))
+    now = now.plus(Duration.ofMinutes(4))
+    previous.put(Spilled::class.java, spilled("new"))
+    assertThat(previous.saveSnapshot()).isEqualTo(2)
+    now = now.plus(Duration.ofMinutes(2))
+
+    val restarted = snapshotStorage(directory)
+
+    assertThat(restarted.allAsMap(Spilled::class.java).keys).containsExactly("new")
+    assertThat(restarted.get(Spilled::class.java, "new")?.metadata?.created)
+      .isEqualTo(START.plus(Duration.ofMinutes(4)).toProtoTimestamp())
+  }
+
+  @Test
+  fun enableSnapshots_doesNotRestoreRemovedEntities() {
+    val directory = tempFolder.newFolder()
+    val previous = snapshotStorage(directory)
+    previous.put(Spilled::class.java, spilled("a", packageName = "pkg1"))
+    previous.saveSnapshot()
+
+    previous.purgeAllEntitiesForPackage("pkg1")
+
+    assertThat(snapshotStorage(directory).size(Spilled::class.java)).isEqualTo(0)
+  }
+
+  @Test
+  fun enableSnapshots_sharingTheSpillDirectory_restoresEntities() {
+    val directory = tempFolder.newFolder()
+    fun sharedStorage() =
+      DataCacheStorageImpl(TimeSource { now }, directory, directory).apply {
+        registerDataType(Spilled::class.java, maxSize = 40, onDisk = true, ttl = TTL)
+        enableSnapshots(Spilled::class.java)
+      }
+    val previous = sharedStorage()
+    (1..40).forEach { previous.put(Spilled::class.java, spilled("e$it")) }
+    assertThat(previous.saveSnapshot()).isEqualTo(40)
+
+    val restarted = sharedStorage()
+
+    assertThat(restarted.size(Spilled::class.java)).isEqualTo(40)
+    assertThat(restarted.get(Spilled::class.java, "e1")).isEqualTo(spilled("e1"))
+  }
+
+  @Test
+  fun enableSnapshots_withoutSerializer_restoresNothing() {
+    val snapshotting = DataCacheStorageImpl(TimeSource { now }, snapshotDirectory = tempFolder.root)
+    snapshotting.registerDataType(Data::class.java, maxSize = 10, ttl = TTL)
+    snapshotting.put(Data::class.java, entity("a"))
+
+    assertThat(snapshotting.enableSnapshots(Data::class.java)).isEqualTo(0)
+    assertThat(snapshotting.saveSnapshot()).isEqualTo(0)
+  }
+
+  @Test
+  fun changes_publishesEveryChange() = runBlocking {
+    val changes =
+      async(start = CoroutineStart.UNDISPATCHED) {
+        storage.changes(Data::class.java).take(4).toList()
+      }
+    // Let the flow register with the cache.
+    yield()
+
+    storage.put(Data::class.java, entity("a"))
+    storage.put(Data::class.java, entity("a"))
+    storage.remove(Data::class.java, "a")
+    storage.put(Data::class.java, entity("b"))
+
+    assertThat(changes.await())
+      .containsExactly(
+        DataCacheChange.Inserted(entity("a")),
+        DataCacheChange.Updated(entity("a")),
+        DataCacheChange.Removed("a"),
+        DataCacheChange.Inserted(entity("b")),
+      )
+      .inOrder()
+  }
+
+  @Test
+  fun changes_publishesExpirationsAndEvictions() = runBlocking {
+    storage.registerDataType(Data::class.java, maxSize = 1, ttl = TTL)
+    val changes =
+      async(start = CoroutineStart.UNDISPATCHED) {
+        storage.changes(Data::class.java).take(4).toList()
+      }
+    yield()
+
+    storage.put(Data::class.java, entity("a"))
+    storage.put(Data::class.java, entity("b"))
+    now = now.plus(TTL).plusMillis(1)
+    storage.purgeExpiredEntities()
+
+    assertThat(changes.await())
+      .containsExactly(
+        DataCacheChange.Inserted(entity("a", created = START)),
+        DataCacheChange.Inserted(entity("b", created = START)),
+        DataCacheChange.Removed("a"),
+        DataCacheChange.Expired("b"),
+      )
+      .inOrder()
+  }
+
+  @Test
+  fun changes_conflated_keepsLatestChangePerEntity() = runBlocking {
+    storage.put(Data::class.java, entity("b"))
+    val changes =
+      async(start = CoroutineStart.UNDISPATCHED) {
+        storage.changes(Data::class.java, conflate = true).take(2).toList()
+      }
+
+    storage.put(Data::class.java, entity("a"))
+    storage.put(Data::class.java, entity("a", packageNames = listOf("pkg2")))
+    storage.remove(Data::class.java, "b")
+
+    assertThat(changes.await())
+      .containsExactly(
+        DataCacheChange.Updated(entity("a", packageNames = listOf("pkg2"))),
+        DataCacheChange.Removed("b"),
+      )
+      .inOrder()
+  }
+
+  @Test
+  fun metrics_countsCacheActivity() {
+    storage.registerDataType(Data::class.java, maxSize = 2, ttl = TTL)
+    storage.put(Data::class.java, entity("a", packageNames = listOf("pkg1")))
+    storage.put(Data::class.java, entity("b"))
+    storage.put(Data::class.java, entity("c"))
+    storage.get(Data::class.java, "a")
+    storage.get(Data::class.java, "b")
+    storage.purgeAllEntitiesForPackage("pkg")
+    storage.put(Data::class.java, entity("d"))
+    now = now.plus(TTL).plusMillis(1)
+    storage.purgeExpiredEntities()
+
+    val metrics = storage.metrics(Data::class.java)!!
+
+    assertThat(metrics.putCount).isEqualTo(4L)
+    assertThat(metrics.hitCount).isEqualTo(1L)
+    assertThat(metrics.missCount).isEqualTo(1L)
+    assertThat(metrics.evictionCount).isEqualTo(1L)
+    assertThat(metrics.purgeCount).isEqualTo(2L)
+    assertThat(metrics.expirationCount).isEqualTo(1L)
+    assertThat(metrics.getLatency.count).isEqualTo(2L)
+    assertThat(metrics.putLatency.count).isEqualTo(4L)
+  }
+
+  @Test
+  fun metrics_unregisteredType_returnsNull() {
+    assertThat(storage.metrics(Other::class.java)).isNull()
+  }
+
+  private fun spilled(id: String, packageName: String = "pkg") =
+    WrappedEntity(EntityMetadata(id, packageName, now), Spilled(id))
+
+  private fun WrappedEntity<Data>.withUpdated(updated: Instant) =
+    copy(metadata = metadata.toBuilder().setUpdated(updated.toProtoTimestamp()).build())
+
+  private fun snapshotStorage(directory: File) =
+    DataCacheStorageImpl(TimeSource { now }, snapshotDirectory = directory).apply {
+      registerDataType(Spilled::class.java, maxSize = 10, ttl = TTL)
+      enableSnapshots(Spilled::class.java)
+    }
+
+  private fun entity(
+    id: String,
+    created: Instant = now,
+    packageNames: List<String> = listOf("pkg"),
+  ) = WrappedEntity(EntityMetadata(id, packageNames, created), Data(id))
+
+  data class Data(val value: String)
+
+  object Other
+
+  data class Spilled(val value: String) : StoreSerializable {
+    override fun toSerializedString(): String = value
+
+    companion object : StoreSerializable.Deserializer<Spilled> {
+      override fun fromSerializedString(str: String): Spilled = Spilled(str)
+    }
+  }
+
+  companion object {
+    private val START = Instant.ofEpochMilli(1_000_000)
+    private val TTL = Duration.ofMinutes(5)
+  }
+}
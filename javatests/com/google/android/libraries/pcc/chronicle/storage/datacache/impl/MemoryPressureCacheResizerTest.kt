@@ -0,0 +1,117 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.libraries.pcc.chronicle.storage.datacache.impl
+
+import android.content.ComponentCallbacks2
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.google.android.libraries.pcc.chronicle.api.storage.EntityMetadata
+import com.google.android.libraries.pcc.chronicle.api.storage.WrappedEntity
+import com.google.android.libraries.pcc.chronicle.util.TimeSource
+import com.google.common.truth.Truth.assertThat
+import java.time.Duration
+import java.time.Instant
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.yield
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@RunWith(AndroidJUnit4::class)
+class MemoryPressureCacheResizerTest {
+  private val now = Instant.ofEpochMilli(1_000_000)
+  private val storage = DataCacheStorageImpl(TimeSource { now })
+  private val resizer =
+    MemoryPressureCacheResizer(storage, minSizes = mapOf(Floored::class.java to 50))
+
+  @Before
+  fun setUp() {
+    storage.registerDataType(Data::class.java, maxSize = 100, ttl = TTL)
+    storage.registerDataType(Floored::class.java, maxSize = 100, ttl = TTL)
+    fill()
+  }
+
+  @Test
+  fun onTrimMemory_shrinksCachesInProportionToPressure() {
+    resizer.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND)
+
+    assertThat(resizer.pressure).isEqualTo(MemoryPressure.MODERATE)
+    assertThat(storage.size(Data::class.java)).isEqualTo(50)
+
+    resizer.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE)
+
+    assertThat(resizer.pressure).isEqualTo(MemoryPressure.CRITICAL)
+    assertThat(storage.size(Data::class.java)).isEqualTo(10)
+    assertThat(storage.size(Floored::class.java)).isEqualTo(50)
+  }
+
+  @Test
+  fun onTrimMemory_uiHidden_keepsCurrentPressure() {
+    resizer.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+
+    resizer.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN)
+
+    assertThat(resizer.pressure).isEqualTo(MemoryPressure.HIGH)
+    assertThat(storage.size(Data::class.java)).isEqualTo(25)
+  }
+
+  @Test
+  fun follow_growsCachesBackOncePressureClears() = runBlocking {
+    val pressure = MutableStateFlow(MemoryPressure.HIGH)
+    val job = launch(start = CoroutineStart.UNDISPATCHED) { resizer.follow(pressure) }
+    assertThat(storage.size(Data::class.java)).isEqualTo(25)
+
+    pressure.value = MemoryPressure.NONE
+    yield()
+    fill()
+
+    assertThat(storage.size(Data::class.java)).isEqualTo(100)
+    job.cancel()
+  }
+
+  @Test
+  fun registerDataType_underPressure_scalesNewType() {
+    resizer.onMemoryPressure(MemoryPressure.MODERATE)
+
+    storage.registerDataType(Other::class.java, maxSize = 10, ttl = TTL)
+    (1..10).forEach { storage.put(Other::class.java, wrapped("o$it", Other)) }
+
+    assertThat(storage.size(Other::class.java)).isEqualTo(5)
+  }
+
+  private fun fill() {
+    (1..100).forEach {
+      storage.put(Data::class.java, wrapped("d$it", Data))
+      storage.put(Floored::class.java, wrapped("f$it", Floored))
+    }
+  }
+
+  private fun <T> wrapped(id: String, entity: T) =
+    WrappedEntity(EntityMetadata(id, "pkg", now), entity)
+
+  object Data
+
+  object Floored
+
+  object Other
+
+  companion object {
+    private val TTL = Duration.ofMinutes(5)
+  }
+}